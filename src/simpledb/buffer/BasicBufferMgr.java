@@ -1,9 +1,33 @@
 package simpledb.buffer;
 
 import simpledb.file.Block;
+import simpledb.file.Page;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * 管理缓冲池的对象
+ * 管理缓冲池的对象，在分区的缓冲池中它就是一个分区，由BufferMgr按块的hash值选择
+ * 缓冲池用一个 Block->Buffer 的hash表来索引已经装入的块，
+ * 还没有装入过块的缓冲单元放在空闲队列中，优先使用；
+ * 空闲队列为空时，由替换策略{@link ReplacementPolicy}从unpinned的缓冲单元中选出替换对象
+ * <p>
+ * 分区的锁只保护这些元数据，读块和写回脏页的磁盘I/O都在锁之外完成，
+ * 其它线程在这期间可以继续pin这个分区中的其它块
+ * <p>
+ * 分区满了的时候，请求的线程按先来后到排在等待队列中，
+ * 每空出一个缓冲单元只唤醒队头的一个线程，并把这个缓冲单元预留给它
+ * <p>
+ * 预读进来、还没有被使用过的缓冲单元单独放在一个队列中，不交给替换策略管理，
+ * 需要替换时在空闲队列之后、替换策略之前最先被换出，避免大范围的扫描把常用的页挤出缓冲池
  *
  * @program: simpleDB
  * @description:
@@ -12,115 +36,388 @@ import simpledb.file.Block;
  **/
 public class BasicBufferMgr {
     private Buffer[] bufferPool;
+    // 已经装入缓冲池的块 -> 对应的缓冲单元
+    private Map<Block, Buffer> bufferPoolMap;
+    // 还没有装入过块的缓冲单元
+    private ArrayDeque<Buffer> freeBuffers;
+    private ReplacementPolicy policy;
     private int numAvailable;
+    private long hits;    // pin时块已经在缓冲池中的次数
+    private long misses;  // pin时需要从磁盘读入块的次数
+    // 等待空闲缓冲单元的线程，先进先出
+    private ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    // 已经被唤醒、但还没来得及重新pin的等待者个数，为它们预留了同样数量的缓冲单元
+    private int reserved;
+    // 预读进来之后还没有被pin过的缓冲单元，按预读的先后顺序排列
+    private LinkedHashSet<Buffer> prefetched = new LinkedHashSet<>();
+    // 正在预读、读盘期间还没有被pin过的缓冲单元
+    private Set<Buffer> claimed = new HashSet<>();
+    private long prefetches;    // 预读的块数
+    private long prefetchHits;  // 预读的块在被换出之前被pin到的次数
 
-    BasicBufferMgr(int buffsNum) {
+    BasicBufferMgr(int buffsNum, ReplacementPolicy policy, DirtyPageTable dirtyPageTable) {
         bufferPool = new Buffer[buffsNum];
+        bufferPoolMap = new HashMap<>(buffsNum * 2);
+        freeBuffers = new ArrayDeque<>(buffsNum);
+        this.policy = policy;
         numAvailable = buffsNum;
         for (int i = 0; i < buffsNum; i++) {
-            bufferPool[i] = new Buffer();
+            bufferPool[i] = new Buffer(dirtyPageTable);
+            freeBuffers.add(bufferPool[i]);
         }
     }
 
     /**
-     * Flushes the dirty buffers modified by the specified transaction.
+     * 找出所有unpinned的脏页，供后台写回线程使用
      *
-     * @param txNum
+     * @param out 找到的脏页追加到这里
      */
-    synchronized void flushAll(int txNum) {
+    synchronized void collectUnpinnedDirty(List<Buffer> out) {
         for (Buffer b : bufferPool) {
-            if (b.isModifiedBy(txNum)) {
-                b.flush();
-            }
+            if (!b.isPinned() && b.isDirty())
+                out.add(b);
         }
     }
 
+    /**
+     * 找出所有脏页，包括被pin住的，供检查点使用
+     *
+     * @param out 找到的脏页追加到这里
+     */
+    synchronized void collectDirty(List<Buffer> out) {
+        for (Buffer b : bufferPool) {
+            if (b.isDirty())
+                out.add(b);
+        }
+    }
+
+    /**
+     * 所有的缓冲单元
+     *
+     * @param out
+     */
+    synchronized void collectAll(List<Buffer> out) {
+        Collections.addAll(out, bufferPool);
+    }
+
+    int size() {
+        return bufferPool.length;
+    }
+
     /**
      * 将指定块的内容固定到缓冲池上
+     * 如果块不在缓冲池中，在锁内选好替换对象并登记到hash索引上，然后在锁外读盘；
+     * 同时pin这个块的其它线程会等待读盘完成。
+     * 被选中的替换对象如果是脏页，也会先在锁外写回磁盘
      *
      * @param blk
+     * @param reservedFrame 调用者是否是被唤醒的等待者，是的话它可以使用预留的缓冲单元
+     * @param formatted     块不在缓冲池中时用来代替读盘的内容（pinNew刚格式化并追加的新块），null表示从磁盘读
      * @return 被固定在具体的哪个缓冲单元上，pin失败返回空
+     * @throws InterruptedException 等待其它线程读盘时被中断
      */
-    synchronized Buffer pin(Block blk) {
-        // 先去找一遍，看看是否哪个缓冲单元上保存的就是指定blk的内容
-        // （无论它是pinned还是unpinned的状态）
-        Buffer buffer = findExistingBuffer();
-        // 如果不存在，则找一个unpinned的缓冲单元
-        if (buffer == null)
-        {
-            buffer = chooseUnpinnedBuffer();
-            if (buffer == null)  // 没有unpinned的缓冲单元
-            {
-                return null;
+    Buffer pin(Block blk, boolean reservedFrame, Page formatted) throws InterruptedException {
+        while (true) {
+            Buffer buffer;
+            boolean needLoad = false;
+            boolean dirtyVictim = false;
+            synchronized (this) {
+                if (reservedFrame) {
+                    // 无论这次pin是否成功，预留都只用一次
+                    reserved--;
+                    reservedFrame = false;
+                }
+                // 先去找一遍，看看是否哪个缓冲单元上保存的就是指定blk的内容
+                // （无论它是pinned还是unpinned的状态）
+                buffer = findExistingBuffer(blk);
+                // 命中一个unpinned的块同样要占用一个可用的缓冲单元，预留给先来的等待者的不能用
+                if (buffer != null && !buffer.isPinned() && numAvailable <= reserved)
+                    return null;
+                if (buffer != null) {
+                    hits++;
+                    // 预读的块第一次被用到（可能还在读盘），从此由替换策略管理
+                    if (prefetched.remove(buffer) | claimed.remove(buffer))
+                        prefetchHits++;
+                    pinBuffer(buffer);
+                } else {
+                    // 空出来的缓冲单元已经预留给了先来的等待者，后来的要排队
+                    if (numAvailable <= reserved)
+                        return null;
+                    // 如果不存在，则找一个unpinned的缓冲单元
+                    buffer = chooseUnpinnedBuffer();
+                    if (buffer == null) {
+                        // 计数说还有没预留的可用缓冲单元，却找不到unpinned的单元，
+                        // 说明计数和替换策略不一致了，调用者等待也等不到，直接失败
+                        throw new IllegalStateException(numAvailable + " frames available, " + reserved
+                                + " reserved, but no unpinned frame to replace");
+                    }
+                    if (buffer.isDirty()) {
+                        // 脏页要先写回，写盘期间pin住它，保证它不会被其它线程选走
+                        numAvailable--;
+                        buffer.pin();
+                        dirtyVictim = true;
+                    } else {
+                        assignToBlock(buffer, blk);
+                        needLoad = true;
+                    }
+                }
+                // 如果命中的是已经被pin住的块，预留的缓冲单元没有用上，转给下一个等待者
+                signalWaiters();
             }
-            buffer.assignToBlock(blk);  // 找到了就将块中的内容赋到缓冲单元的页上去
+            if (dirtyVictim) {
+                buffer.flush();
+                synchronized (this) {
+                    if (buffer.pinCount() == 1 && !buffer.isDirty() && findExistingBuffer(blk) == null) {
+                        // 写回之后没有别人用它，直接拿来装入blk
+                        buffer.unpin();
+                        numAvailable++;
+                        assignToBlock(buffer, blk);
+                        needLoad = true;
+                    } else {
+                        unpin(buffer);
+                    }
+                }
+                if (!needLoad)
+                    continue;
+            }
+            if (needLoad) {
+                try {
+                    if (formatted != null)
+                        buffer.loadFrom(formatted);
+                    else
+                        buffer.load();
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        bufferPoolMap.remove(blk, buffer);
+                    }
+                    unpin(buffer);
+                    throw e;
+                }
+            } else {
+                buffer.waitUntilLoaded();
+                if (!blk.equals(buffer.block())) {
+                    // 其它线程读盘失败了，重新来过
+                    unpin(buffer);
+                    continue;
+                }
+            }
+            return buffer;
         }
-        // 如果存在一个缓冲单元上保存的就是这个blk的内容，就不要再去找unpinned的单元了
-        if(!buffer.isPinned())  // 如果该页是没被固定的状态，则即将固定，把numAvailable减1
-            numAvailable--;
-        buffer.pin();  // 该页pin的次数加1（支持多用户并发固定某个块）
-        return buffer;
+    }
 
+    /**
+     * unpin指定缓冲单元，如果unpin后该缓冲单元的pin count=0，
+     * 则唤醒等待队列队头的线程
+     *
+     * @param buffer
+     */
+    synchronized void unpin(Buffer buffer) {
+        buffer.unpin();
+        if (!buffer.isPinned()) {
+            numAvailable++;
+            policy.unpinned(buffer);
+            signalWaiters();
+        }
     }
 
     /**
-     * 在指定文件中开辟一个新的块，并pin到一个缓冲单元中
-     * @param fileName
-     * @param fmtr
-     * @return 返回null如果没有缓冲单元
+     * 为预读blk占用一个缓冲单元：登记到hash索引上并pin住它，调用者在锁外读盘后调用{@link #prefetchDone}。
+     * 预读只使用空闲的或者干净的缓冲单元，不为它写回脏页，也不占用预留给等待者的缓冲单元
+     *
+     * @param blk
+     * @return 块已经在缓冲池中或者没有合适的缓冲单元时返回null
      */
-    synchronized Buffer pinNew(String fileName,PageFormatter fmtr)
-    {
-        Buffer buffer=chooseUnpinnedBuffer();
-        if (buffer==null)
+    synchronized Buffer claimForPrefetch(Block blk) {
+        if (findExistingBuffer(blk) != null || numAvailable - reserved <= 1)
             return null;
-        buffer.assignToNew(fileName,fmtr);
+        Buffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = policy.chooseVictim();
+            if (buffer == null)
+                return null;
+            if (buffer.isDirty()) {
+                policy.unpinned(buffer);  // 还给替换策略
+                return null;
+            }
+        }
+        Block oldBlk = buffer.block();
+        if (oldBlk != null) {
+            bufferPoolMap.remove(oldBlk, buffer);
+            policy.evicted(buffer, oldBlk);
+        }
+        buffer.assignToBlock(blk);
+        bufferPoolMap.put(blk, buffer);
         numAvailable--;
         buffer.pin();
+        claimed.add(buffer);
+        prefetches++;
         return buffer;
     }
+
     /**
-     * unpin指定缓冲单元
+     * 预读结束，释放claimForPrefetch时的pin。
+     * 如果在读盘期间没有别人pin它，就放入预读队列，等着被使用或者最先被换出；
+     * 读盘期间被pin过的缓冲单元已经交给了替换策略，最后一个unpin的人负责把它还给替换策略
+     *
      * @param buffer
+     * @param blk    预读的块
+     * @param loaded 是否读盘成功
      */
-    synchronized void unpin(Buffer buffer)
-    {
+    synchronized void prefetchDone(Buffer buffer, Block blk, boolean loaded) {
+        if (!loaded)
+            bufferPoolMap.remove(blk, buffer);
+        boolean used = !claimed.remove(buffer);
         buffer.unpin();
-        if(!buffer.isPinned())
-            numAvailable++;
+        if (buffer.isPinned())
+            return;  // 读盘期间已经有人在等这个块了，由它unpin时交给替换策略
+        numAvailable++;
+        if (used)
+            policy.unpinned(buffer);  // 读盘期间有人pin过又unpin了
+        else if (loaded)
+            prefetched.add(buffer);
+        else
+            freeBuffers.add(buffer);
+        signalWaiters();
     }
 
     /**
-     * 在所有缓冲池中，找一个unpinned的缓冲单元,没有则返回null
+     * 在等待队列中排队，直到被unpin唤醒、超时或者被中断
      *
-     * @return
+     * @param deadline 截止时间，System.nanoTime()
+     * @param first    是否排在队头，被唤醒之后又没pin成功的线程应该保留原来的位置
+     * @return true表示被唤醒并且得到了一个预留的缓冲单元，调用者应该以reservedFrame=true重新pin；
+     * false表示不需要等待（分区中有可用的缓冲单元）或者已经超时
+     * @throws InterruptedException
      */
-    private Buffer chooseUnpinnedBuffer() {
-        for (Buffer b : bufferPool) {
-            if (!b.isPinned())
-                return b;
+    boolean awaitAvailable(long deadline, boolean first) throws InterruptedException {
+        Waiter waiter = new Waiter(Thread.currentThread());
+        synchronized (this) {
+            if (numAvailable > reserved)
+                return false;
+            if (first)
+                waiters.addFirst(waiter);
+            else
+                waiters.addLast(waiter);
+        }
+        while (!waiter.signalled) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.interrupted()) {
+                synchronized (this) {
+                    if (!waiter.signalled) {
+                        waiters.remove(waiter);
+                        if (remaining > 0)
+                            throw new InterruptedException();
+                        return false;
+                    }
+                }
+                // 在放弃之前刚好被唤醒了，就当作正常唤醒处理
+                break;
+            }
+            LockSupport.parkNanos(this, remaining);
         }
-        return null;
+        return true;
     }
 
+    /**
+     * 有多少个没有预留的可用缓冲单元，就唤醒多少个队头的等待者
+     */
+    private void signalWaiters() {
+        while (numAvailable > reserved && !waiters.isEmpty()) {
+            Waiter waiter = waiters.poll();
+            reserved++;
+            waiter.signalled = true;
+            LockSupport.unpark(waiter.thread);
+        }
+    }
 
     /**
-     * 先去找一遍，看看是否哪个缓冲单元上保存的就是指定blk的内容
-     * 无论它是pinned还是unpinned的状态.
+     * 将缓冲单元重新分配给blk，登记到hash索引上并pin住它
+     *
+     * @param buffer
+     * @param blk
+     */
+    private void assignToBlock(Buffer buffer, Block blk) {
+        Block oldBlk = buffer.block();
+        if (oldBlk != null) {
+            bufferPoolMap.remove(oldBlk, buffer);
+            policy.evicted(buffer, oldBlk);
+        }
+        buffer.assignToBlock(blk);
+        bufferPoolMap.put(blk, buffer);
+        misses++;
+        pinBuffer(buffer);
+    }
+
+    private void pinBuffer(Buffer buffer) {
+        // 如果存在一个缓冲单元上保存的就是这个blk的内容，就不要再去找unpinned的单元了
+        if (!buffer.isPinned())  // 如果该页是没被固定的状态，则即将固定，把numAvailable减1
+            numAvailable--;
+        buffer.pin();  // 该页pin的次数加1（支持多用户并发固定某个块）
+        policy.pinned(buffer);
+    }
+
+    /**
+     * 优先使用空闲的缓冲单元，其次换出最早预读进来、一直没有被用到的缓冲单元，
+     * 都没有则由替换策略选出一个unpinned的缓冲单元，还是没有则返回null。
      *
      * @return
      */
-    private Buffer findExistingBuffer() {
-        for (Buffer b : bufferPool) {
-            Block tempBlock = b.block();
-            if (tempBlock != null && tempBlock.equals(b))
-                return b;
+    private Buffer chooseUnpinnedBuffer() {
+        Buffer buffer = freeBuffers.poll();
+        if (buffer != null)
+            return buffer;
+        Iterator<Buffer> oldest = prefetched.iterator();
+        if (oldest.hasNext()) {
+            buffer = oldest.next();
+            oldest.remove();
+            return buffer;
         }
-        return null;
+        return policy.chooseVictim();
     }
 
+    /**
+     * 通过hash索引找到保存指定blk内容的缓冲单元，
+     * 无论它是pinned还是unpinned的状态.
+     *
+     * @return 没有找到返回null
+     */
+    private Buffer findExistingBuffer(Block blk) {
+        return bufferPoolMap.get(blk);
+    }
 
-    public int getNumAvailable() {
+    public synchronized int getNumAvailable() {
         return numAvailable;
     }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getPrefetches() {
+        return prefetches;
+    }
+
+    synchronized long getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        prefetches = 0;
+        prefetchHits = 0;
+    }
+
+    private static class Waiter {
+        final Thread thread;
+        volatile boolean signalled = false;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
 }
@@ -1,16 +1,31 @@
 package simpledb.buffer;
 
-import jdk.nashorn.internal.ir.ReturnNode;
 import simpledb.file.Block;
 import simpledb.file.Page;
 import simpledb.server.SimpleDB;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+
+import static simpledb.file.Page.INT_SIZE;
+import static simpledb.file.Page.LONG_SIZE;
+
 /**
  * 缓存池中的一个缓存单元，可以看做就是一个页，其中包含了某个块的信息。
  * 这些信息包括：
  * 块号、该块被固定（pinned）到缓存的时间、该块被解固（unpinned）的时间
  * 该缓存单元中的信息是否被修改，如果被修改还需要将修改的日志保存到日志文件，
  * 并将修改的信息写回到磁盘上。
+ * <p>
+ * 每个缓冲单元有一个读写latch：读页面内容前持有共享latch（{@link #latchShared()}），
+ * 多个线程可以同时读同一个页；修改页面前持有排它latch（{@link #latchExclusive()}）。
+ * setInt/setString自己会获取排它latch，但是一次读多个值时应该由调用者持有共享latch，
+ * 才能读到一致的内容。注意latch不支持从共享升级到排它。
+ * <p>
+ * 页的最后8个字节保存页上最近一次写了日志的修改的LSN（page LSN），随页一起写回磁盘，
+ * 恢复时据此跳过已经反映在页上的修改。记录只能使用页的前{@link #payloadSize()}个字节，
+ * 写到page LSN上的修改会被拒绝。这是页格式的第{@link #PAGE_FORMAT_VERSION}版，记在数据库的头文件中
  *
  * @program: simpleDB
  * @description: 块缓存
@@ -18,11 +33,21 @@ import simpledb.server.SimpleDB;
  * @create: 2019-07-05 15:55
  **/
 public class Buffer {
+    // 数据库头文件中记录页格式版本的键
+    public static final String PAGE_FORMAT = "pageFormat";
+    // 页格式的版本：没有记录版本的数据库是第1版，页上所有的字节都可以存放记录；第2版起页的最后是page LSN
+    public static final int PAGE_FORMAT_VERSION = 2;
+    // 页末尾page LSN的字节数
+    public static final int PAGE_LSN_SIZE = LONG_SIZE;
     private Page contens = new Page();
     private Block blk = null;
-    private int pins=0;                 // 当前缓冲单元被pin的次数
-    private int modifiedBy=-1;          //  表示是哪个事务修改的，-1表示未修改
-    private int logSequenceNum=-1;      //  -1表示无需写log记录
+    private AtomicInteger pins=new AtomicInteger(0);  // 当前缓冲单元被pin的次数
+    private volatile int modifiedBy=-1; //  表示是哪个事务修改的，-1表示未修改
+    private volatile long logSequenceNum=-1;  //  -1表示无需写log记录
+    private volatile long recoveryLSN=-1;     // 页从干净变脏之后第一条修改它的日志记录，-1表示没有，检查点的脏页表用到
+    private boolean loading=false;      // 是否正在从磁盘读入块的内容
+    private final ReentrantReadWriteLock latch=new ReentrantReadWriteLock();
+    private final DirtyPageTable dirtyPageTable;  // 所属缓冲池的脏页表，可以为null
 
     /**
      * 该构造函数将被BufferMgr显示调用，
@@ -30,7 +55,11 @@ public class Buffer {
      * 因为Buffer依赖于Log
      */
     public Buffer() {
+        this(null);
+    }
 
+    Buffer(DirtyPageTable dirtyPageTable) {
+        this.dirtyPageTable=dirtyPageTable;
     }
 
     /**
@@ -53,35 +82,188 @@ public class Buffer {
 
     /**
      * 在指定offset位置写数据，该方法假定相关事务已经写好了一个日志记录
-     * 该buffer保存事务id和log记录的lsn
+     * 该buffer保存事务id和log记录的lsn。
+     * 日志是在拿到latch之前写的，检查点的脏页快照可能漏掉这次修改，
+     * 所以只用于重做和不写日志的修改，写日志的修改用{@link #setInt(int, int, int, LongSupplier)}
      * @param offset
      * @param val
      * @param txnum 修改事务id
      * @param lsn 对应log记录的lsn,-1表示无需保存log记录
      */
-    public void setInt(int offset, int val, int txnum, int lsn) {
-        modifiedBy=txnum;
-        if(lsn>=0)
-        {
-            logSequenceNum=lsn;
+    public void setInt(int offset, int val, int txnum, long lsn) {
+        checkPayload(offset, INT_SIZE);
+        latchExclusive();
+        try {
+            markModified(txnum);
+            logged(lsn);
+            contens.setInt(offset,val);
+        } finally {
+            unlatchExclusive();
         }
-        contens.setInt(offset,val);
     }
+    /**
+     * 写日志并修改页面：持有排它latch期间先调用logger追加日志记录，再修改页面并记下它的LSN。
+     * 检查点在共享latch下读每个页的recLSN（见{@link BufferMgr#dirtyPages()}），
+     * 所以这次修改要么在检查点的脏页快照中，要么它的日志记录在检查点开始之后，重做起点不会越过它
+     * @param offset
+     * @param val
+     * @param txnum 修改事务id
+     * @param logger 追加这次修改的日志记录并返回LSN，可以读这个页上旧的值
+     */
+    public void setInt(int offset, int val, int txnum, LongSupplier logger) {
+        checkPayload(offset, INT_SIZE);
+        latchExclusive();
+        try {
+            long lsn = logger.getAsLong();
+            markModified(txnum);
+            logged(lsn);
+            contens.setInt(offset,val);
+        } finally {
+            unlatchExclusive();
+        }
+    }
+
     /**
      * 在指定offset位置写数据，该方法假定相关事务已经写好一个日志记录。
-     * 该buffer保存事务id和log记录的lsn
+     * 该buffer保存事务id和log记录的lsn。
+     * 和{@link #setInt(int, int, int, long)}一样只用于重做和不写日志的修改
      * @param offset
      * @param val
      * @param txnum 修改事务id
      * @param lsn 对应log记录的lsn,-1表示无需保存log记录
      */
-    public void setString(int offset, String val, int txnum, int lsn) {
-        modifiedBy=txnum;
-        if(lsn>=0)
-        {
-            logSequenceNum=lsn;
+    public void setString(int offset, String val, int txnum, long lsn) {
+        int size = Page.STR_SIZE(val.length());
+        if (offset + size > payloadSize())
+            size = INT_SIZE + val.getBytes().length;  // 按最坏情况放不下时再算实际编码的长度
+        checkPayload(offset, size);
+        latchExclusive();
+        try {
+            markModified(txnum);
+            logged(lsn);
+            contens.setString(offset,val);
+        } finally {
+            unlatchExclusive();
         }
-        contens.setString(offset,val);
+    }
+
+    /**
+     * 写日志并修改页面，见{@link #setInt(int, int, int, LongSupplier)}
+     * @param offset
+     * @param val
+     * @param txnum 修改事务id
+     * @param logger 追加这次修改的日志记录并返回LSN，可以读这个页上旧的值
+     */
+    public void setString(int offset, String val, int txnum, LongSupplier logger) {
+        int size = Page.STR_SIZE(val.length());
+        if (offset + size > payloadSize())
+            size = INT_SIZE + val.getBytes().length;
+        checkPayload(offset, size);
+        latchExclusive();
+        try {
+            long lsn = logger.getAsLong();
+            markModified(txnum);
+            logged(lsn);
+            contens.setString(offset,val);
+        } finally {
+            unlatchExclusive();
+        }
+    }
+
+    /**
+     * 在持有排它latch时调用，记下修改该页的日志记录，并写到页上的LSN中。
+     * 多个事务修改同一个页时，拿到latch的顺序和写日志的顺序可能不同，所以都只往大改
+     * @param lsn 对应log记录的lsn,-1表示没有写日志
+     */
+    private void logged(long lsn) {
+        if(lsn<0)
+            return;
+        if(lsn>logSequenceNum)
+            logSequenceNum=lsn;
+        if(recoveryLSN<0)
+            recoveryLSN=lsn;
+        if(lsn>contens.getLong(pageLSNOffset()))
+            contens.setLong(pageLSNOffset(),lsn);
+    }
+
+    /**
+     * 页上保存的LSN：最近一次写了日志、并且已经反映在页上的修改，页从来没有这样的修改时为0。
+     * 和修改页面的线程同时读时应该持有latch
+     * @return
+     */
+    public long pageLSN() {
+        return contens.getLong(pageLSNOffset());
+    }
+
+    /**
+     * 页中可以存放记录的字节数，也就是page LSN之前的部分
+     * @return
+     */
+    public int payloadSize() {
+        return payloadSize(contens.size());
+    }
+
+    /**
+     * 块大小为blockSize时页中可以存放记录的字节数
+     * @param blockSize
+     * @return
+     */
+    public static int payloadSize(int blockSize) {
+        return blockSize-PAGE_LSN_SIZE;
+    }
+
+    private int pageLSNOffset() {
+        return payloadSize();
+    }
+
+    private void checkPayload(int offset, int size) {
+        if(offset<0 || offset+size>payloadSize())
+            throw new IllegalArgumentException("cannot write "+size+" bytes at offset "+offset
+                    +", pages hold "+payloadSize()+" bytes of records");
+    }
+
+    /**
+     * 在持有排它latch时调用，记录修改该页的事务，并登记到脏页表中
+     * @param txnum
+     */
+    private void markModified(int txnum) {
+        int oldTx=modifiedBy;
+        modifiedBy=txnum;
+        if(dirtyPageTable!=null && txnum>=0)
+            dirtyPageTable.dirtied(this,oldTx,txnum);
+    }
+
+    /**
+     * 在持有latch时调用，页已经写回磁盘，清除dirty标记
+     */
+    void markClean() {
+        int oldTx=modifiedBy;
+        modifiedBy=-1;  // 写回磁盘成功后，别忘了把dirty位重新置为-1
+        recoveryLSN=-1;
+        if(dirtyPageTable!=null && oldTx>=0)
+            dirtyPageTable.cleaned(this,oldTx);
+    }
+
+    /**
+     * 获取共享latch，持有期间其它线程也可以读这个页，但是不能修改
+     */
+    public void latchShared() {
+        latch.readLock().lock();
+    }
+
+    public void unlatchShared() {
+        latch.readLock().unlock();
+    }
+
+    /**
+     * 获取排它latch，持有期间其它线程既不能读也不能修改这个页
+     */
+    public void latchExclusive() {
+        latch.writeLock().lock();
+    }
+
+    public void unlatchExclusive() {
+        latch.writeLock().unlock();
     }
 
     /**
@@ -94,25 +276,64 @@ public class Buffer {
 
     /**
      * 如果该缓冲区对应的页是脏页（也就是被修改过），则写回到磁盘。
-     * 注意，在写回到磁盘前，必须将日志记录也追加到日志文件中
+     * 注意，在写回到磁盘前，必须将日志记录也追加到日志文件中。
+     * 日志通常早已写到了磁盘上，这时LogMgr.flush不做任何I/O。
+     * 写盘期间持有共享latch，读者不受影响，写者要等写盘结束
      */
     public void flush()
     {
-        if(modifiedBy>=0)
-        {
-            SimpleDB.getLogMgr().flush(logSequenceNum);
-            contens.write(blk);
-            modifiedBy=-1;  // 写回磁盘成功后，别忘了把dirty位重新置为-1
+        latchShared();
+        try {
+            if(modifiedBy>=0)
+            {
+                SimpleDB.getLogMgr().flush(logSequenceNum);
+                contens.write(blk);
+                markClean();
+            }
+        } finally {
+            unlatchShared();
         }
     }
 
+    /**
+     * 缓冲单元中的页，批量写回时由BufferMgr在持有共享latch期间使用
+     * @return
+     */
+    Page contents()
+    {
+        return contens;
+    }
+
+    /**
+     * 最近一次修改该页的日志记录的LSN，-1表示没有
+     * @return
+     */
+    long logSequenceNum()
+    {
+        return logSequenceNum;
+    }
+
+    /**
+     * 页变脏之后第一条修改它的日志记录的LSN，恢复时从这里开始重做这个页，-1表示页是干净的或者修改没有写日志
+     * @return
+     */
+    long recoveryLSN()
+    {
+        return recoveryLSN;
+    }
+
     void pin()
     {
-        pins++;
+        pins.incrementAndGet();
     }
     void unpin()
     {
-        pins--;
+        pins.decrementAndGet();
+    }
+
+    int pinCount()
+    {
+        return pins.get();
     }
 
     /**
@@ -121,7 +342,7 @@ public class Buffer {
      */
     boolean isPinned()
     {
-        return pins>0;
+        return pins.get()>0;
     }
 
     /**
@@ -135,29 +356,71 @@ public class Buffer {
     }
 
     /**
-     * 将指定块中的内容保存到缓冲区的页中。
-     * 如果当前页为脏页，必须将页中的当前内容写回到磁盘
+     * 返回当前缓冲区是否为脏页，不会阻塞在正在进行的I/O上
+     * @return
+     */
+    boolean isDirty()
+    {
+        return modifiedBy>=0;
+    }
+
+    /**
+     * 将缓冲区分配给指定的块，在所属分区的锁内调用。
+     * 这里只修改缓冲区的元数据，真正读盘的工作由{@link #load()}在锁外完成；
+     * 调用前分区必须保证缓冲区已经是干净的且没有被pin，因此这些字段由分区的锁保护
      * @param b
      */
     void assignToBlock(Block b)
     {
-        flush();
         blk=b;
-        contens.read(blk);
-        pins=0;
-    }
-    /**
-     * Initializes the buffer's page according to the specified formatter,
-     * and appends the page to the specified file.
-     * If the buffer was dirty, then the contents
-     * of the previous page are first written to disk.
-     * @param filename the name of the file
-     * @param fmtr a page formatter, used to initialize the page
-     */
-    public void assignToNew(String filename, PageFormatter fmtr) {
-        flush();
-        fmtr.format(contens);
-        blk=contens.append(filename);
-        pins=0;
+        pins.set(0);
+        loading=true;
+    }
+
+    /**
+     * 将块中的内容读到缓冲区的页中，在分区的锁之外调用。
+     * 读完之后唤醒等待该块内容的线程；读失败时缓冲区不再对应任何块
+     */
+    synchronized void load()
+    {
+        boolean loaded=false;
+        try {
+            contens.read(blk);
+            loaded=true;
+        } finally {
+            finishLoad(loaded);
+        }
+    }
+
+    /**
+     * 用内存中已有的内容代替读盘，比如pinNew刚格式化并追加到文件中的新块，在分区的锁之外调用
+     * @param p 和块的内容相同的页
+     */
+    synchronized void loadFrom(Page p)
+    {
+        contens.copyFrom(p);
+        finishLoad(true);
+    }
+
+    /**
+     * 块的内容已经由别处（比如预读时的批量读）读到了页中，唤醒等待的线程
+     * @param loaded 是否读盘成功，失败时缓冲区不再对应任何块
+     */
+    synchronized void finishLoad(boolean loaded)
+    {
+        if(!loaded)
+            blk=null;
+        loading=false;
+        notifyAll();
+    }
+
+    /**
+     * 等待其它线程将块的内容读到缓冲区中
+     * @throws InterruptedException
+     */
+    synchronized void waitUntilLoaded() throws InterruptedException
+    {
+        while (loading)
+            wait();
     }
 }
@@ -0,0 +1,93 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.server.SimpleDB;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @program: simpleDB
+ * @description: 缓冲池的性能测试，用法：
+ * java simpledb.buffer.BufferBenchmark [线程数] [缓冲池大小] [每个线程pin的次数]
+ **/
+public class BufferBenchmark {
+    private static final String FILE_NAME = "benchfile";
+    private static final int FILE_BLOCKS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int buffSize = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int pinsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        SimpleDB.BUFFER_SIZE = buffSize;
+        SimpleDB.init("benchDB");
+        Page page = new Page();
+        for (int i = 0; i < FILE_BLOCKS; i++)
+            page.write(new Block(FILE_NAME, i));
+
+        contention(SimpleDB.getBufferMgr(), threads, pinsPerThread);
+    }
+
+    /**
+     * 线程数远多于缓冲单元数时，每个线程反复pin一个随机块，持有一小段时间再unpin，
+     * 统计pin的延迟分布（包括在等待队列中排队的时间）
+     */
+    private static void contention(BufferMgr bufferMgr, int threads, int pinsPerThread) throws Exception {
+        long[][] latencies = new long[threads][pinsPerThread];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long[] myLatencies = latencies[t];
+            final Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < pinsPerThread; i++) {
+                    Block blk = new Block(FILE_NAME, random.nextInt(FILE_BLOCKS));
+                    long begin = System.nanoTime();
+                    Buffer buff;
+                    try {
+                        buff = bufferMgr.pin(blk);
+                    } catch (BufferAbortException e) {
+                        myLatencies[i] = System.nanoTime() - begin;
+                        continue;
+                    }
+                    myLatencies[i] = System.nanoTime() - begin;
+                    LockSupport.parkNanos(50_000);  // 模拟使用这个页
+                    bufferMgr.unpin(buff);
+                }
+            });
+            workers[t].start();
+        }
+        bufferMgr.resetStatistics();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - begin;
+
+        long[] all = new long[threads * pinsPerThread];
+        for (int t = 0; t < threads; t++)
+            System.arraycopy(latencies[t], 0, all, t * pinsPerThread, pinsPerThread);
+        Arrays.sort(all);
+        System.out.printf("threads=%d buffers=%d pins=%d elapsed=%.1fms throughput=%.0f pins/s%n",
+                threads, bufferMgr.available(), all.length, elapsed / 1e6, all.length / (elapsed / 1e9));
+        System.out.printf("pin latency p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n",
+                percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3,
+                percentile(all, 0.999) / 1e3, all[all.length - 1] / 1e3);
+        System.out.printf("hit ratio=%.3f waits=%d aborts=%d abort rate=%.5f%n",
+                bufferMgr.hitRatio(), bufferMgr.pinWaits(), bufferMgr.pinAborts(), bufferMgr.abortRate());
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb.buffer;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 后台写回脏页的线程。
+ * 每隔一段时间检查一次缓冲池，把unpinned的脏页按块的顺序写回磁盘，
+ * 写之前先把日志强制写到这些页的最大LSN（WAL）。
+ * 这样替换页面时大多能找到干净的页，pin不命中时就不用在前台同步写盘。
+ * <p>
+ * 只有系统空闲（一轮间隔内的pin请求不多）时才写，
+ * 除非脏页已经超过缓冲池的一半；每一轮最多写maxPages个页
+ * <p>
+ * 停止时不中断线程：写回中途被中断会导致正在读写的FileChannel被关闭，
+ * 而是等正在进行的一轮写完再返回，之后不会再有这个线程发出的写
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class BufferFlusher implements Runnable {
+    private final BufferMgr bufferMgr;
+    private final long intervalMillis;
+    private final int maxPages;
+    private final long idlePins;
+    private final Thread thread;
+    private boolean running = true;   // 由this的锁保护
+    private long lastPinRequests;
+    private AtomicLong pagesWritten = new AtomicLong();  // 已经写回的页数
+    private AtomicLong failures = new AtomicLong();      // 失败的轮数
+    private AtomicReference<RuntimeException> lastFailure = new AtomicReference<>();
+
+    BufferFlusher(BufferMgr bufferMgr, long intervalMillis, int maxPages, long idlePins) {
+        this.bufferMgr = bufferMgr;
+        this.intervalMillis = Math.max(1, intervalMillis);  // wait(0)会一直等下去
+        this.maxPages = maxPages;
+        this.idlePins = idlePins;
+        this.thread = new Thread(this, "simpledb-buffer-flusher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        lastPinRequests = bufferMgr.pinRequests();
+        thread.start();
+    }
+
+    /**
+     * 让线程退出并等它结束
+     */
+    void shutdown() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                if (!running)
+                    return;
+                try {
+                    wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (!running)
+                    return;
+            }
+            try {
+                flushRound();
+            } catch (RuntimeException e) {
+                // 写盘失败时不要让后台线程退出，下一轮再试，前台替换页面时也还会写
+                failures.incrementAndGet();
+                lastFailure.set(e);
+            }
+        }
+    }
+
+    /**
+     * 写回一轮脏页
+     *
+     * @return 这一轮写回的页数
+     */
+    int flushRound() {
+        long pins = bufferMgr.pinRequests();
+        boolean idle = pins - lastPinRequests <= idlePins;
+        lastPinRequests = pins;
+
+        List<Buffer> dirty = bufferMgr.unpinnedDirtyBuffers();
+        if (dirty.isEmpty() || (!idle && dirty.size() * 2 < bufferMgr.size()))
+            return 0;
+        if (dirty.size() > maxPages)
+            dirty = dirty.subList(0, maxPages);
+        BufferMgr.writeBack(dirty);
+        pagesWritten.addAndGet(dirty.size());
+        return dirty.size();
+    }
+
+    /**
+     * 后台线程写回的页数
+     *
+     * @return
+     */
+    public long pagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /**
+     * 写回失败的轮数
+     *
+     * @return
+     */
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * 最近一次写回失败的原因，没有失败过时返回null
+     *
+     * @return
+     */
+    public RuntimeException lastFailure() {
+        return lastFailure.get();
+    }
+}
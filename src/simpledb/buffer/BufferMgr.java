@@ -1,12 +1,29 @@
 package simpledb.buffer;
 
+import simpledb.file.AsyncFileMgr;
 import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.server.SimpleDB;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 缓冲池管理对象，对BasicBufferMgr进行了包装。
  * 提供的方法都类似，就是pin()和PinNew()不会返回null。
  * <p>
- * 此外，该类还维护了一个队列，当缓冲池满了，请求的线程会被放到队列中，等待时间为MAX_TIME
+ * 缓冲池被划分成若干个分区，每个分区是一个独立加锁的BasicBufferMgr，
+ * 块按照hash值落到某个分区中，不同分区上的pin/unpin互不阻塞，
+ * 因此该类本身不再持有全局的锁。
+ * <p>
+ * 当一个分区满了，请求的线程会按先来后到在该分区的等待队列上排队，默认最长等待时间为MAX_TIME，
+ * 超时则抛出BufferAbortException
  *
  * @program: simpleDB
  * @description:
@@ -16,80 +33,524 @@ import simpledb.file.Block;
 public class BufferMgr {
 
     private static final long MAX_TIME = 10000; // 最长等待时间
-    private BasicBufferMgr baiscBufferMgr;
+    // 自动确定分区数时，每个分区至少要有的缓冲单元数，避免小缓冲池被切得太碎
+    private static final int MIN_PARTITION_SIZE = 64;
+    private BasicBufferMgr[] partitions;
+    private LongAdder pinRequests = new LongAdder();  // pin请求数
+    private LongAdder pinWaits = new LongAdder();     // 需要排队等待的pin请求数
+    private LongAdder pinAborts = new LongAdder();    // 因为等待超时或被中断而失败的pin请求数
+    private int buffSize;
+    private DirtyPageTable dirtyPageTable = new DirtyPageTable();
+    private BufferFlusher flusher;  // 后台写回脏页的线程，没有启动时为null
+    private volatile Prefetcher prefetcher;  // 顺序预读，没有启动时为null
 
     public BufferMgr(int buffSize) {
-        baiscBufferMgr = new BasicBufferMgr(buffSize);
+        this(buffSize, "LRU");
     }
 
-    public synchronized Buffer pin(Block blk) {
-        try {
-            long timestamp = System.currentTimeMillis();
-            Buffer buff = baiscBufferMgr.pin(blk);
-            while (buff == null && !waitingTooLong(timestamp)) {
-                wait(MAX_TIME);  //
+    /**
+     * @param buffSize   缓冲池大小
+     * @param policyName 页替换策略，见{@link ReplacementPolicy#newInstance}
+     */
+    public BufferMgr(int buffSize, String policyName) {
+        this(buffSize, policyName, defaultPartitions(buffSize));
+    }
+
+    /**
+     * @param buffSize      缓冲池大小
+     * @param policyName    页替换策略，每个分区各自有一个策略对象
+     * @param partitionsNum 分区数
+     */
+    public BufferMgr(int buffSize, String policyName, int partitionsNum) {
+        this.buffSize = buffSize;
+        partitionsNum = Math.max(1, Math.min(partitionsNum, buffSize));
+        partitions = new BasicBufferMgr[partitionsNum];
+        for (int i = 0; i < partitionsNum; i++) {
+            // 缓冲单元尽量平均地分到各个分区
+            int size = buffSize / partitionsNum + (i < buffSize % partitionsNum ? 1 : 0);
+            partitions[i] = new BasicBufferMgr(size, ReplacementPolicy.newInstance(policyName, size), dirtyPageTable);
+        }
+    }
+
+    /**
+     * 默认的分区数：不超过CPU核数，并且每个分区至少有MIN_PARTITION_SIZE个缓冲单元
+     *
+     * @param buffSize
+     * @return
+     */
+    public static int defaultPartitions(int buffSize) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cpus, buffSize / MIN_PARTITION_SIZE));
+    }
+
+    public Buffer pin(Block blk) {
+        return pin(blk, MAX_TIME);
+    }
 
-                buff = baiscBufferMgr.pin(blk);
+    /**
+     * 将指定块pin到缓冲池中，分区满了则排队等待
+     *
+     * @param blk
+     * @param timeoutMillis 最长等待时间（毫秒）
+     * @return
+     * @throws BufferAbortException 等待超时或者被中断
+     */
+    public Buffer pin(Block blk, long timeoutMillis) {
+        return pin(blk, timeoutMillis, null);
+    }
+
+    /**
+     * @param blk
+     * @param timeoutMillis
+     * @param formatted     块不在缓冲池中时用来代替读盘的内容，null表示从磁盘读
+     * @return
+     */
+    private Buffer pin(Block blk, long timeoutMillis, Page formatted) {
+        pinRequests.increment();
+        BasicBufferMgr partition = partitionOf(blk);
+        try {
+            Buffer buff = partition.pin(blk, false, formatted);
+            if (buff != null) {
+                notifyPrefetcher(blk);
+                return buff;
+            }
+            pinWaits.increment();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            boolean woken = false;
+            while (buff == null) {
+                boolean reservedFrame = partition.awaitAvailable(deadline, woken);
+                if (!reservedFrame && System.nanoTime() - deadline >= 0)
+                    break;
+                woken = reservedFrame;
+                buff = partition.pin(blk, reservedFrame, formatted);
             }
             // 等待超时
-            if (buff == null)
+            if (buff == null) {
+                pinAborts.increment();
                 throw new BufferAbortException();
+            }
+            notifyPrefetcher(blk);
             return buff;
         } catch (InterruptedException e) {
+            pinAborts.increment();
             throw new BufferAbortException();
         }
     }
 
     /**
      * unpin具体的缓冲单元，如果unpin后该缓冲单元的pin count=0，
-     * 则通知唤醒等待队列上的进程
+     * 则通知唤醒该分区上等待的线程
      *
      * @param buffer
      */
-    public synchronized void unpin(Buffer buffer) {
-        baiscBufferMgr.unpin(buffer);
-        if (!buffer.isPinned()) {
-            notifyAll();
+    public void unpin(Buffer buffer) {
+        partitionOf(buffer.block()).unpin(buffer);
+    }
+
+    /**
+     * 将指定事务相关的所有脏缓冲页写回磁盘。
+     * 脏页表中记录了每个事务的脏页，所以开销只和该事务修改过的页数有关，和缓冲池大小无关；
+     * 日志只强制写一次，然后按块的顺序写回这些页
+     */
+    public void flushAll(int txNum) {
+        List<Buffer> buffs = dirtyPageTable.buffersModifiedBy(txNum);
+        buffs.removeIf(b -> !b.isModifiedBy(txNum));
+        writeBack(buffs);
+    }
+
+    /**
+     * 启动后台写回线程，见{@link BufferFlusher}
+     *
+     * @param intervalMillis 每隔多久检查一次脏页
+     * @param maxPages       每一轮最多写回多少个页，用来限制后台写盘的速度
+     * @param idlePins       一轮间隔内的pin请求数不超过该值时认为系统空闲
+     */
+    public synchronized void startFlusher(long intervalMillis, int maxPages, long idlePins) {
+        if (flusher != null)
+            return;
+        flusher = new BufferFlusher(this, intervalMillis, maxPages, idlePins);
+        flusher.start();
+    }
+
+    /**
+     * 停止后台写回线程，正在进行的一轮写回会做完
+     */
+    public void stopFlusher() {
+        BufferFlusher f;
+        synchronized (this) {
+            f = flusher;
+            flusher = null;
         }
+        if (f != null)
+            f.shutdown();
+    }
 
+    /**
+     * 后台写回线程，没有启动时返回null
+     *
+     * @return
+     */
+    public synchronized BufferFlusher flusher() {
+        return flusher;
     }
 
     /**
-     * 将指定事务相关的所有脏缓冲页写回磁盘
+     * 启动顺序预读，见{@link Prefetcher}。
+     * 预读的块数不超过缓冲池的1/4，避免预读把缓冲池占满
+     *
+     * @param depth          每次预读的块数
+     * @param maxOutstanding 同时进行的预读I/O的最大个数
      */
-    public void flushAll(int txNum) {
-        baiscBufferMgr.flushAll(txNum);
+    public synchronized void startPrefetcher(int depth, int maxOutstanding) {
+        depth = Math.min(depth, buffSize / 4);
+        if (prefetcher != null || depth < 1 || maxOutstanding < 1)
+            return;
+        prefetcher = new Prefetcher(this, depth, maxOutstanding);
     }
 
     /**
-     * 得到缓冲池中可用的缓存单元数量
+     * 停止顺序预读，已经发出的预读会正常完成
+     */
+    public synchronized void stopPrefetcher() {
+        prefetcher = null;
+    }
+
+    /**
+     * 顺序预读，没有启动时返回null
      *
      * @return
      */
-    public int available() {
-        return baiscBufferMgr.getNumAvailable();
+    public Prefetcher prefetcher() {
+        return prefetcher;
     }
 
-    private synchronized Buffer pinNew(String fileName, PageFormatter fmtr) {
+    private void notifyPrefetcher(Block blk) {
+        Prefetcher p = prefetcher;
+        if (p != null)
+            p.pinned(blk);
+    }
+
+    /**
+     * 把文件中[from, to]范围内还不在缓冲池中的块异步地批量读入缓冲池，但不pin它们。
+     * 在各个分区中先占好缓冲单元，然后提交一次异步批量读，连续的块一起读进来
+     *
+     * @param fileName
+     * @param from
+     * @param to
+     * @return 读完时完成
+     */
+    CompletableFuture<Void> prefetch(String fileName, int from, int to) {
+        List<Block> blks = new ArrayList<>(to - from + 1);
+        List<Buffer> buffs = new ArrayList<>(to - from + 1);
+        for (int n = from; n <= to; n++) {
+            Block blk = new Block(fileName, n);
+            Buffer buff = partitionOf(blk).claimForPrefetch(blk);
+            if (buff != null) {
+                blks.add(blk);
+                buffs.add(buff);
+            }
+        }
+        if (buffs.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        Page[] pages = new Page[buffs.size()];
+        for (int i = 0; i < pages.length; i++)
+            pages[i] = buffs.get(i).contents();
+        CompletableFuture<Void> io;
         try {
-            long timestamp = System.currentTimeMillis();
-            Buffer buff = baiscBufferMgr.pinNew(fileName, fmtr);
-            while (buff == null && !waitingTooLong(timestamp)) {
-                wait(MAX_TIME);  //
+            io = Page.readBatchAsync(blks.toArray(new Block[0]), pages);
+        } catch (RuntimeException e) {
+            io = new CompletableFuture<>();
+            io.completeExceptionally(e);
+        }
+        return io.whenComplete((v, e) -> {
+            boolean loaded = e == null;
+            for (int i = 0; i < buffs.size(); i++) {
+                buffs.get(i).finishLoad(loaded);
+                partitionOf(blks.get(i)).prefetchDone(buffs.get(i), blks.get(i), loaded);
+            }
+        });
+    }
+
+    /**
+     * 找出所有unpinned的脏页
+     *
+     * @return
+     */
+    List<Buffer> unpinnedDirtyBuffers() {
+        List<Buffer> dirty = new ArrayList<>();
+        for (BasicBufferMgr partition : partitions)
+            partition.collectUnpinnedDirty(dirty);
+        return dirty;
+    }
 
-                buff = baiscBufferMgr.pinNew(fileName, fmtr);
+    /**
+     * 脏页表的一个快照：每个写过日志的脏页，以及页变脏之后第一条修改它的日志记录（recLSN）。
+     * 快照是模糊的，不阻塞整个缓冲池，但是每个缓冲单元都在共享latch下读：
+     * 用{@link Buffer#setInt(int, int, int, java.util.function.LongSupplier)}修改的页，
+     * 写日志和修改页面都在排它latch内，这次修改要么在读这个页之前完成、出现在快照中，
+     * 要么它的日志记录在读这个页之后才写，也就晚于调用之前写的检查点开始记录
+     *
+     * @return 块到recLSN的映射
+     */
+    public Map<Block, Long> dirtyPages() {
+        List<Buffer> buffs = new ArrayList<>();
+        for (BasicBufferMgr partition : partitions)
+            partition.collectAll(buffs);
+        Map<Block, Long> pages = new HashMap<>();
+        for (Buffer b : buffs) {
+            Block blk;
+            long recLSN;
+            b.latchShared();
+            try {
+                blk = b.block();
+                recLSN = b.recoveryLSN();
+            } finally {
+                b.unlatchShared();
             }
-            // 等待超时
-            if (buff == null)
-                throw new BufferAbortException();
-            return buff;
-        } catch (InterruptedException e) {
-            throw new BufferAbortException();
+            if (blk != null && recLSN >= 0)
+                pages.merge(blk, recLSN, Math::min);
         }
+        return pages;
     }
 
+    /**
+     * 写回recLSN早于lsn的脏页，包括被pin住的页。
+     * 检查点用它把长时间没有写回的页写到磁盘上，恢复时需要重做的日志就不会越来越长
+     *
+     * @param lsn
+     * @return 写回的页数
+     */
+    public int flushOlderThan(long lsn) {
+        List<Buffer> dirty = new ArrayList<>();
+        for (BasicBufferMgr partition : partitions)
+            partition.collectDirty(dirty);
+        dirty.removeIf(b -> b.recoveryLSN() < 0 || b.recoveryLSN() >= lsn);
+        writeBack(dirty);
+        return dirty.size();
+    }
 
-    private boolean waitingTooLong(long starttime) {
-        return (System.currentTimeMillis() - starttime) > MAX_TIME;
+    /**
+     * 批量写回一组缓冲单元：按块的顺序获取它们的共享latch，
+     * 先把日志一次性强制写到这些页中最大的LSN，再用一次异步批量写把所有脏页写回，
+     * 同一个文件中连续的块会合并成一次系统调用，不连续的各段在多个I/O线程上同时写，见{@link Page#writeBatchAsync}。
+     * latch只能由获取它的线程释放，所以这里等所有的写都完成再返回
+     *
+     * @param buffs
+     */
+    static void writeBack(List<Buffer> buffs) {
+        if (buffs.isEmpty())
+            return;
+        // 先给块拍个快照再排序，排序期间缓冲单元可能被重新分配
+        List<FlushEntry> ordered = new ArrayList<>(buffs.size());
+        for (Buffer b : buffs) {
+            Block blk = b.block();
+            if (blk == null)
+                continue;
+            ordered.add(new FlushEntry(blk, b));
+        }
+        // 总是按同样的顺序获取latch，并发的批量写回之间不会死锁
+        ordered.sort(FlushEntry.BLOCK_ORDER);
+        List<Buffer> latched = new ArrayList<>(ordered.size());
+        try {
+            List<Buffer> dirty = new ArrayList<>(ordered.size());
+            long maxLsn = -1;
+            for (FlushEntry e : ordered) {
+                e.buff.latchShared();
+                latched.add(e.buff);
+                // 拿到latch之后再检查，这期间可能已经被其它线程写回了
+                if (e.buff.isDirty()) {
+                    dirty.add(e.buff);
+                    maxLsn = Math.max(maxLsn, e.buff.logSequenceNum());
+                }
+            }
+            if (dirty.isEmpty())
+                return;
+            if (maxLsn >= 0)
+                SimpleDB.getLogMgr().flush(maxLsn);
+            Block[] blks = new Block[dirty.size()];
+            Page[] pages = new Page[dirty.size()];
+            for (int i = 0; i < blks.length; i++) {
+                blks[i] = dirty.get(i).block();
+                pages[i] = dirty.get(i).contents();
+            }
+            AsyncFileMgr.await(Page.writeBatchAsync(blks, pages));
+            for (Buffer b : dirty)
+                b.markClean();
+        } finally {
+            for (Buffer b : latched)
+                b.unlatchShared();
+        }
+    }
+
+    /**
+     * 缓冲池的大小
+     *
+     * @return
+     */
+    public int size() {
+        return buffSize;
+    }
+
+    /**
+     * 得到缓冲池中可用的缓存单元数量
+     *
+     * @return
+     */
+    public int available() {
+        int available = 0;
+        for (BasicBufferMgr partition : partitions)
+            available += partition.getNumAvailable();
+        return available;
+    }
+
+    /**
+     * pin时块已经在缓冲池中的次数
+     *
+     * @return
+     */
+    public long hits() {
+        long hits = 0;
+        for (BasicBufferMgr partition : partitions)
+            hits += partition.getHits();
+        return hits;
+    }
+
+    /**
+     * pin时需要从磁盘读入块的次数
+     *
+     * @return
+     */
+    public long misses() {
+        long misses = 0;
+        for (BasicBufferMgr partition : partitions)
+            misses += partition.getMisses();
+        return misses;
+    }
+
+    /**
+     * 预读进缓冲池的块数
+     *
+     * @return
+     */
+    public long prefetches() {
+        long prefetches = 0;
+        for (BasicBufferMgr partition : partitions)
+            prefetches += partition.getPrefetches();
+        return prefetches;
+    }
+
+    /**
+     * 预读的块在被换出之前被pin到的次数
+     *
+     * @return
+     */
+    public long prefetchHits() {
+        long prefetchHits = 0;
+        for (BasicBufferMgr partition : partitions)
+            prefetchHits += partition.getPrefetchHits();
+        return prefetchHits;
+    }
+
+    /**
+     * pin请求总数
+     *
+     * @return
+     */
+    public long pinRequests() {
+        return pinRequests.sum();
+    }
+
+    /**
+     * 因为缓冲池满了而需要排队的pin请求数
+     *
+     * @return
+     */
+    public long pinWaits() {
+        return pinWaits.sum();
+    }
+
+    /**
+     * 抛出BufferAbortException的pin请求数
+     *
+     * @return
+     */
+    public long pinAborts() {
+        return pinAborts.sum();
+    }
+
+    /**
+     * pin请求中以BufferAbortException失败的比例，还没有pin过则返回0
+     *
+     * @return
+     */
+    public double abortRate() {
+        long requests = pinRequests();
+        return requests == 0 ? 0 : (double) pinAborts() / requests;
+    }
+
+    /**
+     * 缓冲池命中率，还没有pin过则返回0
+     *
+     * @return
+     */
+    public double hitRatio() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * 将命中/未命中以及pin等待的计数清零，方便分段统计
+     */
+    public void resetStatistics() {
+        for (BasicBufferMgr partition : partitions)
+            partition.resetStatistics();
+        pinRequests.reset();
+        pinWaits.reset();
+        pinAborts.reset();
+    }
+
+    /**
+     * 在指定文件中追加一个按fmtr格式化好的新块，并pin住它。
+     * 新块的块号只有追加之后才知道，所以先在一个临时页上格式化并追加，再按块号到对应的分区中pin，
+     * pin时直接把格式化好的内容复制到缓冲单元中，不用再从磁盘读回来
+     *
+     * @param fileName
+     * @param fmtr
+     * @return
+     */
+    private Buffer pinNew(String fileName, PageFormatter fmtr) {
+        Page page = new Page();
+        fmtr.format(page);
+        if (page.getLong(Buffer.payloadSize(page.size())) != 0)
+            throw new IllegalArgumentException("page formatter wrote into the page LSN");
+        Block blk = page.append(fileName);
+        return pin(blk, MAX_TIME, page);
+    }
+
+    /**
+     * 块所在的分区
+     *
+     * @param blk
+     * @return
+     */
+    private BasicBufferMgr partitionOf(Block blk) {
+        return partitions[(blk.hashCode() & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    /**
+     * 待写回的缓冲单元以及它当时对应的块
+     */
+    private static class FlushEntry {
+        static final Comparator<FlushEntry> BLOCK_ORDER =
+                Comparator.comparing((FlushEntry e) -> e.blk.getFileNama()).thenComparingInt(e -> e.blk.getBlockNum());
+
+        final Block blk;
+        final Buffer buff;
+
+        FlushEntry(Block blk, Buffer buff) {
+            this.blk = blk;
+            this.buff = buff;
+        }
     }
 }
@@ -6,6 +6,22 @@ import simpledb.file.Page;
 import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 
+import static simpledb.file.Page.INT_SIZE;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @program: simpleDB
  * @description:
@@ -13,7 +29,7 @@ import simpledb.server.SimpleDB;
  * @create: 2019-07-05 20:27
  **/
 public class BufferTest {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         SimpleDB.init("studentDB");
 
 
@@ -39,10 +55,277 @@ public class BufferTest {
 
         int myTxNum=1;
         Object[] logRec=new Object[]{"junk",0,50,str};
-        int lsn=logMgr.append(logRec);
+        long lsn=logMgr.append(logRec);
         buff.setString(50,"world",myTxNum,lsn);
         bufferMgr.flushAll(myTxNum);
+        if (buff.isDirty())
+            throw new RuntimeException("flushAll should write back the pages of the transaction");
         bufferMgr.unpin(buff);
 
+        testReplacementPolicies();
+        testRepeatPinHit(bufferMgr, blk);
+        testReservedFrame();
+        testSharedLatch(bufferMgr, blk);
+        testBackgroundFlush(bufferMgr, logMgr, blk);
+        testPrefetch();
+        testPrefetchWithDirtyFrames();
+        testPageFormat(bufferMgr, blk);
+    }
+
+    /**
+     * 每种替换策略都只能选出unpinned的缓冲单元，并且选出之后又通过unpinned还回来的替换对象还能再被选中
+     */
+    private static void testReplacementPolicies() {
+        int n = 8;
+        for (String name : new String[]{"LRU", "CLOCK", "LRU-K", "2Q"}) {
+            ReplacementPolicy policy = ReplacementPolicy.newInstance(name, n);
+            Buffer[] buffs = new Buffer[n];
+            for (int i = 0; i < n; i++) {
+                buffs[i] = new Buffer();
+                buffs[i].assignToBlock(new Block("policy", i));
+                buffs[i].pin();
+                policy.pinned(buffs[i]);
+            }
+            for (int i = 0; i < n; i += 2) {
+                buffs[i].unpin();
+                policy.unpinned(buffs[i]);
+            }
+            Set<Buffer> chosen = new HashSet<>();
+            Buffer victim;
+            while ((victim = policy.chooseVictim()) != null) {
+                if (victim.isPinned() || !chosen.add(victim))
+                    throw new RuntimeException(name + " chose a pinned or already chosen buffer");
+            }
+            if (chosen.size() != n / 2)
+                throw new RuntimeException(name + " chose " + chosen.size() + " of " + n / 2 + " unpinned buffers");
+            policy.unpinned(buffs[0]);
+            if (policy.chooseVictim() != buffs[0])
+                throw new RuntimeException(name + " lost a victim handed back through unpinned()");
+        }
+        testTwoQueueReturnedVictim();
+        System.out.println("replacement policies: ok");
+    }
+
+    /**
+     * 2Q选出的替换对象在写回期间又被pin了，块没有被换出，不能记到A1out中，
+     * 否则它会被当作换出后又访问的热块直接进入Am
+     */
+    private static void testTwoQueueReturnedVictim() {
+        int n = 8;   // A1in的目标长度是2
+        ReplacementPolicy policy = ReplacementPolicy.newInstance("2Q", n);
+        Buffer[] buffs = new Buffer[4];
+        for (int i = 0; i < buffs.length; i++) {
+            buffs[i] = new Buffer();
+            buffs[i].assignToBlock(new Block("twoq", i));
+            buffs[i].pin();
+            policy.pinned(buffs[i]);
+            buffs[i].unpin();
+            policy.unpinned(buffs[i]);
+        }
+        Buffer victim = policy.chooseVictim();
+        victim.pin();
+        policy.pinned(victim);
+        victim.unpin();
+        policy.unpinned(victim);
+        // 它回到了A1in的尾部，应该最后一个被选中
+        for (int i = 1; i < buffs.length; i++) {
+            if (policy.chooseVictim() != buffs[i])
+                throw new RuntimeException("2Q promoted a victim that was re-pinned before eviction");
+        }
+        if (victim != buffs[0] || policy.chooseVictim() != buffs[0])
+            throw new RuntimeException("2Q lost the re-pinned victim");
+    }
+
+    /**
+     * 顺序pin一个文件的块时，后面的块应该被预读进来，并且内容正确
+     */
+    private static void testPrefetch() throws Exception {
+        int blocks = 40;
+        Page page = new Page();
+        for (int i = 0; i < blocks; i++) {
+            page.setInt(0, i);
+            page.write(new Block("prefetch", i));
+        }
+        BufferMgr bufferMgr = new BufferMgr(64, "LRU", 1);
+        bufferMgr.startPrefetcher(8, 2);
+        for (int i = 0; i < blocks; i++) {
+            Buffer buff = bufferMgr.pin(new Block("prefetch", i));
+            if (buff.getInt(0) != i)
+                throw new RuntimeException("prefetched block " + i + " has wrong contents");
+            bufferMgr.unpin(buff);
+            Thread.sleep(2);  // 给预读线程一点时间
+        }
+        bufferMgr.stopPrefetcher();
+        System.out.println("prefetched " + bufferMgr.prefetches() + " blocks, used " + bufferMgr.prefetchHits());
+        if (bufferMgr.prefetchHits() == 0)
+            throw new RuntimeException("sequential pins should hit prefetched blocks");
+    }
+
+    /**
+     * 空出来的缓冲单元预留给了排队的线程之后，其它线程命中一个unpinned的块也不能占用它
+     */
+    private static void testReservedFrame() throws Exception {
+        Page page = new Page();
+        Block[] blks = new Block[3];
+        for (int i = 0; i < blks.length; i++) {
+            blks[i] = new Block("reserve", i);
+            page.write(blks[i]);
+        }
+        BasicBufferMgr partition = new BasicBufferMgr(2, ReplacementPolicy.newInstance("LRU", 2), null);
+        Buffer b0 = partition.pin(blks[0], false, null);
+        Buffer b1 = partition.pin(blks[1], false, null);
+        boolean[] woken = new boolean[1];
+        Thread waiter = new Thread(() -> {
+            try {
+                woken[0] = partition.awaitAvailable(System.nanoTime() + TimeUnit.SECONDS.toNanos(5), false);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+        partition.unpin(b1);  // 空出来的缓冲单元预留给waiter
+        waiter.join();
+        boolean stolen = partition.pin(blks[1], false, null) != null;
+        // 轮到waiter了
+        Buffer b2 = partition.pin(blks[2], true, null);
+        System.out.println("reserved frame kept for the waiter: " + (!stolen && b2 != null));
+        if (!woken[0] || stolen || b2 == null)
+            throw new RuntimeException("a hit on an unpinned block took the frame reserved for a waiter");
+        partition.unpin(b2);
+        partition.unpin(b0);
+    }
+
+    /**
+     * 2Q策略下，预读选到脏的替换对象时会把它还给替换策略，缓冲池不能因此变小
+     */
+    private static void testPrefetchWithDirtyFrames() throws Exception {
+        int size = 16;
+        String file = "prefetchdirty";
+        Page page = new Page();
+        for (int i = 0; i < 5 * size; i++) {
+            page.setInt(0, i);
+            page.write(new Block(file, i));
+        }
+        BufferMgr bufferMgr = new BufferMgr(size, "2Q", 1);
+        // 先让所有的缓冲单元都变成脏页
+        for (int i = 0; i < size; i++) {
+            Buffer buff = bufferMgr.pin(new Block(file, i));
+            buff.setInt(4, i, 3, -1);
+            bufferMgr.unpin(buff);
+        }
+        bufferMgr.startPrefetcher(4, 1);
+        Prefetcher prefetcher = bufferMgr.prefetcher();
+        for (int i = size; i < 4 * size; i++) {
+            Buffer buff = bufferMgr.pin(new Block(file, i), 1000);
+            if (buff.getInt(0) != i)
+                throw new RuntimeException("block " + i + " has wrong contents");
+            bufferMgr.unpin(buff);
+            Thread.sleep(2);
+        }
+        bufferMgr.stopPrefetcher();
+        // 所有的缓冲单元都应该还能同时装入不在缓冲池中的块
+        List<Buffer> pinned = new ArrayList<>();
+        for (int i = 4 * size; i < 5 * size; i++)
+            pinned.add(bufferMgr.pin(new Block(file, i), 1000));
+        for (Buffer buff : pinned)
+            bufferMgr.unpin(buff);
+        System.out.println("prefetch with dirty frames under 2Q: prefetched " + bufferMgr.prefetches()
+                + ", " + bufferMgr.available() + " of " + size + " frames available");
+        if (bufferMgr.available() != size || prefetcher.failures() != 0)
+            throw new RuntimeException("prefetching over dirty frames leaked frames or failed");
+    }
+
+    /**
+     * 记录不能写到页末尾的page LSN上；有数据文件却没有记录页格式的旧数据库不能打开。
+     * 最后一个测试，之后SimpleDB不再可用
+     */
+    private static void testPageFormat(BufferMgr bufferMgr, Block blk) throws Exception {
+        Buffer buff = bufferMgr.pin(blk);
+        int payload = buff.payloadSize();
+        buff.setInt(payload - INT_SIZE, 7, 1, -1);
+        boolean refused = false;
+        try {
+            buff.setInt(payload - INT_SIZE + 1, 7, 1, -1);
+        } catch (IllegalArgumentException e) {
+            refused = true;
+        }
+        bufferMgr.unpin(buff);
+        if (!refused || payload != Buffer.payloadSize(SimpleDB.getFileMgr().blockSize()))
+            throw new RuntimeException("writes into the page LSN should be refused");
+
+        // 在page LSN之前创建的数据库：有数据文件，头文件中没有页格式
+        Path dir = Paths.get(System.getProperty("user.home"), "legacyPageDB");
+        Files.createDirectories(dir);
+        Files.deleteIfExists(dir.resolve(FileMgr.HEADER_FILE));
+        Files.write(dir.resolve("student.tbl"), new byte[SimpleDB.BLOCK_SIZE]);
+        refused = false;
+        try {
+            SimpleDB.init("legacyPageDB");
+        } catch (RuntimeException e) {
+            refused = true;
+            System.out.println("legacy page format: " + e.getMessage());
+        }
+        if (!refused)
+            throw new RuntimeException("a database without a page format should be refused");
+    }
+
+    /**
+     * unpin之后的脏页应该被后台线程写回磁盘
+     */
+    private static void testBackgroundFlush(BufferMgr bufferMgr, LogMgr logMgr, Block blk) throws Exception {
+        Buffer buff = bufferMgr.pin(blk);
+        long lsn = logMgr.append(new Object[]{"junk", 0, 20, buff.getInt(20)});
+        buff.setInt(20, buff.getInt(20) + 1, 2, lsn);
+        bufferMgr.unpin(buff);
+        for (int i = 0; i < 50 && buff.isDirty(); i++)
+            Thread.sleep(SimpleDB.FLUSH_INTERVAL);
+        System.out.println("flushed in background: " + !buff.isDirty());
+        if (buff.isDirty())
+            throw new RuntimeException("dirty page should be written back by the flusher");
+    }
+
+    /**
+     * 两个线程应该能同时持有同一个缓冲单元的共享latch
+     */
+    private static void testSharedLatch(BufferMgr bufferMgr, Block blk) throws Exception {
+        Buffer buff = bufferMgr.pin(blk);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        Callable<Integer> reader = () -> {
+            buff.latchShared();
+            try {
+                // 如果读者之间互斥，另一个线程永远到不了barrier
+                barrier.await(5, TimeUnit.SECONDS);
+                return buff.getInt(20);
+            } finally {
+                buff.unlatchShared();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> r1 = executor.submit(reader);
+            Future<Integer> r2 = executor.submit(reader);
+            System.out.println("concurrent readers: " + r1.get() + " " + r2.get());
+        } finally {
+            executor.shutdown();
+            bufferMgr.unpin(buff);
+        }
+    }
+
+    /**
+     * 重复pin一个已经在缓冲池中的块，应该命中同一个缓冲单元，且只占用一个缓冲单元
+     */
+    private static void testRepeatPinHit(BufferMgr bufferMgr, Block blk) {
+        int available = bufferMgr.available();
+        Buffer b1 = bufferMgr.pin(blk);
+        long hits = bufferMgr.hits();
+        Buffer b2 = bufferMgr.pin(new Block(blk.getFileNama(), blk.getBlockNum()));
+        boolean hit = b1 == b2 && bufferMgr.available() == available - 1 && bufferMgr.hits() == hits + 1;
+        System.out.println("repeat pin hit: " + hit);
+        bufferMgr.unpin(b2);
+        bufferMgr.unpin(b1);
+        if (!hit || bufferMgr.available() != available)
+            throw new RuntimeException("repeat pin of a resident block should be a hit");
     }
 }
@@ -0,0 +1,98 @@
+package simpledb.buffer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 时钟（Clock，又称second chance）替换策略。
+ * unpinned的缓冲单元围成一个环，每个单元有一个引用位；
+ * 选替换对象时指针沿环转动，引用位为1的清零后跳过，遇到第一个引用位为0的单元就替换它。
+ * <p>
+ * 缓冲单元被pin时离开环，unpin时带着置位的引用位重新插到指针的后面，也就是指针最后才会转到的位置，
+ * 环上只有可以被替换的单元，指针不用跳过pinned的单元，最多转一圈就能找到替换对象
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class ClockPolicy implements ReplacementPolicy {
+    // 缓冲单元 -> 它在环上的结点，结点在缓冲单元离开环之后留着复用
+    private Map<Buffer, Node> nodes = new HashMap<>();
+    private Node hand = null;  // 指针，环为空时为null
+
+    @Override
+    public void pinned(Buffer buff) {
+        Node node = nodes.get(buff);
+        if (node != null && node.inRing)
+            remove(node);
+    }
+
+    @Override
+    public void unpinned(Buffer buff) {
+        // 选出来又还回来的替换对象也从这里回到环上
+        Node node = nodes.computeIfAbsent(buff, Node::new);
+        if (node.inRing)
+            return;
+        node.ref = true;
+        insert(node);
+    }
+
+    @Override
+    public Buffer chooseVictim() {
+        if (hand == null)
+            return null;
+        // 第一圈最多把所有的引用位清掉一遍，然后一定能停下来
+        while (hand.ref) {
+            hand.ref = false;
+            hand = hand.next;
+        }
+        Node victim = hand;
+        remove(victim);
+        return victim.buff;
+    }
+
+    /**
+     * 插到指针的前面，指针转一圈之后才会轮到它
+     */
+    private void insert(Node node) {
+        if (hand == null) {
+            node.prev = node;
+            node.next = node;
+            hand = node;
+        } else {
+            node.next = hand;
+            node.prev = hand.prev;
+            hand.prev.next = node;
+            hand.prev = node;
+        }
+        node.inRing = true;
+    }
+
+    private void remove(Node node) {
+        if (node.next == node) {
+            hand = null;
+        } else {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            if (hand == node)
+                hand = node.next;
+        }
+        node.prev = null;
+        node.next = null;
+        node.inRing = false;
+    }
+
+    /**
+     * 环上的一个结点
+     */
+    private static class Node {
+        final Buffer buff;
+        Node prev;
+        Node next;
+        boolean ref;     // 引用位
+        boolean inRing;  // 是否在环上（即缓冲单元是否unpinned）
+
+        Node(Buffer buff) {
+            this.buff = buff;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 脏页表：记录每个事务修改过、还没有写回磁盘的缓冲单元。
+ * 缓冲单元在被修改和被写回时更新这张表，
+ * 这样提交时只需要处理该事务自己的脏页，不用扫描整个缓冲池
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+class DirtyPageTable {
+    private final ConcurrentHashMap<Integer, Set<Buffer>> buffersByTx = new ConcurrentHashMap<>();
+
+    /**
+     * 缓冲单元被事务newTx修改，之前是被oldTx修改的（-1表示之前是干净的）
+     *
+     * @param buff
+     * @param oldTx
+     * @param newTx
+     */
+    void dirtied(Buffer buff, int oldTx, int newTx) {
+        if (oldTx == newTx)
+            return;
+        if (oldTx >= 0)
+            cleaned(buff, oldTx);
+        buffersByTx.compute(newTx, (tx, buffs) -> {
+            if (buffs == null)
+                buffs = ConcurrentHashMap.newKeySet();
+            buffs.add(buff);
+            return buffs;
+        });
+    }
+
+    /**
+     * 被事务tx修改过的缓冲单元已经写回磁盘
+     *
+     * @param buff
+     * @param tx
+     */
+    void cleaned(Buffer buff, int tx) {
+        buffersByTx.computeIfPresent(tx, (t, buffs) -> {
+            buffs.remove(buff);
+            return buffs.isEmpty() ? null : buffs;
+        });
+    }
+
+    /**
+     * 事务tx修改过、还没有写回的缓冲单元
+     *
+     * @param tx
+     * @return
+     */
+    List<Buffer> buffersModifiedBy(int tx) {
+        Set<Buffer> buffs = buffersByTx.get(tx);
+        return buffs == null ? new ArrayList<>() : new ArrayList<>(buffs);
+    }
+}
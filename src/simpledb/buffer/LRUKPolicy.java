@@ -0,0 +1,96 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LRU-K替换策略（O'Neil等，1993）。
+ * 为每个块记录最近K次被访问的（逻辑）时间，替换时选择倒数第K次访问最早的块，
+ * 也就是backward K-distance最大的块；访问次数不足K次的块的K-distance视为无穷大，
+ * 它们之间按最近一次访问时间做LRU。
+ * 块的访问历史在块被换出之后仍会保留一段时间，以便识别那些周期性被访问的块
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class LRUKPolicy implements ReplacementPolicy {
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock = 0;  // 逻辑时钟，每pin一次加1
+    // 块 -> 最近K次访问时间，history[0]为最近一次
+    private final Map<Block, long[]> history;
+    // unpinned的候选单元，按 (倒数第K次访问时间, 最近一次访问时间) 从小到大排序
+    private final TreeMap<Key, Buffer> candidates = new TreeMap<>();
+    private final Map<Buffer, Key> candidateKeys = new HashMap<>();
+
+    public LRUKPolicy(int k, int buffsNum) {
+        this.k = k;
+        // 只保留有限数量块的访问历史
+        final int retained = Math.max(16, buffsNum * 2);
+        this.history = new LinkedHashMap<Block, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Block, long[]> eldest) {
+                return size() > retained;
+            }
+        };
+    }
+
+    @Override
+    public void pinned(Buffer buff) {
+        Key key = candidateKeys.remove(buff);
+        if (key != null)
+            candidates.remove(key);
+        long[] times = history.get(buff.block());
+        if (times == null) {
+            times = new long[k];
+            history.put(buff.block(), times);
+        }
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = ++clock;
+    }
+
+    @Override
+    public void unpinned(Buffer buff) {
+        long[] times = history.get(buff.block());
+        Key key = times == null
+                ? new Key(0, 0, ++clock)
+                : new Key(times[k - 1], times[0], ++clock);
+        candidates.put(key, buff);
+        candidateKeys.put(buff, key);
+    }
+
+    @Override
+    public Buffer chooseVictim() {
+        Map.Entry<Key, Buffer> first = candidates.pollFirstEntry();
+        if (first == null)
+            return null;
+        candidateKeys.remove(first.getValue());
+        return first.getValue();
+    }
+
+    private static class Key implements Comparable<Key> {
+        final long kthTime;
+        final long lastTime;
+        final long seq;  // 保证key唯一
+
+        Key(long kthTime, long lastTime, long seq) {
+            this.kthTime = kthTime;
+            this.lastTime = lastTime;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            if (kthTime != o.kthTime)
+                return Long.compare(kthTime, o.kthTime);
+            if (lastTime != o.lastTime)
+                return Long.compare(lastTime, o.lastTime);
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
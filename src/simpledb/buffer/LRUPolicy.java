@@ -0,0 +1,35 @@
+package simpledb.buffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * 最近最少使用（LRU）替换策略：替换最早被unpin的缓冲单元
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class LRUPolicy implements ReplacementPolicy {
+    // 所有unpinned的缓冲单元，按照unpin的先后排序，最早unpin的在最前面
+    private LinkedHashSet<Buffer> unpinnedBuffers = new LinkedHashSet<>();
+
+    @Override
+    public void pinned(Buffer buff) {
+        unpinnedBuffers.remove(buff);
+    }
+
+    @Override
+    public void unpinned(Buffer buff) {
+        unpinnedBuffers.add(buff);
+    }
+
+    @Override
+    public Buffer chooseVictim() {
+        Iterator<Buffer> it = unpinnedBuffers.iterator();
+        if (!it.hasNext())
+            return null;
+        Buffer buff = it.next();
+        it.remove();
+        return buff;
+    }
+}
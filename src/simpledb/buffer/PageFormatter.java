@@ -12,7 +12,8 @@ import simpledb.file.Page;
 public interface PageFormatter {
     /**
      * 初始化一个页缓冲数组中的内容，该内容会然后被append到一个文件的新块内
-     * {@link Buffer#assignToNew}.
+     * {@link BufferMgr#pinNew}.
+     * 只能使用页的前{@link Buffer#payloadSize(int)}个字节，最后的page LSN要保持为0
      * @param p a buffer page
      */
     public void format(Page p);
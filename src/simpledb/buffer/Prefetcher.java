@@ -0,0 +1,129 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import simpledb.server.SimpleDB;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 顺序预读。
+ * 对每个文件记录最近pin的块号，连续pin了TRIGGER个相邻的块之后认为是在顺序扫描，
+ * 把接下来的depth个块异步地批量读入缓冲池，扫描到预读窗口的一半时再预读下一段。
+ * <p>
+ * 预读通过{@link simpledb.file.AsyncFileMgr}在I/O线程中进行，pin的线程只负责占好缓冲单元、发出读请求。
+ * 同时进行的预读最多maxOutstanding个，超过了就放弃这次预读，扫描自己读盘就是了；
+ * 预读进来的缓冲单元如果一直没有被用到，会最先被换出，见{@link BasicBufferMgr}
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class Prefetcher {
+    // 连续pin多少个相邻的块之后开始预读
+    static final int TRIGGER = 2;
+
+    private final BufferMgr bufferMgr;
+    private final int depth;
+    private final int maxOutstanding;
+    private final AtomicInteger outstanding = new AtomicInteger();  // 正在进行的预读个数
+    private final AtomicLong failures = new AtomicLong();           // 失败的预读个数
+    private final AtomicReference<Throwable> lastFailure = new AtomicReference<>();
+    // 文件名 -> 该文件上的访问情况
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * @param bufferMgr
+     * @param depth          每次预读的块数
+     * @param maxOutstanding 同时进行的预读的最大个数
+     */
+    Prefetcher(BufferMgr bufferMgr, int depth, int maxOutstanding) {
+        this.bufferMgr = bufferMgr;
+        this.depth = depth;
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * 每次pin成功之后调用，判断是否需要预读
+     *
+     * @param blk
+     */
+    void pinned(Block blk) {
+        Stream stream = streams.computeIfAbsent(blk.getFileNama(), name -> new Stream());
+        int blkNum = blk.getBlockNum();
+        int from;
+        int to;
+        synchronized (stream) {
+            if (blkNum == stream.lastBlk + 1) {
+                stream.run++;
+            } else if (blkNum != stream.lastBlk) {
+                // 不是顺序访问，重新开始计数
+                stream.run = 1;
+                stream.prefetchedTo = blkNum;
+            }
+            stream.lastBlk = blkNum;
+            if (stream.run < TRIGGER || stream.prefetchedTo - blkNum > depth / 2
+                    || outstanding.get() >= maxOutstanding)
+                return;
+            from = Math.max(stream.prefetchedTo, blkNum) + 1;
+            to = blkNum + depth;
+            stream.prefetchedTo = to;
+        }
+        outstanding.incrementAndGet();
+        try {
+            // 不要预读文件末尾之后的块
+            to = Math.min(to, SimpleDB.getFileMgr().size(blk.getFileNama()) - 1);
+            if (from > to) {
+                outstanding.decrementAndGet();
+                return;
+            }
+            bufferMgr.prefetch(blk.getFileNama(), from, to).whenComplete((v, e) -> {
+                outstanding.decrementAndGet();
+                if (e != null)
+                    failed(e);
+            });
+        } catch (RuntimeException e) {
+            outstanding.decrementAndGet();
+            failed(e);
+        }
+    }
+
+    /**
+     * 预读失败不影响正确性，真正pin的时候还会再读，这里只记下来
+     *
+     * @param e
+     */
+    private void failed(Throwable e) {
+        failures.incrementAndGet();
+        lastFailure.set(e);
+    }
+
+    /**
+     * 失败的预读个数
+     *
+     * @return
+     */
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * 最近一次预读失败的原因，没有失败过时返回null
+     *
+     * @return
+     */
+    public Throwable lastFailure() {
+        return lastFailure.get();
+    }
+
+    /**
+     * 一个文件上的访问情况
+     */
+    private static class Stream {
+        int lastBlk = -2;      // 最近pin的块号
+        int run;               // 连续pin的相邻块数
+        int prefetchedTo = -1; // 已经提交预读的最大块号
+    }
+}
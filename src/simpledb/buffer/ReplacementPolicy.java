@@ -0,0 +1,73 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * 缓冲池的页替换策略接口。
+ * BasicBufferMgr在每次pin和unpin时通知替换策略，
+ * 当缓冲池中没有空闲的缓冲单元时，由替换策略从unpinned的缓冲单元中选出一个替换对象。
+ * 实现类不需要考虑线程安全，所有方法都在BasicBufferMgr的锁内调用。
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public interface ReplacementPolicy {
+
+    /**
+     * 缓冲单元被pin了一次（无论是命中，还是刚装入了新的块）
+     *
+     * @param buff
+     */
+    void pinned(Buffer buff);
+
+    /**
+     * 缓冲单元的pin count降为0，成为可以被替换的候选。
+     * chooseVictim选出、但调用者没有用上的替换对象（比如它是脏页）也通过这里还给策略，
+     * 所以策略没有记着的缓冲单元也要重新当作候选
+     *
+     * @param buff
+     */
+    void unpinned(Buffer buff);
+
+    /**
+     * 从unpinned的缓冲单元中选出一个替换对象，并将它从策略的记录中移除。
+     * 策略应该只把unpinned的缓冲单元放在候选集合中，而不是在选的时候逐个跳过pinned的单元
+     *
+     * @return 没有可替换的缓冲单元则返回null
+     */
+    Buffer chooseVictim();
+
+    /**
+     * chooseVictim选出的缓冲单元真的被换出了，马上要装入别的块。
+     * 选出之后又被pin、或者被还回来（{@link #unpinned}）的替换对象不会收到这个通知，
+     * 所以需要记住被换出的块的策略应该在这里记，而不是在选出的时候。
+     * 不是由策略选出的缓冲单元（空闲的、预读的）被重新分配时也会调用，策略忽略它们即可
+     *
+     * @param buff
+     * @param oldBlk 被换出的块
+     */
+    default void evicted(Buffer buff, Block oldBlk) {
+    }
+
+    /**
+     * 根据策略名创建替换策略，可选的名字有 LRU、CLOCK、LRU-K、2Q（不区分大小写）
+     *
+     * @param name     策略名
+     * @param buffsNum 缓冲单元数量，部分策略需要根据它来确定队列的长度
+     * @return
+     */
+    static ReplacementPolicy newInstance(String name, int buffsNum) {
+        switch (name.toUpperCase()) {
+            case "LRU":
+                return new LRUPolicy();
+            case "CLOCK":
+                return new ClockPolicy();
+            case "LRU-K":
+                return new LRUKPolicy(LRUKPolicy.DEFAULT_K, buffsNum);
+            case "2Q":
+                return new TwoQueuePolicy(buffsNum);
+            default:
+                throw new IllegalArgumentException("unknown replacement policy " + name);
+        }
+    }
+}
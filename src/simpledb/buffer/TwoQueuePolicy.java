@@ -0,0 +1,121 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 2Q替换策略（Johnson & Shasha，1994）。
+ * 第一次被访问的块进入FIFO队列A1in；从A1in换出的块只把块号记在幽灵队列A1out中；
+ * 如果一个块在A1out中时又被访问，说明它是热块，进入LRU队列Am。
+ * 这样只被扫描一次的块很快就会被换出，不会把热块挤出缓冲池。
+ * <p>
+ * 两个队列都只把unpinned的缓冲单元放在候选集合中，选替换对象时不用跳过pinned的单元：
+ * A1in的候选按块装入的先后排序（FIFO），Am的候选按unpin的先后排序（LRU）
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private final int kin;   // A1in的目标长度
+    private final int kout;  // A1out的最大长度
+    private long seq = 0;    // 块进入A1in的顺序
+    // A1in中的缓冲单元（无论是否pinned） -> 进入A1in的顺序
+    private Map<Buffer, Long> a1in = new HashMap<>();
+    // A1in中unpinned的缓冲单元，按进入A1in的顺序排列
+    private TreeMap<Long, Buffer> a1inUnpinned = new TreeMap<>();
+    // Am中的缓冲单元（无论是否pinned）
+    private Set<Buffer> am = new HashSet<>();
+    // Am中unpinned的缓冲单元，最早unpin的在最前面
+    private LinkedHashSet<Buffer> amUnpinned = new LinkedHashSet<>();
+    private LinkedHashSet<Block> a1out = new LinkedHashSet<>();
+    // 从A1in中选出、还没有真的换出的缓冲单元，换出之后才把块号记到A1out中
+    private Set<Buffer> leavingA1in = new HashSet<>();
+
+    public TwoQueuePolicy(int buffsNum) {
+        kin = Math.max(1, buffsNum / 4);
+        kout = Math.max(1, buffsNum / 2);
+    }
+
+    @Override
+    public void pinned(Buffer buff) {
+        Long pos = a1in.get(buff);
+        if (leavingA1in.remove(buff)) {
+            // 选出来写回脏页期间又被pin了，块还在缓冲池中，放回A1in的尾部
+            a1in.put(buff, ++seq);
+        } else if (pos != null) {
+            // 在A1in中的块再次被访问时不调整顺序
+            a1inUnpinned.remove(pos);
+        } else if (am.contains(buff)) {
+            amUnpinned.remove(buff);
+        } else if (a1out.remove(buff.block())) {
+            // 新装入的块，最近刚从A1in中换出过
+            am.add(buff);
+        } else {
+            a1in.put(buff, ++seq);
+        }
+    }
+
+    @Override
+    public void unpinned(Buffer buff) {
+        Long pos = a1in.get(buff);
+        if (pos != null) {
+            a1inUnpinned.put(pos, buff);
+        } else if (am.contains(buff)) {
+            amUnpinned.add(buff);  // 移到LRU队列的尾部（最近使用）
+        } else {
+            // 选出来又还回来的替换对象，当作刚装入的块放到A1in的尾部
+            leavingA1in.remove(buff);
+            pos = ++seq;
+            a1in.put(buff, pos);
+            a1inUnpinned.put(pos, buff);
+        }
+    }
+
+    @Override
+    public Buffer chooseVictim() {
+        if (a1in.size() > kin && !a1inUnpinned.isEmpty())
+            return pollA1in();
+        Iterator<Buffer> it = amUnpinned.iterator();
+        if (it.hasNext()) {
+            Buffer victim = it.next();
+            it.remove();
+            am.remove(victim);
+            return victim;
+        }
+        if (!a1inUnpinned.isEmpty())
+            return pollA1in();
+        return null;
+    }
+
+    @Override
+    public void evicted(Buffer buff, Block oldBlk) {
+        if (leavingA1in.remove(buff))
+            rememberEvicted(oldBlk);
+    }
+
+    /**
+     * 取出A1in中最早进入的unpinned缓冲单元，真的换出时再把它的块号记到A1out里（见{@link #evicted}）
+     */
+    private Buffer pollA1in() {
+        Buffer victim = a1inUnpinned.pollFirstEntry().getValue();
+        a1in.remove(victim);
+        leavingA1in.add(victim);
+        return victim;
+    }
+
+    private void rememberEvicted(Block blk) {
+        a1out.add(blk);
+        if (a1out.size() > kout) {
+            Iterator<Block> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
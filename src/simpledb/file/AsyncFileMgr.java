@@ -0,0 +1,144 @@
+package simpledb.file;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步读写文件，所有的I/O都在一个专门的I/O线程池中执行，调用者拿到CompletableFuture之后可以继续做别的事情。
+ * <p>
+ * I/O线程调用的就是同步的{@link FileMgr}：读到文件末尾之后的部分清零、写到文件末尾之后时按预分配扩展文件、
+ * 文件的长度、持久化方式和改名删除都和同步读写一样。
+ * （JDK在Linux上的AsynchronousFileChannel也是在线程池中做阻塞的读写，单独用它打开文件只会多一套要维护的状态）
+ * 批量读写先像{@link FileMgr#read(Block[], ByteBuffer[])}一样把连续的块合并成段，
+ * 各段作为独立的任务提交，可以同时在多个I/O线程上进行。
+ * 追加需要按顺序分配块号，在I/O线程中调用{@link FileMgr#append}
+ * <p>
+ * 读写期间调用者不能使用传进来的缓冲区，直到future完成
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class AsyncFileMgr {
+    private static final long SHUTDOWN_WAIT = 10000;  // 关闭时最长等待未完成的I/O的时间（毫秒）
+    private final FileMgr fileMgr;
+    private final ExecutorService ioExecutor;
+
+    /**
+     * @param fileMgr
+     * @param ioThreads I/O线程数
+     */
+    public AsyncFileMgr(FileMgr fileMgr, int ioThreads) {
+        this.fileMgr = fileMgr;
+        AtomicInteger count = new AtomicInteger();
+        ioExecutor = Executors.newFixedThreadPool(ioThreads, r -> {
+            Thread t = new Thread(r, "simpledb-io-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 异步地将块中的内容读到缓冲区中
+     *
+     * @param blk
+     * @param bb
+     * @return 读完时完成，值为blk
+     */
+    public CompletableFuture<Block> read(Block blk, ByteBuffer bb) {
+        return CompletableFuture.supplyAsync(() -> {
+            fileMgr.read(blk, bb);
+            return blk;
+        }, ioExecutor);
+    }
+
+    /**
+     * 异步地将缓冲区中的内容写到块中
+     *
+     * @param blk
+     * @param bb
+     * @return 写完时完成，值为blk
+     */
+    public CompletableFuture<Block> write(Block blk, ByteBuffer bb) {
+        return CompletableFuture.supplyAsync(() -> {
+            fileMgr.write(blk, bb);
+            return blk;
+        }, ioExecutor);
+    }
+
+    /**
+     * 异步地将缓冲区中的内容追加到文件尾部
+     *
+     * @param fileName
+     * @param bb
+     * @return 追加完成时完成，值为新的块
+     */
+    public CompletableFuture<Block> append(String fileName, ByteBuffer bb) {
+        return CompletableFuture.supplyAsync(() -> fileMgr.append(fileName, bb), ioExecutor);
+    }
+
+    /**
+     * 异步地批量读多个块，blks[i]读到bbs[i]中，连续的块合并成一次I/O
+     *
+     * @param blks
+     * @param bbs
+     * @return 所有块都读完时完成
+     */
+    public CompletableFuture<Void> read(Block[] blks, ByteBuffer[] bbs) {
+        return transferBatch(blks, bbs, false);
+    }
+
+    /**
+     * 异步地批量写多个块，bbs[i]写到blks[i]中，连续的块合并成一次I/O
+     *
+     * @param blks
+     * @param bbs
+     * @return 所有块都写完时完成
+     */
+    public CompletableFuture<Void> write(Block[] blks, ByteBuffer[] bbs) {
+        return transferBatch(blks, bbs, true);
+    }
+
+    /**
+     * 等待future完成，把I/O失败时的RuntimeException原样抛出
+     *
+     * @param future
+     * @return
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * 不再接受新的I/O，等已经提交的I/O完成
+     */
+    public void shutdown() {
+        ioExecutor.shutdown();
+        try {
+            ioExecutor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<Void> transferBatch(Block[] blks, ByteBuffer[] bbs, boolean write) {
+        List<FileMgr.Run> runs = FileMgr.runs(blks, bbs);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[runs.size()];
+        for (int i = 0; i < futures.length; i++) {
+            FileMgr.Run run = runs.get(i);
+            futures[i] = CompletableFuture.runAsync(() -> fileMgr.transfer(run, write), ioExecutor);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+}
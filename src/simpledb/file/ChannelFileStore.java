@@ -0,0 +1,81 @@
+package simpledb.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于FileChannel按位置读写的文件，每次读写都是一次系统调用。
+ * FileChannel的按位置读写本身是线程安全的，不需要额外加锁；
+ * 批量读写依赖channel的position，由FileMgr锁住文件
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+class ChannelFileStore implements FileStore {
+    private final FileChannel fc;
+
+    /**
+     * @param file
+     * @param mode 打开模式由文件的持久化方式决定，见DurabilityMode
+     * @throws IOException
+     */
+    ChannelFileStore(File file, DurabilityMode mode) throws IOException {
+        fc = new RandomAccessFile(file, mode.fileMode()).getChannel();
+    }
+
+    @Override
+    public void read(long pos, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            if (fc.read(bb, pos + bb.position()) < 0)
+                break;  // 读到了文件末尾
+        }
+    }
+
+    @Override
+    public void write(long pos, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining())
+            fc.write(bb, pos + bb.position());
+    }
+
+    /**
+     * 一次分散读，FileChannel没有按位置的分散读，所以要先设置channel的position
+     */
+    @Override
+    public void read(long pos, ByteBuffer[] bbs) throws IOException {
+        fc.position(pos);
+        ByteBuffer last = bbs[bbs.length - 1];
+        while (last.hasRemaining()) {
+            if (fc.read(bbs) < 0)
+                break;  // 读到了文件末尾
+        }
+    }
+
+    /**
+     * 一次集中写，同样要先设置channel的position
+     */
+    @Override
+    public void write(long pos, ByteBuffer[] bbs) throws IOException {
+        fc.position(pos);
+        ByteBuffer last = bbs[bbs.length - 1];
+        while (last.hasRemaining())
+            fc.write(bbs);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return fc.size();
+    }
+
+    @Override
+    public void force() throws IOException {
+        fc.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fc.close();
+    }
+}
@@ -0,0 +1,47 @@
+package simpledb.file;
+
+/**
+ * 文件的持久化方式，对应RandomAccessFile打开文件的模式
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public enum DurabilityMode {
+    /**
+     * "rws"：每次写都同步写入文件内容和元数据，最安全也最慢
+     */
+    SYNC("rws"),
+    /**
+     * "rwd"：每次写都同步写入文件内容，元数据（如修改时间）不同步
+     */
+    DSYNC("rwd"),
+    /**
+     * "rw"：写操作只写到操作系统的缓存中，需要调用{@link FileMgr#force}才能保证写到磁盘上。
+     * 数据文件的持久性由日志（WAL）保证，只需要在检查点时force
+     */
+    FORCE_ON_DEMAND("rw");
+
+    private final String fileMode;
+
+    DurabilityMode(String fileMode) {
+        this.fileMode = fileMode;
+    }
+
+    /**
+     * RandomAccessFile的打开模式
+     *
+     * @return
+     */
+    public String fileMode() {
+        return fileMode;
+    }
+
+    /**
+     * 是否需要显式地force才能保证写入的内容持久化
+     *
+     * @return
+     */
+    public boolean needsForce() {
+        return this == FORCE_ON_DEMAND;
+    }
+}
@@ -0,0 +1,198 @@
+package simpledb.file;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @program: simpleDB
+ * @description: 文件管理模块的性能测试，用法：
+ * java simpledb.file.FileBenchmark [读写的页数] [顺序扫描的MB数]
+ **/
+public class FileBenchmark {
+
+    public static void main(String[] args) {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        FileMgr fileMgr = new FileMgr("fileBenchDB");
+        for (DurabilityMode mode : DurabilityMode.values())
+            pageWrites(fileMgr, mode, pages);
+        for (StorageBackend backend : StorageBackend.values())
+            pageReads(fileMgr, backend, pages);
+        batchWrites(fileMgr, pages);
+        asyncWrites(fileMgr, pages);
+        appends(fileMgr, pages, 0);
+        appends(fileMgr, pages, 1024 * 1024);
+        int scanMegabytes = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        for (int blockSize : new int[]{Page.LEGACY_BLOCK_SIZE, 4096, 16384, 65536})
+            sequentialScan(blockSize, scanMegabytes);
+    }
+
+    /**
+     * 写回随机选出的一半的块（类似写回缓冲池中的脏页），分别逐块写和批量写，
+     * 比较调用FileStore的次数（即系统调用次数）和耗时
+     */
+    private static void batchWrites(FileMgr fileMgr, int pages) {
+        String fileName = "batch";
+        for (int i = fileMgr.size(fileName); i < pages; i++)
+            fileMgr.append(fileName, ByteBuffer.allocateDirect(fileMgr.blockSize()));
+        Random random = new Random(42);
+        List<Block> dirty = new ArrayList<>();
+        for (int i = 0; i < pages; i++) {
+            if (random.nextBoolean())
+                dirty.add(new Block(fileName, i));
+        }
+        Block[] blks = dirty.toArray(new Block[0]);
+        ByteBuffer[] bbs = new ByteBuffer[blks.length];
+        for (int i = 0; i < bbs.length; i++) {
+            bbs[i] = ByteBuffer.allocateDirect(fileMgr.blockSize());
+            bbs[i].putInt(0, blks[i].getBlockNum());
+        }
+
+        for (boolean batch : new boolean[]{false, true}) {
+            fileMgr.resetStatistics();
+            long begin = System.nanoTime();
+            if (batch) {
+                fileMgr.write(blks, bbs);
+            } else {
+                for (int i = 0; i < blks.length; i++)
+                    fileMgr.write(blks[i], bbs[i]);
+            }
+            fileMgr.force(fileName);
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("%-16s %d dirty blocks written with %d I/O calls in %.1fms%n",
+                    batch ? "batch write" : "block write", fileMgr.blocksTransferred(), fileMgr.ioCalls(), elapsed / 1e6);
+        }
+    }
+
+    /**
+     * 以"rwd"方式向文件尾部追加新块，和日志的段文件一样。
+     * 不预分配时每追加一个块文件长度都会变，每次写都要同步文件系统的元数据；
+     * 预分配时大多数追加都落在已经分配好的空间里
+     */
+    private static void appends(FileMgr fileMgr, int pages, long preallocation) {
+        String fileName = "append_" + preallocation;
+        fileMgr.setDurability(fileName, DurabilityMode.DSYNC);
+        fileMgr.setPreallocation(fileName, preallocation);
+        ByteBuffer bb = ByteBuffer.allocateDirect(fileMgr.blockSize());
+        long begin = System.nanoTime();
+        for (int i = 0; i < pages; i++)
+            fileMgr.append(fileName, bb);
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("appends, preallocate %-8d %d pages in %.1fms, %.0f pages/s%n",
+                preallocation, pages, elapsed / 1e6, pages / (elapsed / 1e9));
+    }
+
+    /**
+     * 以"rws"方式写数据页，每次写都要等磁盘完成。
+     * 同步写时调用者每次都要等；异步写时调用者同时发出多个写，在I/O线程中重叠进行
+     */
+    private static void asyncWrites(FileMgr fileMgr, int pages) {
+        String fileName = "async_sync";
+        fileMgr.setDurability(fileName, DurabilityMode.SYNC);
+        AsyncFileMgr async = new AsyncFileMgr(fileMgr, 4);
+        int inFlight = 16;
+        ByteBuffer[] bbs = new ByteBuffer[inFlight];
+        for (int i = 0; i < inFlight; i++)
+            bbs[i] = ByteBuffer.allocateDirect(fileMgr.blockSize());
+        for (int i = fileMgr.size(fileName); i < pages; i++)
+            fileMgr.append(fileName, bbs[0]);
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < pages; i++)
+            fileMgr.write(new Block(fileName, i), bbs[0]);
+        long syncElapsed = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        List<CompletableFuture<Block>> window = new ArrayList<>();
+        for (int i = 0; i < pages; i++) {
+            if (window.size() == inFlight) {
+                AsyncFileMgr.await(window.get(0));
+                window.remove(0);
+            }
+            // 每个缓冲区同一时刻只被一个未完成的写使用
+            window.add(async.write(new Block(fileName, i), bbs[i % inFlight]));
+        }
+        for (CompletableFuture<Block> w : window)
+            AsyncFileMgr.await(w);
+        long asyncElapsed = System.nanoTime() - begin;
+        async.shutdown();
+        System.out.printf("sync writes      %d pages in %.1fms, %.0f pages/s%n",
+                pages, syncElapsed / 1e6, pages / (syncElapsed / 1e9));
+        System.out.printf("async writes     %d pages in %.1fms, %.0f pages/s (%d in flight)%n",
+                pages, asyncElapsed / 1e6, pages / (asyncElapsed / 1e9), inFlight);
+    }
+
+    /**
+     * 在以指定块大小创建的数据库中顺序读一遍文件的所有块，统计每秒读的字节数。
+     * 文件总大小固定，块越大，读同样多数据需要的系统调用越少
+     */
+    private static void sequentialScan(int blockSize, int megabytes) {
+        FileMgr fileMgr = new FileMgr("fileBenchDB_" + blockSize, blockSize);
+        String fileName = "scan";
+        ByteBuffer bb = ByteBuffer.allocateDirect(fileMgr.blockSize());
+        int blocks = (int) ((long) megabytes * 1024 * 1024 / fileMgr.blockSize());
+        for (int i = fileMgr.size(fileName); i < blocks; i++) {
+            bb.putInt(0, i);
+            fileMgr.append(fileName, bb);
+        }
+
+        long checksum = 0;
+        long begin = System.nanoTime();
+        for (int i = 0; i < blocks; i++) {
+            fileMgr.read(new Block(fileName, i), bb);
+            checksum += bb.getInt(0);
+        }
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("block size %-6d scanned %d blocks in %.1fms, %.0f MB/s (checksum %d)%n",
+                fileMgr.blockSize(), blocks, elapsed / 1e6,
+                (double) blocks * fileMgr.blockSize() / (1024 * 1024) / (elapsed / 1e9), checksum);
+    }
+
+    /**
+     * 通过指定的存储后端随机读数据页，统计每秒读的页数
+     */
+    private static void pageReads(FileMgr fileMgr, StorageBackend backend, int pages) {
+        String fileName = "backend_" + backend.name().toLowerCase();
+        fileMgr.setBackend(fileName, backend);
+        ByteBuffer bb = ByteBuffer.allocateDirect(fileMgr.blockSize());
+        for (int i = fileMgr.size(fileName); i < pages; i++)
+            fileMgr.append(fileName, bb);
+
+        int reads = pages * 10;
+        Random random = new Random(42);
+        long checksum = 0;
+        long begin = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            fileMgr.read(new Block(fileName, random.nextInt(pages)), bb);
+            checksum += bb.getInt(0);
+        }
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("%-16s %d page reads in %.1fms, %.0f pages/s (checksum %d)%n",
+                backend, reads, elapsed / 1e6, reads / (elapsed / 1e9), checksum);
+    }
+
+    /**
+     * 以指定的持久化方式随机写数据页，最后force一次，统计每秒写的页数
+     */
+    private static void pageWrites(FileMgr fileMgr, DurabilityMode mode, int pages) {
+        String fileName = "durability_" + mode.name().toLowerCase();
+        fileMgr.setDurability(fileName, mode);
+        ByteBuffer bb = ByteBuffer.allocateDirect(fileMgr.blockSize());
+        // 先把文件扩展到pages个块，测试的是覆盖写已有的块
+        for (int i = fileMgr.size(fileName); i < pages; i++)
+            fileMgr.append(fileName, bb);
+
+        Random random = new Random(42);
+        long begin = System.nanoTime();
+        for (int i = 0; i < pages; i++) {
+            bb.putInt(0, i);
+            fileMgr.write(new Block(fileName, random.nextInt(pages)), bb);
+        }
+        fileMgr.force(fileName);
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("%-16s (\"%s\") %d page writes in %.1fms, %.0f pages/s%n",
+                mode, mode.fileMode(), pages, elapsed / 1e6, pages / (elapsed / 1e9));
+    }
+}
@@ -1,17 +1,23 @@
 package simpledb.file;
 
-import sun.rmi.runtime.NewThreadAction;
-
-import static simpledb.file.Page.BLOCK_SIZE;
-
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.HashMap;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @program: simpleDB
@@ -20,22 +26,65 @@ import java.util.Map;
  * read将文件中的一个block读取到page的字节数组中
  * write将page中的字节数组写回到文件中的指定block
  * append将申请一个新的块追加在文件尾部，并将page中的数组内容作写入该块
+ * read和write没有全局锁，依靠FileChannel按位置读写的线程安全性并发执行，只有append和批量读写会锁住对应的文件
+ * 每个文件可以选择通过FileChannel读写，或者映射到内存中读写，见{@link StorageBackend}
+ * 块的大小在创建数据库时确定，保存在数据库目录下的头文件中，之后打开数据库都使用这个大小；
+ * 其它模块也可以在头文件中保存一经确定就不能再改的参数，见{@link #headerProperty(String)}
+ * 每个文件的长度记录在内存中，可以让文件每次扩展一大段（预分配，只用于日志的段文件，见{@link #setPreallocation}），而不是每追加一个块就修改一次文件的元数据
  * @author: LiuZhian
  * @create: 2019-07-03 23:08
  **/
 public class FileMgr {
+    // 数据库的头文件，保存创建数据库时确定的参数
+    public static final String HEADER_FILE = "simpledb.header";
+    public static final int MIN_BLOCK_SIZE = 400;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
     private File dbDirectory;
     private boolean isNew;
-    // 已经打开的文件channel
-    private Map<String, FileChannel> openFiles = new HashMap<>();
+    private final int blockSize;
+    // 头文件的内容，由FileMgr的锁保护
+    private final Properties header = new Properties();
+    // 已经打开的文件
+    private Map<String, FileStore> openFiles = new ConcurrentHashMap<>();
+    // 每个文件追加新块、以及依赖channel position的批量读写时用的锁
+    private Map<String, Object> fileLocks = new ConcurrentHashMap<>();
+    // 没有单独指定持久化方式的文件（数据文件）使用的持久化方式
+    private DurabilityMode defaultDurability = DurabilityMode.SYNC;
+    // 单独指定了持久化方式的文件，比如日志文件
+    private Map<String, DurabilityMode> durabilities = new ConcurrentHashMap<>();
+    // 没有单独指定存储后端的文件使用的后端
+    private StorageBackend defaultBackend = StorageBackend.CHANNEL;
+    // 单独指定了存储后端的文件
+    private Map<String, StorageBackend> backends = new ConcurrentHashMap<>();
+    // 每个文件在内存中记录的长度，第一次访问时初始化，之后size()和append()都不需要系统调用
+    private Map<String, FileLength> lengths = new ConcurrentHashMap<>();
+    // 设置了预分配的文件（日志的段文件），其它文件每追加一个块扩展一次
+    private Map<String, Long> preallocations = new ConcurrentHashMap<>();
+    private LongAdder ioCalls = new LongAdder();            // 调用FileStore读写的次数
+    private LongAdder blocksTransferred = new LongAdder();  // 读写的块数
 
     /**
-     * Creates a file manager for the specified database.
-     * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
+     * 以默认的块大小创建文件管理对象，见{@link #FileMgr(String, int)}
      *
      * @param dbName 指定数据库文件存放的目录
      */
     public FileMgr(String dbName) {
+        this(dbName, Page.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a file manager for the specified database.
+     * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
+     *
+     * @param dbName    指定数据库文件存放的目录
+     * @param blockSize 新建数据库时使用的块大小；已有的数据库使用头文件中记录的块大小，
+     *                  没有头文件的旧数据库使用{@link Page#LEGACY_BLOCK_SIZE}
+     */
+    public FileMgr(String dbName, int blockSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("block size must be between "
+                    + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE + ": " + blockSize);
         // 默认根目录为用户目录
         String homeDir = System.getProperty("user.home");
         dbDirectory = new File(homeDir, dbName);
@@ -53,24 +102,106 @@ public class FileMgr {
                 new File(dbDirectory, fileName).delete();
             }
         }
+        this.blockSize = readOrCreateHeader(blockSize);
     }
 
     /**
-     * 将块中的内容读取到字节缓冲区(Page的成员变量)
+     * 读取头文件中的块大小。目录中还没有任何文件时，说明是新数据库，写一个新的头文件
      *
-     * @param blk
-     * @param bb
+     * @param newBlockSize 新数据库使用的块大小
+     * @return 这个数据库的块大小
+     */
+    private int readOrCreateHeader(int newBlockSize) {
+        File headerFile = new File(dbDirectory, HEADER_FILE);
+        try {
+            if (headerFile.exists()) {
+                try (FileInputStream in = new FileInputStream(headerFile)) {
+                    header.load(in);
+                }
+                return Integer.parseInt(header.getProperty("blockSize"));
+            }
+            if (dbDirectory.list().length > 0) {
+                // 引入头文件之前创建的数据库，第一次设置其它参数时才写头文件
+                header.setProperty("blockSize", Integer.toString(Page.LEGACY_BLOCK_SIZE));
+                return Page.LEGACY_BLOCK_SIZE;
+            }
+            header.setProperty("blockSize", Integer.toString(newBlockSize));
+            storeHeader();
+            return newBlockSize;
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("cannot access " + headerFile);
+        }
+    }
+
+    /**
+     * 先写一个临时文件并同步到磁盘，再改名成头文件，崩溃时头文件要么是旧的内容，要么是新的内容
+     *
+     * @throws IOException
+     */
+    private void storeHeader() throws IOException {
+        File headerFile = new File(dbDirectory, HEADER_FILE);
+        File tmp = new File(dbDirectory, HEADER_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            header.store(out, "simpleDB database header");
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), headerFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取头文件中保存的参数
+     *
+     * @param key
+     * @return 没有保存过这个参数时返回null
+     */
+    public synchronized String headerProperty(String key) {
+        return header.getProperty(key);
+    }
+
+    /**
+     * 在头文件中保存一个参数，返回之前已经写到磁盘上
+     *
+     * @param key
+     * @param value
      */
-    public synchronized void read(Block blk, ByteBuffer bb) {
-        bb.clear();
+    public synchronized void setHeaderProperty(String key, String value) {
+        if (value.equals(header.getProperty(key)))
+            return;
+        header.setProperty(key, value);
         try {
-            FileChannel fc = getFile(blk.getFileNama());
-            fc.read(bb, blk.getBlockNum() * BLOCK_SIZE);
+            storeHeader();
         } catch (IOException e) {
-            throw new RuntimeException("cannot read block " + blk);
+            throw new RuntimeException("cannot write " + HEADER_FILE);
         }
     }
 
+    /**
+     * 这个数据库的块大小，也就是每个Page的字节数
+     *
+     * @return
+     */
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 将块中的内容读取到字节缓冲区(Page的成员变量)
+     * FileStore的按位置读写本身是线程安全的，所以这里不需要加锁，
+     * 不同线程可以同时读写不同的块和不同的文件
+     *
+     * @param blk
+     * @param bb
+     */
+    public void read(Block blk, ByteBuffer bb) {
+        long pos = (long) blk.getBlockNum() * blockSize;
+        withFile(blk.getFileNama(), "cannot read block " + blk, file -> {
+            bb.clear();
+            file.read(pos, bb);
+            zeroRemaining(bb);
+        });
+        countIO(1);
+    }
+
 
     /**
      * 将字节缓冲区(Page的成员变量)中的内容写回块中
@@ -78,66 +209,534 @@ public class FileMgr {
      * @param blk
      * @param bb
      */
-    public synchronized void write(Block blk, ByteBuffer bb) {
-        bb.rewind();
-        try {
-            FileChannel fc = getFile(blk.getFileNama());
-            fc.write(bb, blk.getBlockNum() * BLOCK_SIZE);
-        } catch (IOException e) {
-            throw new RuntimeException("cannot read block " + blk);
+    public void write(Block blk, ByteBuffer bb) {
+        long pos = (long) blk.getBlockNum() * blockSize;
+        allocated(blk.getFileNama(), blk.getBlockNum() + 1);
+        withFile(blk.getFileNama(), "cannot write block " + blk, file -> {
+            bb.rewind();
+            file.write(pos, bb);
+        });
+        countIO(1);
+        extended(blk.getFileNama(), blk.getBlockNum() + 1);
+    }
+
+    /**
+     * 读到文件末尾时缓冲区中没有读到的部分清零，还没有写过的块读出来是全0的，
+     * 而不是缓冲区中上一个块的内容。恢复时靠这一点判断页上的LSN
+     *
+     * @param bb
+     */
+    private static void zeroRemaining(ByteBuffer bb) {
+        while (bb.hasRemaining())
+            bb.put((byte) 0);
+    }
+
+    /**
+     * 批量读多个块，blks[i]读到bbs[i]中。
+     * 同一个文件中块号连续的块合并成一次分散读（scattering read），N个连续的块只需要一次系统调用。
+     * 调用者要保证这些缓冲区在读盘期间不会被其它线程使用
+     *
+     * @param blks
+     * @param bbs
+     */
+    public void read(Block[] blks, ByteBuffer[] bbs) {
+        transferBatch(blks, bbs, false);
+    }
+
+    /**
+     * 批量写多个块，bbs[i]写到blks[i]中。
+     * 同一个文件中块号连续的块合并成一次集中写（gathering write）
+     *
+     * @param blks
+     * @param bbs
+     */
+    public void write(Block[] blks, ByteBuffer[] bbs) {
+        transferBatch(blks, bbs, true);
+    }
+
+    private void transferBatch(Block[] blks, ByteBuffer[] bbs, boolean write) {
+        for (Run run : runs(blks, bbs))
+            transfer(run, write);
+    }
+
+    /**
+     * 把块按(文件名,块号)排序，分成一段段连续的块。
+     * 每段使用调用者缓冲区的副本，读写时不会修改调用者的缓冲区的position
+     *
+     * @param blks
+     * @param bbs  bbs[i]对应blks[i]
+     * @return
+     */
+    static List<Run> runs(Block[] blks, ByteBuffer[] bbs) {
+        if (blks.length != bbs.length)
+            throw new IllegalArgumentException("blocks and buffers do not match");
+        Integer[] order = new Integer[blks.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparing((Integer i) -> blks[i].getFileNama())
+                .thenComparingInt(i -> blks[i].getBlockNum()));
+
+        List<Run> runs = new ArrayList<>();
+        int start = 0;
+        while (start < order.length) {
+            Block first = blks[order[start]];
+            int end = start + 1;
+            while (end < order.length) {
+                Block next = blks[order[end]];
+                if (!next.getFileNama().equals(first.getFileNama())
+                        || next.getBlockNum() != first.getBlockNum() + (end - start))
+                    break;
+                end++;
+            }
+            ByteBuffer[] bufs = new ByteBuffer[end - start];
+            for (int i = start; i < end; i++)
+                bufs[i - start] = bbs[order[i]].duplicate();
+            runs.add(new Run(first, bufs));
+            start = end;
+        }
+        return runs;
+    }
+
+    /**
+     * 一段连续的块调用一次FileStore的批量读写。
+     * 批量读写依赖FileChannel的position，所以要锁住对应的文件；
+     * 只有一个块的段仍然按位置读写，不需要加锁
+     *
+     * @param run
+     * @param write 是写还是读
+     */
+    void transfer(Run run, boolean write) {
+        long pos = (long) run.first.getBlockNum() * blockSize;
+        String fileName = run.first.getFileNama();
+        ByteBuffer[] bufs = run.bbs;
+        String what = (write ? "cannot write " : "cannot read ") + bufs.length + " blocks from " + run.first;
+        if (write)
+            allocated(fileName, run.first.getBlockNum() + bufs.length);
+        if (bufs.length == 1) {
+            withFile(fileName, what, file -> {
+                bufs[0].clear();
+                if (write) {
+                    file.write(pos, bufs[0]);
+                } else {
+                    file.read(pos, bufs[0]);
+                    zeroRemaining(bufs[0]);
+                }
+            });
+        } else {
+            synchronized (fileLock(fileName)) {
+                withFile(fileName, what, file -> {
+                    for (ByteBuffer bb : bufs)
+                        bb.clear();
+                    if (write) {
+                        file.write(pos, bufs);
+                    } else {
+                        file.read(pos, bufs);
+                        for (ByteBuffer bb : bufs)
+                            zeroRemaining(bb);
+                    }
+                });
+            }
+        }
+        countIO(bufs.length);
+        if (write)
+            extended(fileName, run.first.getBlockNum() + bufs.length);
+    }
+
+    /**
+     * 记录一次读写
+     *
+     * @param blocks 这次读写的块数
+     */
+    void countIO(int blocks) {
+        ioCalls.increment();
+        blocksTransferred.add(blocks);
+    }
+
+    /**
+     * 对打开的文件执行一次读写。
+     * 某个线程在I/O时被中断，会导致FileChannel被关闭，其它正在使用该channel的线程也会失败。
+     * 这时把关闭的文件从hash表中移除，让其它线程重新打开文件再试一次；
+     * 被中断的线程自己不重试
+     *
+     * @param fileName
+     * @param error 失败时异常的信息
+     * @param op    读写操作，重试时会再执行一次
+     */
+    private void withFile(String fileName, String error, FileOp op) {
+        for (int attempt = 0; ; attempt++) {
+            FileStore file = null;
+            try {
+                file = getFile(fileName);
+                op.run(file);
+                return;
+            } catch (ClosedChannelException e) {
+                if (file != null)
+                    openFiles.remove(fileName, file);
+                if (attempt > 0 || e instanceof ClosedByInterruptException)
+                    throw new RuntimeException(error);
+            } catch (IOException e) {
+                throw new RuntimeException(error);
+            }
         }
     }
 
     /**
      * 将字节缓冲区(Page的成员变量)中的内容追加到指定文件后,返回新的块引用
+     * 只有追加需要对同一个文件加锁，保证并发追加的线程拿到不同的块号。
+     * 新块的块号就是内存中记录的块数，不需要去问操作系统文件有多长；
+     * 如果新块超出了已经分配的空间，并且这个文件设置了预分配，就先把文件扩展一大段
      *
      * @param fileName 文件名
      * @param bb       字节缓冲区
      * @return 新创建的块的引用
      */
-    public synchronized Block append(String fileName, ByteBuffer bb) {
-       int newBlkNum=size(fileName);  // 从0开始编号，所以刚好是当前块的数量
-        Block blk=new Block(fileName, newBlkNum);
-        write(blk,bb);
-        return blk;
+    public Block append(String fileName, ByteBuffer bb) {
+        synchronized (fileLock(fileName)) {
+            FileLength len = lengthOf(fileName);
+            int newBlkNum = len.blocks;  // 从0开始编号，所以刚好是当前块的数量
+            Block blk = new Block(fileName, newBlkNum);
+            long end = (long) (newBlkNum + 1) * blockSize;
+            if (end > len.allocated)
+                preallocate(fileName, len, end);
+            write(blk, bb);
+            return blk;
+        }
     }
 
     /**
-     * 返回一个文件的块数量
+     * 返回一个文件的块数量，只有第一次访问文件时才需要系统调用
      * @param fileName
      * @return
      */
-    public synchronized int size(String fileName) {
-        FileChannel fc = null;
+    public int size(String fileName) {
+        return lengthOf(fileName).blocks;
+    }
+
+    /**
+     * 把文件在内存中记录的长度设为blocks个块，之后追加的块从这里开始，覆盖后面原有的内容。
+     * 文件实际的长度不变，后面的部分留作预分配的空间。
+     * 预分配过的文件重新打开时，尾部是还没有用到的全0的块，由文件的使用者（比如日志）判断哪些块是有效的，再调用这个方法
+     *
+     * @param fileName
+     * @param blocks
+     */
+    public void truncate(String fileName, int blocks) {
+        synchronized (fileLock(fileName)) {
+            FileLength len = lengthOf(fileName);
+            if (blocks > len.blocks)
+                throw new IllegalArgumentException("cannot truncate " + fileName + " to " + blocks + " blocks");
+            len.blocks = blocks;
+        }
+    }
+
+    /**
+     * 把文件改名，to可以包含子目录（比如归档目录），目录不存在时会创建。
+     * 文件先被关闭，之后用新的名字访问时重新打开；调用者要保证改名期间没有其它线程读写这两个文件
+     *
+     * @param from
+     * @param to
+     */
+    public void rename(String from, String to) {
+        synchronized (fileLock(from)) {
+            close(from);
+            close(to);
+            File target = fileOf(to);
+            File dir = target.getParentFile();
+            try {
+                if (!dir.exists() && !dir.mkdirs())
+                    throw new IOException();
+                Files.move(fileOf(from).toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new RuntimeException("cannot rename " + from + " to " + to);
+            }
+        }
+    }
+
+    /**
+     * 关闭并删除文件，文件不存在时什么也不做
+     *
+     * @param fileName
+     */
+    public void delete(String fileName) {
+        synchronized (fileLock(fileName)) {
+            close(fileName);
+            File file = fileOf(fileName);
+            if (file.exists() && !file.delete())
+                throw new RuntimeException("cannot delete " + fileName);
+        }
+    }
+
+    /**
+     * 数据库目录下名字以prefix开头的文件
+     *
+     * @param prefix
+     * @return
+     */
+    public List<String> list(String prefix) {
+        List<String> names = new ArrayList<>();
+        String[] all = dbDirectory.list();
+        if (all != null) {
+            for (String name : all) {
+                if (name.startsWith(prefix))
+                    names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * 关闭打开的文件，忘掉内存中记录的长度
+     */
+    private void close(String fileName) {
+        lengths.remove(fileName);
+        FileStore file = openFiles.remove(fileName);
+        if (file == null)
+            return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new RuntimeException("cannot close " + fileName);
+        }
+    }
+
+    /**
+     * 为指定文件设置预分配大小。
+     * 重新打开文件时长度按文件实际的大小计算，预分配的全0的尾部也会被当作块，
+     * 所以只能用于自己判断哪些块有效、再调用{@link #truncate}的文件，比如日志的段文件，不能用于数据文件
+     *
+     * @param fileName
+     * @param bytes    文件每次扩展的字节数，会向上取整到块大小的整数倍，0表示不预分配
+     */
+    public void setPreallocation(String fileName, long bytes) {
+        preallocations.put(fileName, bytes);
+    }
+
+    public long preallocationOf(String fileName) {
+        return preallocations.getOrDefault(fileName, 0L);
+    }
+
+    /**
+     * 写了文件末尾之后的块，更新内存中记录的长度。写已有的块时不需要加锁
+     *
+     * @param fileName
+     * @param blocks   写完之后文件至少有多少个块
+     */
+    void extended(String fileName, int blocks) {
+        FileLength len = lengths.get(fileName);
+        if (len == null || blocks <= len.blocks)
+            return;  // 还没有初始化长度的文件，第一次访问时会读到写入之后的长度
+        synchronized (fileLock(fileName)) {
+            if (blocks > len.blocks)
+                len.blocks = blocks;
+            len.allocated = Math.max(len.allocated, (long) blocks * blockSize);
+        }
+    }
+
+    /**
+     * 直接写到文件末尾之后的块（而不是通过append追加）时，先按预分配的大小扩展文件，
+     * 比如日志先在内存中填满几个新块，再一次写到文件中
+     *
+     * @param fileName
+     * @param blocks   写完之后文件至少要有的块数
+     */
+    private void allocated(String fileName, int blocks) {
+        FileLength len = lengthOf(fileName);
+        long end = (long) blocks * blockSize;
+        if (end <= len.allocated)
+            return;  // 大多数写都在已分配的范围内，不需要加锁
+        synchronized (fileLock(fileName)) {
+            if (end > len.allocated)
+                preallocate(fileName, len, end);
+        }
+    }
+
+    /**
+     * 在文件锁内调用，用全0的内容把文件扩展到能容纳end个字节，并多分配一段。
+     * 先写入全0的内容（而不是只设置文件长度），文件系统才会真正分配磁盘空间
+     */
+    private void preallocate(String fileName, FileLength len, long end) {
+        long chunk = preallocationOf(fileName);
+        if (chunk <= 0)
+            return;
+        chunk = (chunk + blockSize - 1) / blockSize * blockSize;
+        long newAllocated = (end + chunk - 1) / chunk * chunk;
+        long from = len.allocated;
+        ByteBuffer zeros = ByteBuffer.allocateDirect((int) (newAllocated - from));
+        withFile(fileName, "cannot extend " + fileName, file -> {
+            zeros.clear();
+            file.write(from, zeros);
+        });
+        len.allocated = newAllocated;
+    }
+
+    /**
+     * 文件在内存中记录的长度，第一次访问时用文件实际的长度初始化
+     */
+    private FileLength lengthOf(String fileName) {
+        FileLength len = lengths.get(fileName);
+        if (len != null)
+            return len;
+        synchronized (fileLock(fileName)) {
+            len = lengths.get(fileName);
+            if (len == null) {
+                try {
+                    long bytes = getFile(fileName).size();
+                    len = new FileLength((int) (bytes / blockSize), bytes);
+                } catch (IOException e) {
+                    throw new RuntimeException("cannot access " + fileName);
+                }
+                lengths.put(fileName, len);
+            }
+            return len;
+        }
+    }
+
+    /**
+     * 设置数据文件默认的持久化方式，只影响之后才打开的文件
+     *
+     * @param mode
+     */
+    public void setDefaultDurability(DurabilityMode mode) {
+        defaultDurability = mode;
+    }
+
+    /**
+     * 为指定文件设置持久化方式，必须在该文件第一次被访问之前调用
+     *
+     * @param fileName
+     * @param mode
+     */
+    public void setDurability(String fileName, DurabilityMode mode) {
+        if (openFiles.containsKey(fileName) && durabilityOf(fileName) != mode)
+            throw new IllegalStateException(fileName + " is already open");
+        durabilities.put(fileName, mode);
+    }
+
+    public DurabilityMode durabilityOf(String fileName) {
+        return durabilities.getOrDefault(fileName, defaultDurability);
+    }
+
+    /**
+     * 设置数据文件默认的存储后端，只影响之后才打开的文件
+     *
+     * @param backend
+     */
+    public void setDefaultBackend(StorageBackend backend) {
+        defaultBackend = backend;
+    }
+
+    /**
+     * 为指定文件设置存储后端，必须在该文件第一次被访问之前调用
+     *
+     * @param fileName
+     * @param backend
+     */
+    public void setBackend(String fileName, StorageBackend backend) {
+        if (openFiles.containsKey(fileName) && backendOf(fileName) != backend)
+            throw new IllegalStateException(fileName + " is already open");
+        backends.put(fileName, backend);
+    }
+
+    public StorageBackend backendOf(String fileName) {
+        return backends.getOrDefault(fileName, defaultBackend);
+    }
+
+    /**
+     * 保证之前写到指定文件的内容都持久化到磁盘上。
+     * 对于每次写都会同步的文件（SYNC、DSYNC），什么也不用做
+     *
+     * @param fileName
+     */
+    public void force(String fileName) {
+        if (!durabilityOf(fileName).needsForce())
+            return;
+        FileStore file = openFiles.get(fileName);
+        if (file == null)
+            return;
         try {
-            fc = getFile(fileName);
-            return (int) fc.size() / BLOCK_SIZE;
+            file.force();
         } catch (IOException e) {
-            throw new RuntimeException("cannot access " + fileName);
+            throw new RuntimeException("cannot force " + fileName);
         }
+    }
 
+    /**
+     * 将所有已经打开的文件都持久化到磁盘上，检查点时调用
+     */
+    public void forceAll() {
+        for (String fileName : openFiles.keySet())
+            force(fileName);
     }
 
     /**
-     * 返回指定文件的channel，这些channel都保存在hash表中。
-     * 如果该文件未被打开，则打开并加入hash表
+     * 返回指定的已打开文件，这些文件都保存在并发hash表中。
+     * 如果该文件未被打开，则按它的存储后端打开并加入hash表
      *
      * @param fileName 打开的文件
-     * @return FileChannel对象
-     * @throws FileNotFoundException
+     * @return FileStore对象
+     * @throws IOException
      */
-    private FileChannel getFile(String fileName) throws FileNotFoundException {
-        FileChannel fc = openFiles.get(fileName);
-        if (fc == null) {
-            File dbTable = new File(dbDirectory, fileName);
-            // 相对于rw模式，还要求对文件的内容或元数据的每个更新都同步写入到底层存储设备
-            // “s” portion specifies that the OS should not delay disk I/O in order to optimize disk
-            //performance; instead, every write operation must be written immediately to the disk
-            RandomAccessFile f = new RandomAccessFile(dbTable, "rws");
-            fc = f.getChannel();
-            openFiles.put(fileName, fc);
+    private FileStore getFile(String fileName) throws IOException {
+        FileStore file = openFiles.get(fileName);
+        if (file != null)
+            return file;
+        try {
+            return openFiles.computeIfAbsent(fileName, name -> {
+                File dbTable = fileOf(name);
+                try {
+                    // 打开模式由文件的持久化方式决定，见DurabilityMode。
+                    // 比如"rws"相对于rw模式，还要求对文件的内容或元数据的每个更新都同步写入到底层存储设备
+                    return backendOf(name).open(dbTable, durabilityOf(name), blockSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return fc;
+    }
+
+    /**
+     * 数据库目录下的文件
+     *
+     * @param fileName
+     * @return
+     */
+    File fileOf(String fileName) {
+        return new File(dbDirectory, fileName);
+    }
+
+    /**
+     * 追加新块和批量读写时锁住的文件对象
+     *
+     * @param fileName
+     * @return
+     */
+    private Object fileLock(String fileName) {
+        return fileLocks.computeIfAbsent(fileName, name -> new Object());
+    }
+
+    /**
+     * 调用FileStore读写的次数，对于CHANNEL后端就是读写的系统调用次数
+     *
+     * @return
+     */
+    public long ioCalls() {
+        return ioCalls.sum();
+    }
+
+    /**
+     * 读写的块数，和{@link #ioCalls()}的比值就是平均每次系统调用传输的块数
+     *
+     * @return
+     */
+    public long blocksTransferred() {
+        return blocksTransferred.sum();
+    }
+
+    public void resetStatistics() {
+        ioCalls.reset();
+        blocksTransferred.reset();
     }
 
     public boolean isNew() {
@@ -148,4 +747,37 @@ public class FileMgr {
         isNew = aNew;
     }
 
+    /**
+     * 文件在内存中记录的长度。
+     * 只在文件锁内修改；blocks是volatile的，读的时候不需要加锁
+     */
+    private static class FileLength {
+        volatile int blocks;     // 已经使用的块数，即size()的返回值
+        volatile long allocated; // 文件实际的字节数，预分配时大于blocks*blockSize。在文件锁内修改，allocated()不加锁读
+
+        FileLength(int blocks, long allocated) {
+            this.blocks = blocks;
+            this.allocated = allocated;
+        }
+    }
+
+    /**
+     * 同一个文件中一段连续的块，以及对应的缓冲区
+     */
+    static class Run {
+        final Block first;       // 第一个块
+        final ByteBuffer[] bbs;
+
+        Run(Block first, ByteBuffer[] bbs) {
+            this.first = first;
+            this.bbs = bbs;
+        }
+    }
+
+    /**
+     * 对一个打开的文件的读写操作
+     */
+    private interface FileOp {
+        void run(FileStore file) throws IOException;
+    }
 }
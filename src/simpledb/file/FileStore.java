@@ -0,0 +1,87 @@
+package simpledb.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 一个打开的数据库文件，FileMgr通过它按字节位置读写文件的内容。
+ * 不同的实现对应不同的存储后端，见{@link StorageBackend}。
+ * 实现必须允许多个线程同时按位置读写；向文件尾部追加时由FileMgr保证同一时刻只有一个线程
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public interface FileStore {
+
+    /**
+     * 从文件的pos位置开始读，直到装满bb或者读到文件末尾
+     *
+     * @param pos 文件中的字节位置
+     * @param bb  position为0的字节缓冲区
+     * @throws IOException
+     */
+    void read(long pos, ByteBuffer bb) throws IOException;
+
+    /**
+     * 将bb中剩余的内容写到文件的pos位置，pos可以等于文件长度（追加）
+     *
+     * @param pos 文件中的字节位置
+     * @param bb  position为0的字节缓冲区
+     * @throws IOException
+     */
+    void write(long pos, ByteBuffer bb) throws IOException;
+
+    /**
+     * 从文件的pos位置开始依次读入多个缓冲区（分散读），直到都装满或者读到文件末尾。
+     * 默认实现逐个读；实现可以用一次系统调用完成，调用者需要持有这个文件的锁
+     *
+     * @param pos 文件中的字节位置
+     * @param bbs position都为0的字节缓冲区
+     * @throws IOException
+     */
+    default void read(long pos, ByteBuffer[] bbs) throws IOException {
+        for (ByteBuffer bb : bbs) {
+            int len = bb.remaining();
+            read(pos, bb);
+            pos += len;
+        }
+    }
+
+    /**
+     * 把多个缓冲区的内容依次写到文件的pos位置（集中写）。
+     * 默认实现逐个写；实现可以用一次系统调用完成，调用者需要持有这个文件的锁
+     *
+     * @param pos 文件中的字节位置
+     * @param bbs position都为0的字节缓冲区
+     * @throws IOException
+     */
+    default void write(long pos, ByteBuffer[] bbs) throws IOException {
+        for (ByteBuffer bb : bbs) {
+            int len = bb.remaining();
+            write(pos, bb);
+            pos += len;
+        }
+    }
+
+    /**
+     * 文件当前的字节数
+     *
+     * @return
+     * @throws IOException
+     */
+    long size() throws IOException;
+
+    /**
+     * 保证之前写入的内容都持久化到磁盘上
+     *
+     * @throws IOException
+     */
+    void force() throws IOException;
+
+    /**
+     * 关闭文件，之后不能再读写。文件被改名或者删除之前由FileMgr调用
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
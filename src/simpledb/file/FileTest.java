@@ -2,6 +2,13 @@ package simpledb.file;
 
 import simpledb.server.SimpleDB;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @program: simpleDB
  * @description: 测试file模块中的类
@@ -11,7 +18,7 @@ import simpledb.server.SimpleDB;
 public class FileTest {
 
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         SimpleDB.init("simpleDBTest");
 
         Page p1 = new Page();
@@ -31,5 +38,132 @@ public class FileTest {
         p3.read(blk);
         String s = p3.getString(20);
         System.out.println(s);
+
+        testConcurrentAccess("concurrent", "concurrentappend");
+        // 同样的读写换成内存映射的文件，追加之后的读要重新映射
+        SimpleDB.getFileMgr().setBackend("mmapconcurrent", StorageBackend.MMAP);
+        SimpleDB.getFileMgr().setBackend("mmapconcurrentappend", StorageBackend.MMAP);
+        testConcurrentAccess("mmapconcurrent", "mmapconcurrentappend");
+        testBatchIO();
+        testAsyncIO();
+    }
+
+    /**
+     * 异步写、追加、读回来的内容都应该正确
+     */
+    private static void testAsyncIO() {
+        AsyncFileMgr async = SimpleDB.getAsyncFileMgr();
+        int blocks = 16;
+        List<CompletableFuture<Block>> writes = new ArrayList<>();
+        ByteBuffer[] bbs = new ByteBuffer[blocks];
+        for (int i = 0; i < blocks; i++) {
+            bbs[i] = ByteBuffer.allocateDirect(SimpleDB.getFileMgr().blockSize());
+            bbs[i].putInt(0, i * 10);
+            writes.add(async.write(new Block("async", i), bbs[i]));
+        }
+        for (CompletableFuture<Block> w : writes)
+            AsyncFileMgr.await(w);
+        ByteBuffer appended = ByteBuffer.allocateDirect(SimpleDB.getFileMgr().blockSize());
+        appended.putInt(0, -7);
+        Block appendedBlk = AsyncFileMgr.await(async.append("async", appended));
+
+        int errors = 0;
+        for (int i = 0; i < blocks; i++) {
+            bbs[i].putInt(0, -1);
+            Block blk = AsyncFileMgr.await(async.read(new Block("async", i), bbs[i]));
+            if (blk.getBlockNum() != i || bbs[i].getInt(0) != i * 10)
+                errors++;
+        }
+        appended.putInt(0, 0);
+        AsyncFileMgr.await(async.read(appendedBlk, appended));
+        if (appended.getInt(0) != -7)
+            errors++;
+        // 文件末尾之后的块读出来是全0的
+        ByteBuffer past = ByteBuffer.allocateDirect(SimpleDB.getFileMgr().blockSize());
+        past.putInt(0, -1);
+        past.putInt(past.capacity() - 4, -1);
+        AsyncFileMgr.await(async.read(new Block("async", appendedBlk.getBlockNum() + 5), past));
+        if (past.getInt(0) != 0 || past.getInt(past.capacity() - 4) != 0)
+            errors++;
+        // 写到文件末尾之后时和同步写一样按预分配扩展文件，即使之前还没有查过这个文件的长度
+        FileMgr fileMgr = SimpleDB.getFileMgr();
+        String file = "asyncprealloc";
+        fileMgr.delete(file);
+        fileMgr.setPreallocation(file, 8L * fileMgr.blockSize());
+        AsyncFileMgr.await(async.write(new Block(file, 0), past));
+        long length = Paths.get(System.getProperty("user.home"), "simpleDBTest", file).toFile().length();
+        if (length != 8L * fileMgr.blockSize())
+            errors++;
+        System.out.println("async I/O errors: " + errors);
+        if (errors > 0)
+            throw new RuntimeException("async I/O returned wrong blocks");
+    }
+
+    /**
+     * 批量写乱序的、部分连续的块，再批量读回来，每个块的内容都应该正确，
+     * 并且连续的块合并成了一次I/O
+     */
+    private static void testBatchIO() {
+        FileMgr fileMgr = SimpleDB.getFileMgr();
+        int[] blkNums = {7, 3, 4, 5, 12, 6, 20, 21};  // 3-7、12、20-21三段
+        Block[] blks = new Block[blkNums.length];
+        Page[] pages = new Page[blkNums.length];
+        for (int i = 0; i < blkNums.length; i++) {
+            blks[i] = new Block("batch", blkNums[i]);
+            pages[i] = new Page();
+            pages[i].setInt(0, blkNums[i]);
+        }
+        long calls = fileMgr.ioCalls();
+        Page.writeBatch(blks, pages);
+        long writeCalls = fileMgr.ioCalls() - calls;
+
+        for (Page page : pages)
+            page.setInt(0, -1);
+        Page.readBatch(blks, pages);
+        int errors = 0;
+        for (int i = 0; i < blkNums.length; i++) {
+            Page single = new Page();
+            single.read(blks[i]);
+            if (pages[i].getInt(0) != blkNums[i] || single.getInt(0) != blkNums[i])
+                errors++;
+        }
+        System.out.println("batch I/O errors: " + errors + ", write calls: " + writeCalls);
+        if (errors > 0 || writeCalls != 3)
+            throw new RuntimeException("batch I/O wrote wrong blocks");
+    }
+
+    /**
+     * 多个线程同时读写同一个文件的不同块，并同时追加新块，每个块的内容都应该正确
+     */
+    private static void testConcurrentAccess(String fileName, String appendFileName) throws InterruptedException {
+        int threads = 8;
+        int blocksPerThread = 50;
+        Thread[] workers = new Thread[threads];
+        AtomicInteger errors = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                Page page = new Page();
+                for (int i = 0; i < blocksPerThread; i++) {
+                    int blkNum = id * blocksPerThread + i;
+                    page.setInt(0, blkNum);
+                    page.write(new Block(fileName, blkNum));
+                    page.setInt(0, -blkNum);
+                    Block appended = page.append(appendFileName);
+                    page.read(new Block(fileName, blkNum));
+                    if (page.getInt(0) != blkNum)
+                        errors.incrementAndGet();
+                    page.read(appended);
+                    if (page.getInt(0) != -blkNum)
+                        errors.incrementAndGet();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        System.out.println(fileName + " access errors: " + errors.get());
+        if (errors.get() > 0)
+            throw new RuntimeException("concurrent reads and writes returned wrong blocks");
     }
 }
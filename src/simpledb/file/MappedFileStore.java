@@ -0,0 +1,132 @@
+package simpledb.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 基于内存映射的文件，适合读多写少的表。
+ * 文件按段（默认64MB）映射到内存中，读写已经映射的块只是一次内存拷贝，不需要系统调用。
+ * <p>
+ * 映射的长度不会超过文件当前的长度（否则映射本身就会把文件撑大），
+ * 所以向文件尾部追加的块先用FileChannel写入，之后第一次访问新块时再重新映射最后一段。
+ * 段的长度是块大小的整数倍，一个块不会跨越两个段。
+ * <p>
+ * 段数组是写时复制的，读写不加锁，只有重新映射时锁住这个对象。
+ * 旧的映射在没有引用之后由GC释放，Java没有提供显式解除映射的方法
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+class MappedFileStore implements FileStore {
+    // 每一段映射的最大字节数
+    static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private final FileChannel fc;
+    private final DurabilityMode mode;
+    private final int segmentSize;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /**
+     * @param file
+     * @param mode      持久化方式，SYNC和DSYNC的文件每次写都会把对应的段同步到磁盘
+     * @param blockSize 块的大小，段的长度取它的整数倍
+     * @throws IOException
+     */
+    MappedFileStore(File file, DurabilityMode mode, int blockSize) throws IOException {
+        fc = new RandomAccessFile(file, mode.fileMode()).getChannel();
+        this.mode = mode;
+        segmentSize = Math.max(1, SEGMENT_BYTES / blockSize) * blockSize;
+    }
+
+    @Override
+    public void read(long pos, ByteBuffer bb) throws IOException {
+        MappedByteBuffer seg = segmentFor(pos, bb.remaining());
+        if (seg == null) {
+            // 超出了文件末尾（或者文件长度不是块的整数倍），交给channel处理
+            while (bb.hasRemaining()) {
+                if (fc.read(bb, pos + bb.position()) < 0)
+                    break;
+            }
+            return;
+        }
+        int offset = (int) (pos % segmentSize);
+        ByteBuffer src = seg.duplicate();
+        src.limit(offset + bb.remaining()).position(offset);
+        bb.put(src);
+    }
+
+    @Override
+    public void write(long pos, ByteBuffer bb) throws IOException {
+        MappedByteBuffer seg = segmentFor(pos, bb.remaining());
+        if (seg == null) {
+            // 追加的块还没有被映射，写入之后文件变长，下次访问时重新映射
+            while (bb.hasRemaining())
+                fc.write(bb, pos + bb.position());
+            return;
+        }
+        int offset = (int) (pos % segmentSize);
+        ByteBuffer dst = seg.duplicate();
+        dst.position(offset);
+        dst.put(bb);
+        if (!mode.needsForce())
+            seg.force();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return fc.size();
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (MappedByteBuffer seg : segments) {
+            if (seg != null)
+                seg.force();
+        }
+        // 通过channel追加的内容
+        fc.force(false);
+    }
+
+    /**
+     * 关闭channel，映射的段在被回收之前仍然有效，这里只是不再使用它们
+     */
+    @Override
+    public void close() throws IOException {
+        segments = new MappedByteBuffer[0];
+        fc.close();
+    }
+
+    /**
+     * 返回包含[pos, pos+len)的段，必要时重新映射
+     *
+     * @return 这段字节超出了文件末尾时返回null
+     */
+    private MappedByteBuffer segmentFor(long pos, int len) throws IOException {
+        int index = (int) (pos / segmentSize);
+        int end = (int) (pos % segmentSize) + len;
+        MappedByteBuffer[] segs = segments;
+        if (index < segs.length && segs[index] != null && end <= segs[index].capacity())
+            return segs[index];
+        return remap(index, end);
+    }
+
+    private synchronized MappedByteBuffer remap(int index, int end) throws IOException {
+        MappedByteBuffer[] segs = segments;
+        if (index < segs.length && segs[index] != null && end <= segs[index].capacity())
+            return segs[index];  // 其它线程已经重新映射过了
+        long start = (long) index * segmentSize;
+        long length = Math.min(segmentSize, fc.size() - start);
+        if (length < end)
+            return null;
+        MappedByteBuffer seg = fc.map(FileChannel.MapMode.READ_WRITE, start, length);
+        segs = Arrays.copyOf(segs, Math.max(segs.length, index + 1));
+        segs[index] = seg;
+        segments = segs;
+        return seg;
+    }
+}
@@ -4,11 +4,13 @@ import simpledb.server.SimpleDB;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author LiuZhian
  * @program: simpleDB
- * @description: 磁盘块中的具体内容，即在内存中的页，一个页实质上就是长度为BLOCK_SIZE大小的字节数组
+ * @description: 磁盘块中的具体内容，即在内存中的页，一个页实质上就是长度为块大小的字节数组
+ * 块大小由数据库决定，见{@link FileMgr#blockSize()}
  * Page类中包含 get/set 字节数组的方法，也包含将字节数组 读/写 回磁盘的方法。
  * 以下是如何配合Block类和Page类使用的两个用例：
  * 1. 将文件junk的第6个块上第792 offset的int数字加1
@@ -30,28 +32,45 @@ import java.nio.charset.Charset;
  * p3.read(blk);
  * String s = p3.getString(20);
  * </pre>
+ * get/set方法都按绝对位置访问字节数组，不会修改ByteBuffer的position，
+ * 因此多个线程可以同时读同一个页；读写之间的并发控制由调用者负责（见Buffer的latch）
  * @time 2019-07-03 22:14
  **/
 public class Page {
 
     /**
-     * 这里BLOCK_SIZE参数设置的较小，是为了创建数据库时尽量多分配block，方便测试
-     * 常见的BLOCK_SIZE大小为4K，且为2的次方
+     * 新建数据库默认的块大小，和文件系统的页大小一致，每次I/O都是整页
      */
-    public static final int BLOCK_SIZE = 400;
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * 引入数据库头文件之前，块大小固定为400字节。
+     * 当时设置的较小，是为了创建数据库时尽量多分配block，方便测试
+     */
+    public static final int LEGACY_BLOCK_SIZE = 400;
 
     /**
      * 一个Int变量的字节数，其实就是4字节
      */
     public static final int INT_SIZE = Integer.SIZE / Byte.SIZE;
 
+    /**
+     * 一个long变量的字节数
+     */
+    public static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+
+    /**
+     * 默认字符集中一个字符最多编码成的字节数，创建编码器的开销不小，只算一次
+     */
+    private static final int BYTES_PER_CHAR = (int) Charset.defaultCharset().newEncoder().maxBytesPerChar();
+
     /**
      * 块中的具体内容，字节数组存放
      * The code for Page uses the allocateDirect method, which tells the
      * compiler to use one of the operating system‟s I/O buffers to hold the byte array
      */
-    private ByteBuffer contents = ByteBuffer.allocateDirect(BLOCK_SIZE);
     private FileMgr fileMgr = SimpleDB.getFileMgr();
+    private ByteBuffer contents = ByteBuffer.allocateDirect(fileMgr.blockSize());
 
     /**
      * The maximum size, in bytes, of a string of length n.
@@ -65,13 +84,34 @@ public class Page {
      * @return the maximum number of bytes required to store a string of size n
      */
     public static int STR_SIZE(int n) {
-        float bytesPerChar = Charset.defaultCharset().newEncoder().maxBytesPerChar();
-        return INT_SIZE + (n * (int) bytesPerChar);
+        return INT_SIZE + (n * BYTES_PER_CHAR);
     }
 
     public Page() {
     }
 
+    /**
+     * 页的字节数
+     *
+     * @return
+     */
+    public int size() {
+        return contents.capacity();
+    }
+
+    /**
+     * 把另一个页的内容复制到这个页中，调用者要保证复制期间没有线程修改src
+     *
+     * @param src 大小相同的页
+     */
+    public void copyFrom(Page src) {
+        ByteBuffer from = src.contents.duplicate();
+        ByteBuffer to = contents.duplicate();
+        from.clear();
+        to.clear();
+        to.put(from);
+    }
+
     /**
      * 将一个块中的内容读到Page中，这部分由辅助类FileManager结合OS完成
      *
@@ -100,6 +140,56 @@ public class Page {
         return fileMgr.append(fileName, contents);
     }
 
+    /**
+     * 批量将多个块的内容读到对应的页中，连续的块合并成一次I/O，见{@link FileMgr#read(Block[], ByteBuffer[])}
+     * 调用者要保证读盘期间没有其它线程使用这些页
+     *
+     * @param blks
+     * @param pages
+     */
+    public static void readBatch(Block[] blks, Page[] pages) {
+        SimpleDB.getFileMgr().read(blks, contentsOf(pages));
+    }
+
+    /**
+     * 批量将多个页写回到对应的块中，连续的块合并成一次I/O，见{@link FileMgr#write(Block[], ByteBuffer[])}
+     *
+     * @param blks
+     * @param pages
+     */
+    public static void writeBatch(Block[] blks, Page[] pages) {
+        SimpleDB.getFileMgr().write(blks, contentsOf(pages));
+    }
+
+    /**
+     * 异步地批量读，见{@link AsyncFileMgr#read(Block[], ByteBuffer[])}，完成之前调用者不能使用这些页
+     *
+     * @param blks
+     * @param pages
+     * @return 所有块都读完时完成
+     */
+    public static CompletableFuture<Void> readBatchAsync(Block[] blks, Page[] pages) {
+        return SimpleDB.getAsyncFileMgr().read(blks, contentsOf(pages));
+    }
+
+    /**
+     * 异步地批量写，见{@link AsyncFileMgr#write(Block[], ByteBuffer[])}，完成之前调用者不能修改这些页
+     *
+     * @param blks
+     * @param pages
+     * @return 所有块都写完时完成
+     */
+    public static CompletableFuture<Void> writeBatchAsync(Block[] blks, Page[] pages) {
+        return SimpleDB.getAsyncFileMgr().write(blks, contentsOf(pages));
+    }
+
+    private static ByteBuffer[] contentsOf(Page[] pages) {
+        ByteBuffer[] bbs = new ByteBuffer[pages.length];
+        for (int i = 0; i < pages.length; i++)
+            bbs[i] = pages[i].contents;
+        return bbs;
+    }
+
     /**
      * 读取页中指定offset开始的int数字，用户应该对传来的offset参数负责
      * 如果offset位置开始读不到int，结果不可预期
@@ -107,9 +197,8 @@ public class Page {
      * @param offset
      * @return
      */
-    public synchronized int getInt(int offset) {
-        contents.position(offset);
-        return contents.getInt();
+    public int getInt(int offset) {
+        return contents.getInt(offset);
     }
 
     /**
@@ -118,9 +207,54 @@ public class Page {
      * @param offset
      * @param val
      */
-    public synchronized void setInt(int offset, int val) {
-        contents.position(offset);
-        contents.putInt(val);
+    public void setInt(int offset, int val) {
+        contents.putInt(offset, val);
+    }
+
+    /**
+     * 读取页中指定offset开始的long数字
+     *
+     * @param offset
+     * @return
+     */
+    public long getLong(int offset) {
+        return contents.getLong(offset);
+    }
+
+    /**
+     * 设置页中指定offset开始的long数字为val
+     *
+     * @param offset
+     * @param val
+     */
+    public void setLong(int offset, long val) {
+        contents.putLong(offset, val);
+    }
+
+    /**
+     * 把页中offset开始的len个字节复制到dst中，不创建任何对象
+     *
+     * @param offset
+     * @param dst
+     * @param dstOffset
+     * @param len
+     */
+    public void getBytes(int offset, byte[] dst, int dstOffset, int len) {
+        for (int i = 0; i < len; i++)
+            dst[dstOffset + i] = contents.get(offset + i);
+    }
+
+    /**
+     * 把src中的len个字节复制到页中offset开始的位置，不创建任何对象
+     *
+     * @param offset
+     * @param src
+     * @param srcOffset
+     * @param len
+     */
+    public void setBytes(int offset, byte[] src, int srcOffset, int len) {
+        for (int i = 0; i < len; i++)
+            contents.put(offset + i, src[srcOffset + i]);
     }
 
     /**
@@ -130,12 +264,13 @@ public class Page {
      * @param offset
      * @return
      */
-    public synchronized String getString(int offset) {
-        contents.position(offset);
+    public String getString(int offset) {
         // 一个字符串在底层的编码中格式设置为：字符串长度(一个int类型)+各字符的ascii码
-        int len = contents.getInt();
+        int len = contents.getInt(offset);
         byte[] bytes = new byte[len];
-        contents.get(bytes);
+        int pos = offset + INT_SIZE;
+        for (int i = 0; i < len; i++)
+            bytes[i] = contents.get(pos + i);
         return new String(bytes);
     }
 
@@ -145,12 +280,13 @@ public class Page {
      * @param offset
      * @param val
      */
-    public synchronized void setString(int offset, String val) {
-        contents.position(offset);
+    public void setString(int offset, String val) {
         byte[] bytes = val.getBytes();
         // 先放len，再放ASCII码
-        contents.putInt(bytes.length);
-        contents.put(bytes);
+        contents.putInt(offset, bytes.length);
+        int pos = offset + INT_SIZE;
+        for (int i = 0; i < bytes.length; i++)
+            contents.put(pos + i, bytes[i]);
     }
 
 
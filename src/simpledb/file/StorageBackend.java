@@ -0,0 +1,36 @@
+package simpledb.file;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * FileMgr访问文件的方式，可以对每个文件单独指定，便于比较两种方式的性能
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public enum StorageBackend {
+    /**
+     * 每次读写都通过FileChannel，适合追加频繁的文件，比如日志
+     */
+    CHANNEL,
+    /**
+     * 把文件映射到内存中，缓冲池未命中时直接从映射区拷贝，没有系统调用，适合读多写少的表
+     */
+    MMAP;
+
+    /**
+     * 以指定的持久化方式打开文件
+     *
+     * @param file
+     * @param mode
+     * @param blockSize
+     * @return
+     * @throws IOException
+     */
+    FileStore open(File file, DurabilityMode mode, int blockSize) throws IOException {
+        if (this == MMAP)
+            return new MappedFileStore(file, mode, blockSize);
+        return new ChannelFileStore(file, mode);
+    }
+}
@@ -4,12 +4,13 @@ import simpledb.file.Page;
 
 
 import static simpledb.file.Page.INT_SIZE;
-import static simpledb.file.Page.STR_SIZE;
+import static simpledb.file.Page.LONG_SIZE;
 
 /**
  * @program: simpleDB
  * @description: 基本的日志记录对象
- * 改类的对象本身不知道日志的具体信息，只提供了nextInt()和nextString()方法
+ * 改类的对象本身不知道日志的具体信息，只提供了nextInt()、nextLong()、nextBytes()和nextString()等方法，
+ * 和{@link LogRecordWriter}的putXxx()一一对应
  * 调用该对象方法的客户端应该负责，知道哪个位置存的是什么类型的数据
  * @author: LiuZhian
  * @create: 2019-07-04 17:23
@@ -29,9 +30,44 @@ public class BasicLogRecord {
         return result;
     }
 
+    public long nextLong() {
+        long result = pg.getLong(pos);
+        pos += LONG_SIZE;
+        return result;
+    }
+
+    /**
+     * 字符串前面的int就是编码后的字节数，直接按它移动指针。
+     * 字节数超出了页的范围说明这个位置存的不是字符串，不要按它去分配内存
+     * @return
+     */
     public String nextString() {
+        int len = pg.getInt(pos);
+        if (len < 0 || len > pg.size() - pos - INT_SIZE)
+            throw new IllegalStateException("no string at position " + pos + " of the log record, length " + len);
         String result=pg.getString(pos);
-        pos += STR_SIZE(result.length());  // 指针移动
+        pos += INT_SIZE + len;  // 指针移动
         return result;
     }
+
+    /**
+     * 把下一个字节数组（或字符串编码后的字节）复制到dst中，不创建任何对象
+     * @param dst 要能放下这个字节数组
+     * @return 字节数
+     */
+    public int nextBytes(byte[] dst) {
+        int len = pg.getInt(pos);
+        if (len > dst.length)
+            throw new IllegalArgumentException("need " + len + " bytes, buffer has " + dst.length);
+        pg.getBytes(pos + INT_SIZE, dst, 0, len);
+        pos += INT_SIZE + len;
+        return len;
+    }
+
+    /**
+     * 跳过下一个字节数组或字符串
+     */
+    public void skipBytes() {
+        pos += INT_SIZE + pg.getInt(pos);
+    }
 }
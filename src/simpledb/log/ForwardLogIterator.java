@@ -0,0 +1,152 @@
+package simpledb.log;
+
+import simpledb.file.Page;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static simpledb.file.Page.INT_SIZE;
+
+/**
+ * 按追加的顺序遍历日志记录，从指定的LSN开始，直到创建迭代器时已经写盘的最后一条记录，比如恢复时的重做。
+ * 和{@link LogIterator}一样每次读一大段连续的块，并在后台预读后面的一段。
+ * 块中的记录只有指向前一条记录的指针，所以读入一个块时先沿着指针找出所有记录的起点，再按顺序返回。
+ * next()返回的记录在下一次调用hasNext()或next()之前有效
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class ForwardLogIterator implements Iterator<BasicLogRecord> {
+    private final int blockSize;
+    private final long lastBlk;      // 遍历到这个块为止
+    private LogChunk chunk;          // 包含当前块的一段
+    private LogChunk ahead;          // 在后台预读的后一段，每段只有一个块时不预读
+    private long blk;                // 当前块的全局块号
+    private Page page;               // 当前块的内容
+    private final int[] starts;      // 当前块中各条记录的起点，按位置从小到大
+    private final int[] ends;        // 各条记录末尾的int的位置
+    private LogCompressor decompressor;  // 遇到第一条压缩过的记录时创建
+    private int count;               // 当前块中的记录数
+    private int index;               // 下一条要返回的记录
+    private long lsn = -1;           // 上一次返回的记录的LSN
+
+    /**
+     * @param logMgr
+     * @param fromLSN     第一条记录的LSN，早于还保留着的日志时从最早的记录开始
+     * @param lastBlk     最后一个块的全局块号
+     * @param chunkBlocks 每次读的块数，1表示逐块读
+     */
+    ForwardLogIterator(LogMgr logMgr, long fromLSN, long lastBlk, int chunkBlocks) {
+        this.blockSize = logMgr.blockSize();
+        this.lastBlk = lastBlk;
+        // 每条记录至少有末尾的int
+        starts = new int[blockSize / INT_SIZE];
+        ends = new int[starts.length];
+        int n = Math.max(1, chunkBlocks);
+        chunk = new LogChunk(logMgr, n);
+        if (n > 1)
+            ahead = new LogChunk(logMgr, n);
+        blk = Math.max(fromLSN / blockSize, logMgr.firstBlock());
+        if (blk > lastBlk)
+            return;   // 没有要读的记录
+        chunk.load(blk, chunkLength(blk), false);
+        readAhead();
+        readBlock();
+        while (index < count && blk * blockSize + starts[index] < fromLSN)
+            index++;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (index >= count && blk < lastBlk)
+            moveToNextBlock();
+        return index < count;
+    }
+
+    @Override
+    public BasicLogRecord next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        int start = starts[index];
+        int end = ends[index++];
+        lsn = blk * blockSize + start;
+        if ((page.getInt(end) & LogMgr.COMPRESSED) == 0)
+            return new BasicLogRecord(page, start);
+        if (decompressor == null)
+            decompressor = new LogCompressor(LogMgr.maxRecord(blockSize));
+        return decompressor.decompress(page, start, end);
+    }
+
+    /**
+     * 上一次next()返回的记录的LSN
+     *
+     * @return
+     */
+    public long lsn() {
+        return lsn;
+    }
+
+    private void moveToNextBlock() {
+        blk++;
+        if (!chunk.contains(blk)) {
+            if (ahead != null && ahead.contains(blk)) {
+                LogChunk c = chunk;
+                chunk = ahead;
+                ahead = c;
+            } else {
+                chunk.load(blk, chunkLength(blk), false);
+            }
+            readAhead();
+        }
+        readBlock();
+    }
+
+    /**
+     * 从first开始的一段的块数
+     */
+    private int chunkLength(long first) {
+        return (int) Math.min(chunk.capacity(), lastBlk - first + 1);
+    }
+
+    /**
+     * 在后台读当前这一段之后的一段
+     */
+    private void readAhead() {
+        if (ahead == null)
+            return;
+        long first = chunk.first() + chunk.capacity();
+        if (first <= lastBlk && !chunk.contains(lastBlk))
+            ahead.load(first, chunkLength(first), true);
+    }
+
+    /**
+     * 读入当前块，从块头中最后一条记录开始沿着指针往前，得到各条记录的起点。
+     * 块头中的块号对不上的块（重新使用的段中旧的块）当作没有记录
+     */
+    private void readBlock() {
+        page = chunk.page(blk);
+        index = 0;
+        count = 0;
+        if (page.getLong(LogMgr.BLOCK_NUM) != blk)
+            return;
+        int rec = page.getInt(LogMgr.LAST_POS);
+        while (rec > LogMgr.LAST_POS) {
+            ends[count] = rec;
+            rec = page.getInt(rec) & ~LogMgr.COMPRESSED;    // 上一条记录末尾的int，这条记录从它后面开始
+            starts[count++] = rec + INT_SIZE;
+        }
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            int t = starts[i];
+            starts[i] = starts[j];
+            starts[j] = t;
+            t = ends[i];
+            ends[i] = ends[j];
+            ends[j] = t;
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,313 @@
+package simpledb.log;
+
+import simpledb.file.FileMgr;
+import simpledb.server.SimpleDB;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @program: simpleDB
+ * @description: 日志管理模块的性能测试，用法：
+ * java simpledb.log.LogBenchmark [每种配置追加的记录数] [每种并发度提交的毫秒数] [遍历的日志MB数]
+ **/
+public class LogBenchmark {
+
+    public static void main(String[] args) {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        long commitMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        long scanMB = args.length > 2 ? Long.parseLong(args[2]) : 64;
+        // 检查点会截断日志，遍历日志的测试要读完整的日志
+        SimpleDB.CHECKPOINT_INTERVAL = 0;
+        SimpleDB.CHECKPOINT_LOG_BYTES = 0;
+        int defaultBlockSize = SimpleDB.BLOCK_SIZE;
+        try {
+            for (int blockSize : new int[]{400, 4096, 16384, 65536}) {
+                SimpleDB.BLOCK_SIZE = blockSize;
+                SimpleDB.init("logBenchDB_" + blockSize);
+                appendThroughput(SimpleDB.getLogMgr(), records);
+            }
+        } finally {
+            SimpleDB.BLOCK_SIZE = defaultBlockSize;
+        }
+
+        int defaultBuffers = SimpleDB.LOG_BUFFERS;
+        boolean defaultWriter = SimpleDB.LOG_GROUP_COMMIT;
+        try {
+            for (boolean background : new boolean[]{false, true}) {
+                SimpleDB.LOG_GROUP_COMMIT = background;
+                System.out.println(background ? "pages written by the log writer" : "pages written by the appender");
+                for (int buffers : new int[]{2, 4, 8, 16, 32}) {
+                    SimpleDB.LOG_BUFFERS = buffers;
+                    SimpleDB.init("logBenchDB_ring");
+                    appendThroughput(SimpleDB.getLogMgr(), records);
+                }
+            }
+        } finally {
+            SimpleDB.LOG_BUFFERS = defaultBuffers;
+            SimpleDB.LOG_GROUP_COMMIT = defaultWriter;
+        }
+
+        SimpleDB.init("logBenchDB_alloc");
+        allocationPerRecord(SimpleDB.getLogMgr(), records);
+
+        SimpleDB.init("logBenchDB_concurrent");
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+            concurrentAppends(SimpleDB.getLogMgr(), threads, records);
+        }
+
+        try {
+            for (int blockSize : new int[]{400, 4096}) {
+                SimpleDB.BLOCK_SIZE = blockSize;
+                SimpleDB.init("logBenchDB_scan_" + blockSize);
+                scanThroughput(SimpleDB.getLogMgr(), scanMB * 1024 * 1024);
+            }
+        } finally {
+            SimpleDB.BLOCK_SIZE = defaultBlockSize;
+        }
+
+        SimpleDB.init("logBenchDB_commit");
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        for (long delay : new long[]{-1, 0, 200}) {
+            if (delay < 0) {
+                logMgr.stopWriter();
+                System.out.println("no group commit");
+            } else {
+                logMgr.startWriter(delay);
+                System.out.println("group commit, max delay " + delay + "us");
+            }
+            for (int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+                commitThroughput(logMgr, threads, commitMillis);
+            }
+        }
+        if (SimpleDB.LOG_GROUP_COMMIT)
+            logMgr.startWriter(SimpleDB.LOG_GROUP_COMMIT_DELAY);
+        else
+            logMgr.stopWriter();
+
+        SimpleDB.init("logBenchDB_compress");
+        logMgr = SimpleDB.getLogMgr();
+        for (boolean compression : new boolean[]{false, true}) {
+            logMgr.setCompression(compression);
+            System.out.println(compression ? "compressed log records" : "uncompressed log records");
+            for (int threads : new int[]{1, 4, 16}) {
+                updateCommits(logMgr, threads, commitMillis);
+            }
+        }
+    }
+
+    /**
+     * 单线程连续追加日志记录，最后flush一次，统计每秒追加的记录数。
+     * 日志缓冲环写满时要等写满的页写盘，块越大、环越大等待越少；
+     * 由日志写线程在后台写盘时，追加和写盘可以同时进行
+     */
+    private static void appendThroughput(LogMgr logMgr, int records) {
+        Object[] rec = new Object[]{1, 2, "abcdefghijklmnopqrst"};
+        long begin = System.nanoTime();
+        long lsn = -1;
+        for (int i = 0; i < records; i++) {
+            rec[0] = i;
+            lsn = logMgr.append(rec);
+        }
+        logMgr.flush(lsn);
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("block size %-6d %2d log buffers %d appends in %.1fms, %.0f records/s, ring full %d times%n",
+                SimpleDB.getFileMgr().blockSize(), logMgr.buffers(), records, elapsed / 1e6,
+                records / (elapsed / 1e9), logMgr.ringFullWaits());
+    }
+
+    /**
+     * 比较两种追加方式每条记录分配的堆内存：Object[]记录要装箱，
+     * LogRecordWriter直接编码，稳定之后应该是0字节。
+     * 用ThreadMXBean统计当前线程分配的字节数，先预热让JIT编译完热点路径
+     */
+    private static void allocationPerRecord(LogMgr logMgr, int records) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        for (int round = 0; round < 2; round++) {   // 第一轮是预热
+            long before = mx.getThreadAllocatedBytes(tid);
+            long begin = System.nanoTime();
+            for (int i = 0; i < records; i++)
+                logMgr.append(new Object[]{"setint", i, 1000 + i, i * 7});
+            long objectsTime = System.nanoTime() - begin;
+            long objects = mx.getThreadAllocatedBytes(tid) - before;
+
+            before = mx.getThreadAllocatedBytes(tid);
+            begin = System.nanoTime();
+            for (int i = 0; i < records; i++)
+                logMgr.append(logMgr.recordWriter().putString("setint").putInt(i).putInt(1000 + i).putInt(i * 7));
+            long typedTime = System.nanoTime() - begin;
+            long typed = mx.getThreadAllocatedBytes(tid) - before;
+            if (round == 1) {
+                System.out.printf("Object[]        %.1f bytes allocated per record, %.0f records/s%n",
+                        (double) objects / records, records / (objectsTime / 1e9));
+                System.out.printf("LogRecordWriter %.1f bytes allocated per record, %.0f records/s%n",
+                        (double) typed / records, records / (typedTime / 1e9));
+            }
+        }
+    }
+
+    /**
+     * 多个线程同时追加日志记录，统计每秒追加的记录数。
+     * 追加只用CAS预留位置，复制记录时线程之间互不等待
+     */
+    private static void concurrentAppends(LogMgr logMgr, int threads, int records) {
+        int perThread = records / threads;
+        long waitsBefore = logMgr.ringFullWaits();
+        Thread[] ts = new Thread[threads];
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int txnum = t;
+            ts[t] = new Thread(() -> {
+                Object[] rec = new Object[]{1, txnum, "abcdefghijklmnopqrst"};
+                for (int i = 0; i < perThread; i++)
+                    logMgr.append(rec);
+            });
+            ts[t].start();
+        }
+        try {
+            for (Thread t : ts)
+                t.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted", e);
+        }
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("  %2d threads %10.0f appends/s, ring full %d times%n", threads,
+                perThread * threads / (elapsed / 1e9), logMgr.ringFullWaits() - waitsBefore);
+    }
+
+    /**
+     * 比较遍历整个日志的速度：逐块读的逆序遍历（原来的做法，每个块一次读盘），
+     * 每次读一大段并预读的逆序遍历，以及同样按段读的顺序遍历。
+     * 日志不够大时先追加到指定的大小；日志文件可能还在操作系统的缓存中，这时比较的主要是系统调用的开销
+     */
+    private static void scanThroughput(LogMgr logMgr, long bytes) {
+        LogRecordWriter w = logMgr.recordWriter();
+        long start = logMgr.firstSegment() * logMgr.segmentBlocks() * logMgr.blockSize();
+        long lsn = logMgr.flushedLSN();
+        for (int i = 0; lsn - start < bytes; i++)
+            lsn = logMgr.append(w.clear().putString("setint").putInt(i).putInt(1000 + i).putInt(i * 7));
+        logMgr.flush(lsn);
+        double mb = (double) (logMgr.flushedLSN() - start) / (1024 * 1024);
+        for (int chunk : new int[]{1, 0}) {
+            FileMgr fileMgr = SimpleDB.getFileMgr();
+            fileMgr.resetStatistics();
+            long begin = System.nanoTime();
+            Iterator<BasicLogRecord> it = chunk == 1 ? logMgr.iterator(1) : logMgr.iterator();
+            long n = 0;
+            while (it.hasNext()) {
+                it.next().skipBytes();
+                n++;
+            }
+            report(chunk == 1 ? "reverse, block at a time" : "reverse, chunked", n, mb, System.nanoTime() - begin);
+        }
+        SimpleDB.getFileMgr().resetStatistics();
+        long begin = System.nanoTime();
+        ForwardLogIterator it = logMgr.forwardIterator(0);
+        long n = 0;
+        while (it.hasNext()) {
+            it.next().skipBytes();
+            n++;
+        }
+        report("forward, chunked", n, mb, System.nanoTime() - begin);
+    }
+
+    private static void report(String scan, long records, double mb, long elapsed) {
+        FileMgr fileMgr = SimpleDB.getFileMgr();
+        System.out.printf("block size %-5d %-25s %9.0f records/s %7.1f MB/s, %d reads of %.1f blocks%n",
+                fileMgr.blockSize(), scan, records / (elapsed / 1e9), mb / (elapsed / 1e9), fileMgr.ioCalls(),
+                fileMgr.ioCalls() == 0 ? 0.0 : (double) fileMgr.blocksTransferred() / fileMgr.ioCalls());
+    }
+
+    /**
+     * 多个线程模拟事务提交：每次追加一条提交记录，再flush到这条记录为止，统计每秒提交的事务数。
+     * 没有组提交时每个事务各自写一次盘；组提交时一次写盘服务一批事务，并发越高每批越大
+     */
+    private static void commitThroughput(LogMgr logMgr, int threads, long millis) {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong commits = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        LogWriter writer = logMgr.writer();
+        long flushesBefore = writer == null ? 0 : writer.flushes();
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int txnum = t;
+            new Thread(() -> {
+                try {
+                    Object[] rec = new Object[]{2, txnum};   // 提交记录：<COMMIT, txnum>
+                    while (!stop.get()) {
+                        long lsn = logMgr.append(rec);
+                        logMgr.flush(lsn);
+                        commits.incrementAndGet();
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        try {
+            Thread.sleep(millis);
+            stop.set(true);
+            done.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted", e);
+        }
+        long elapsed = System.nanoTime() - begin;
+        long n = commits.get();
+        String batch = "";
+        if (writer != null) {
+            long flushes = writer.flushes() - flushesBefore;
+            batch = String.format(", %.1f commits/flush", flushes == 0 ? 0.0 : (double) n / flushes);
+        }
+        System.out.printf("  %2d threads %8.0f commits/s%s%n", threads, n / (elapsed / 1e9), batch);
+    }
+
+    /**
+     * 多个线程模拟更新多的事务：每个事务修改4条记录，每次修改写一条带着修改前后的值的日志记录，
+     * 最后追加提交记录并flush。统计每秒提交的事务数、每个事务写的日志字节数（包括块尾用不上的空间）和日志的写入速度
+     */
+    private static void updateCommits(LogMgr logMgr, int threads, long millis) {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong commits = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        long startLSN = logMgr.endLSN();
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int txnum = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; !stop.get(); i++) {
+                        for (int slot = 0; slot < 4; slot++) {
+                            String before = "id=" + (i * 4 + slot) + ";name=student " + txnum
+                                    + ";major=computer science;dept=engineering;grad=2019;status=enrolled;";
+                            String after = before.replace("grad=2019", "grad=2020");
+                            // <SETSTRING, txnum, fileName, blockNum, offset, 旧值, 新值>
+                            logMgr.append(logMgr.recordWriter().putInt(5).putInt(txnum).putString("student.tbl")
+                                    .putInt(i % 1000).putInt(slot * 128).putString(before).putString(after));
+                        }
+                        long lsn = logMgr.append(logMgr.recordWriter().putInt(2).putInt(txnum));
+                        logMgr.flush(lsn);
+                        commits.incrementAndGet();
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        try {
+            Thread.sleep(millis);
+            stop.set(true);
+            done.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted", e);
+        }
+        long elapsed = System.nanoTime() - begin;
+        long n = commits.get();
+        long bytes = logMgr.endLSN() - startLSN;
+        System.out.printf("  %2d threads %8.0f commits/s, %6.1f log bytes/commit, %6.1f MB/s of log%n", threads,
+                n / (elapsed / 1e9), (double) bytes / n, bytes / (elapsed / 1e9) / (1024 * 1024));
+    }
+}
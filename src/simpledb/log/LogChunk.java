@@ -0,0 +1,86 @@
+package simpledb.log;
+
+import simpledb.file.AsyncFileMgr;
+import simpledb.file.Block;
+import simpledb.file.Page;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 日志中一段连续的块，一次批量读进来，同一个段文件中的块合并成一次分散读。
+ * 可以在后台异步地读，用到的时候再等它读完，遍历日志时就能一边解析这一段，一边读下一段
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+class LogChunk {
+    private final LogMgr logMgr;
+    private final Page[] pages;
+    private long first = -1;                // 第一个块的全局块号
+    private int count;                      // 读进来的块数
+    private CompletableFuture<Void> pending; // 还没有读完的异步读
+
+    /**
+     * @param logMgr
+     * @param blocks 最多的块数
+     */
+    LogChunk(LogMgr logMgr, int blocks) {
+        this.logMgr = logMgr;
+        pages = new Page[blocks];
+        for (int i = 0; i < blocks; i++)
+            pages[i] = new Page();
+    }
+
+    int capacity() {
+        return pages.length;
+    }
+
+    long first() {
+        return first;
+    }
+
+    /**
+     * 读入从first开始的count个块，之前读进来的内容都作废
+     *
+     * @param first 全局块号
+     * @param count 不超过capacity()
+     * @param async 是否在后台读，读完之前调用page()会等待
+     */
+    void load(long first, int count, boolean async) {
+        awaitPending();   // 上一次的读还在往这些页中写
+        Block[] blks = new Block[count];
+        for (int i = 0; i < count; i++)
+            blks[i] = logMgr.blockFor(first + i);
+        Page[] ps = count == pages.length ? pages : Arrays.copyOf(pages, count);
+        this.first = first;
+        this.count = count;
+        if (async)
+            pending = Page.readBatchAsync(blks, ps);
+        else
+            Page.readBatch(blks, ps);
+    }
+
+    boolean contains(long blk) {
+        return blk >= first && blk < first + count;
+    }
+
+    /**
+     * 全局块号为blk的块的内容
+     *
+     * @param blk 必须在这一段中
+     * @return
+     */
+    Page page(long blk) {
+        awaitPending();
+        return pages[(int) (blk - first)];
+    }
+
+    private void awaitPending() {
+        if (pending != null) {
+            CompletableFuture<Void> f = pending;
+            pending = null;
+            AsyncFileMgr.await(f);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package simpledb.log;
+
+import simpledb.file.Page;
+
+import java.util.Arrays;
+
+/**
+ * 日志记录的压缩和解压，LZ77一类的快速算法，格式和LZ4的块格式类似。
+ * 压缩后的记录先是2个字节的原始长度，接着是若干个序列，每个序列是：
+ * <pre>
+ * token（高4位是字面量字节数，低4位是匹配长度-4） [字面量字节数-15的扩展字节] 字面量
+ * 匹配的距离（2个字节，小端） [匹配长度-19的扩展字节]
+ * </pre>
+ * 字段等于15时后面跟着扩展字节，每个扩展字节加到长度上，直到一个不是255的字节为止。
+ * 最后一个序列只有字面量。查找匹配用一张以4个字节为键的哈希表，每个位置只记最近的一个候选，
+ * 压缩一条记录只扫描一遍，不创建任何对象。
+ * <p>
+ * 每条记录单独压缩，LSN仍然是记录在日志中的位置，逆序和顺序遍历都能单独解压任何一条记录。
+ * 同一条记录中重复的内容（比如修改前后的值、相同的前缀）压缩得最好
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+class LogCompressor {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_BITS = 12;
+    private static final int LENGTH_SIZE = 2;     // 压缩内容开头的原始长度
+    private final int[] table = new int[1 << HASH_BITS];  // 哈希到位置+base，小于base的是之前的记录留下的
+    private int base = 1;
+    private final byte[] out;        // 压缩的结果
+    private final byte[] in;         // 解压时从日志页中复制出来的压缩内容
+    private final byte[] raw;        // 解压的结果
+    private Page rawPage;            // 解压后的记录，读它的BasicLogRecord指向这个页
+
+    /**
+     * @param maxRecord 记录最多的字节数
+     */
+    LogCompressor(int maxRecord) {
+        if (maxRecord > MAX_DISTANCE)
+            throw new IllegalArgumentException("log records longer than " + MAX_DISTANCE + " bytes");
+        out = new byte[maxRecord];
+        in = new byte[maxRecord];
+        raw = new byte[maxRecord];
+    }
+
+    /**
+     * 压缩src中的前len个字节，结果在{@link #output()}中
+     *
+     * @param src
+     * @param len
+     * @return 压缩后的字节数，压缩之后不比原来短时返回-1
+     */
+    int compress(byte[] src, int len) {
+        if (base > Integer.MAX_VALUE - 2 * MAX_DISTANCE) {
+            Arrays.fill(table, 0);
+            base = 1;
+        }
+        // 这条记录用[base, base + len)，不管压缩是否成功，之后的记录都不会把这些位置当作自己的
+        int b = base;
+        base += len;
+        int limit = len - 1;   // 压缩后的长度必须小于这个值才有意义
+        out[0] = (byte) (len >>> 8);
+        out[1] = (byte) len;
+        int op = LENGTH_SIZE;
+        int anchor = 0;
+        int i = 0;
+        while (i <= len - MIN_MATCH) {
+            int v = readInt(src, i);
+            int h = (v * -1640531535) >>> (32 - HASH_BITS);
+            int candidate = table[h] - b;
+            table[h] = i + b;
+            if (candidate < 0 || i - candidate > MAX_DISTANCE || readInt(src, candidate) != v) {
+                i++;
+                continue;
+            }
+            int match = MIN_MATCH;
+            while (i + match < len && src[candidate + match] == src[i + match])
+                match++;
+            op = writeSequence(src, anchor, i - anchor, i - candidate, match, op, limit);
+            if (op < 0)
+                return -1;
+            i += match;
+            anchor = i;
+        }
+        return writeSequence(src, anchor, len - anchor, 0, 0, op, limit);
+    }
+
+    /**
+     * 写一个序列，match为0时是最后一个只有字面量的序列
+     *
+     * @return 写完之后的位置，超过limit时返回-1
+     */
+    private int writeSequence(byte[] src, int from, int literals, int distance, int match, int op, int limit) {
+        // token、两个扩展长度和距离最多占的字节数
+        if (op + literals + 1 + literals / 255 + 1 + 2 + match / 255 + 1 >= limit)
+            return -1;
+        int tokenPos = op++;
+        int token = Math.min(literals, 15) << 4;
+        if (literals >= 15)
+            op = writeLength(literals - 15, op);
+        System.arraycopy(src, from, out, op, literals);
+        op += literals;
+        if (match > 0) {
+            out[op++] = (byte) distance;
+            out[op++] = (byte) (distance >>> 8);
+            int m = match - MIN_MATCH;
+            token |= Math.min(m, 15);
+            if (m >= 15)
+                op = writeLength(m - 15, op);
+        }
+        out[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private int writeLength(int len, int op) {
+        while (len >= 255) {
+            out[op++] = (byte) 255;
+            len -= 255;
+        }
+        out[op++] = (byte) len;
+        return op;
+    }
+
+    /**
+     * 上一次compress的结果
+     *
+     * @return
+     */
+    byte[] output() {
+        return out;
+    }
+
+    /**
+     * 解压日志页中[start, end)之间的一条压缩过的记录
+     *
+     * @param page
+     * @param start
+     * @param end
+     * @return 读解压后的记录的对象，在下一次解压之前有效
+     */
+    BasicLogRecord decompress(Page page, int start, int end) {
+        int len = end - start;
+        page.getBytes(start, in, 0, len);
+        int rawLen = decompress(in, len, raw);
+        if (rawPage == null)
+            rawPage = new Page();
+        rawPage.setBytes(0, raw, 0, rawLen);
+        return new BasicLogRecord(rawPage, 0);
+    }
+
+    /**
+     * 解压src中的前len个字节到dst中
+     *
+     * @param src
+     * @param len
+     * @param dst
+     * @return 原始的字节数
+     */
+    static int decompress(byte[] src, int len, byte[] dst) {
+        int rawLen = (src[0] & 0xFF) << 8 | (src[1] & 0xFF);
+        int ip = LENGTH_SIZE;
+        int op = 0;
+        try {
+            while (ip < len) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= len)
+                    break;   // 最后一个序列
+                int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int match = token & 15;
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                // 匹配可以和正在写的部分重叠，逐个字节复制
+                int from = op - distance;
+                if (from < 0)
+                    throw new IllegalStateException("bad match distance " + distance);
+                for (int k = 0; k < match; k++)
+                    dst[op++] = dst[from++];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalStateException("corrupt compressed log record", e);
+        }
+        if (op != rawLen)
+            throw new IllegalStateException("compressed log record decoded to " + op + " bytes, expected " + rawLen);
+        return rawLen;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8 | (b[i + 3] & 0xFF);
+    }
+}
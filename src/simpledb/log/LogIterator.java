@@ -1,50 +1,129 @@
 package simpledb.log;
 
-import simpledb.file.Block;
 import simpledb.file.Page;
 
-import javax.xml.crypto.dsig.keyinfo.PGPData;
 import java.util.Iterator;
-import java.util.function.Consumer;
+import java.util.NoSuchElementException;
 
 import static simpledb.file.Page.INT_SIZE;
 
 /**
  * @program: simpleDB
- * @description: 逆序遍历日志文件的所有日志记录
+ * @description: 逆序遍历日志文件的所有日志记录，从一个段的第一块读到前一个段的最后一块，直到还保留着的最早的段。
+ * 日志每次倒着读一大段连续的块（{@link LogChunk}），并且在解析这一段时在后台读前面的一段，
+ * 扫描整个日志时读盘是大块的顺序I/O。next()返回的记录在下一次调用hasNext()或next()之前有效
  * @author: LiuZhian
  * @create: 2019-07-04 21:04
  **/
 public class LogIterator implements Iterator<BasicLogRecord> {
-    private Block blk;              // 对应的块
-    private Page page=new Page();   // 对应的页
+    private final LogMgr logMgr;
+    private final long firstBlk;    // 遍历到这个块为止
+    private final int blockSize;
+    private LogChunk chunk;         // 包含当前块的一段
+    private LogChunk ahead;         // 在后台预读的前一段，每段只有一个块时不预读
+    private long blk;               // 对应的块的全局块号
+    private Page page;              // 对应的页
     private int currentRec;         // 当前记录
+    private LogCompressor decompressor;  // 遇到第一条压缩过的记录时创建
 
-    LogIterator(Block blk)
+    /**
+     * @param logMgr
+     * @param blk         最后一个块的全局块号
+     * @param chunkBlocks 每次读的块数，1表示逐块读
+     */
+    LogIterator(LogMgr logMgr, long blk, int chunkBlocks)
     {
+        this.logMgr=logMgr;
+        this.firstBlk=logMgr.firstBlock();
+        this.blockSize=logMgr.blockSize();
         this.blk=blk;
-        page.read(blk);
-        currentRec=page.getInt(LogMgr.LAST_POS);  // 构造函数中最后一条记录为当前记录
+        int n = Math.max(1, chunkBlocks);
+        chunk = new LogChunk(logMgr, n);
+        if (n > 1)
+            ahead = new LogChunk(logMgr, n);
+        long start = chunkStart(blk);
+        chunk.load(start, (int) (blk - start + 1), false);
+        readAhead();
+        readBlock();  // 最后一条记录为当前记录
     }
 
+    /**
+     * 当前块的记录读完之后，跳过没有记录的块（比如刚追加、还没有写入记录的块）
+     * @return
+     */
     @Override
     public boolean hasNext() {
-        return currentRec>0 || blk.getBlockNum()>0;
+        while (currentRec<=LogMgr.LAST_POS && blk>firstBlk)
+            moveToNextBlock();
+        return currentRec>LogMgr.LAST_POS;
     }
 
     @Override
     public BasicLogRecord next() {
-       if (currentRec==0)
-           moveToNextBlock();
+       if (!hasNext())
+           throw new NoSuchElementException();
 
-       currentRec= page.getInt(currentRec);
-       return new BasicLogRecord(page,currentRec+INT_SIZE);
+       int end=currentRec;
+       int prev=page.getInt(end);
+       currentRec=prev & ~LogMgr.COMPRESSED;
+       if((prev & LogMgr.COMPRESSED)==0)
+           return new BasicLogRecord(page,currentRec+INT_SIZE);
+       if(decompressor==null)
+           decompressor=new LogCompressor(LogMgr.maxRecord(blockSize));
+       return decompressor.decompress(page,currentRec+INT_SIZE,end);
+    }
+
+    /**
+     * 上一次next()返回的记录的LSN
+     * @return
+     */
+    public long lsn() {
+        return blk * blockSize + currentRec + INT_SIZE;
     }
 
     private void moveToNextBlock() {
-        blk=new Block(blk.getFileNama(),blk.getBlockNum()-1);
-        page.read(blk);
-        currentRec = page.getInt(LogMgr.LAST_POS);
+        blk--;
+        if (!chunk.contains(blk)) {
+            if (ahead != null && ahead.contains(blk)) {
+                LogChunk c = chunk;
+                chunk = ahead;
+                ahead = c;
+            } else {
+                long start = chunkStart(blk);
+                chunk.load(start, (int) (blk - start + 1), false);
+            }
+            readAhead();
+        }
+        readBlock();
+    }
+
+    /**
+     * 以last结尾的一段的第一个块
+     */
+    private long chunkStart(long last) {
+        return Math.max(firstBlk, last - chunk.capacity() + 1);
+    }
+
+    /**
+     * 在后台读当前这一段之前的一段
+     */
+    private void readAhead() {
+        if (ahead == null || chunk.first() <= firstBlk)
+            return;
+        long last = chunk.first() - 1;
+        long start = chunkStart(last);
+        ahead.load(start, (int) (last - start + 1), true);
+    }
+
+    /**
+     * 读入当前块。重新使用的段中还有旧的块，块头中的块号对不上的块当作没有记录
+     */
+    private void readBlock() {
+        page = chunk.page(blk);
+        if (page.getLong(LogMgr.BLOCK_NUM)==blk)
+            currentRec = page.getInt(LogMgr.LAST_POS);
+        else
+            currentRec = 0;
     }
 
     @Override
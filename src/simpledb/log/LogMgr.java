@@ -1,12 +1,18 @@
 package simpledb.log;
 
 import simpledb.file.Block;
+import simpledb.file.FileMgr;
 import simpledb.file.Page;
 import simpledb.server.SimpleDB;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
-import static simpledb.file.Page.*;
+import static simpledb.file.Page.INT_SIZE;
 
 /**
  * @program: simpleDB
@@ -14,163 +20,763 @@ import static simpledb.file.Page.*;
  * A log record can be any sequence of integer and string values.
  * 日志管理单元不管日志具体记录了什么信息，它只负责将日志信息持久化。
  * 具体解析日志记录的工作交给恢复单元RecoveryMgr来完成
+ * 日志记录追加在一个由多个页组成的环（日志缓冲）中：当前页写满之后接着写环中的下一个空闲页，
+ * 写满的页按顺序写盘之后才能再次使用，所以只有整个环都写满时追加才需要等待。
+ * <p>
+ * 追加不加锁：每个线程先用CAS在日志中预留一段字节（{@link #reserved}），再并行地把记录复制到预留的位置。
+ * 复制期间线程在{@link #inFlight}的一个槽中登记自己预留的起点（的下界），复制完就清除；
+ * 写盘时取所有登记的起点和预留位置的最小值作为完成水位（{@link #completedLSN()}），水位之前的日志都已经完整地复制到了缓冲中。
+ * 追加的线程之间互不等待，一个线程在复制时被调度出去也不会挡住其它线程。
+ * 每条记录末尾指向同一块中上一条记录的指针在预留时就能确定；块头的“最后一条记录”指针则在写盘时根据水位填写。
+ * 启动了日志写线程（{@link #startWriter(long)}）之后，写满的页由它在后台写盘，flush也改为组提交：
+ * 调用者只登记请求并等待，由日志写线程一次写盘服务一批请求；
+ * 没有日志写线程时，环满了由追加的线程一次把所有写满的页写盘
+ * <p>
+ * 日志由一串固定大小的段文件组成，第k段的文件名是“日志文件名.k”。LSN是整个日志中的字节偏移，
+ * 块号也是全局的，全局块b在第b / 段块数个段中的第b % 段块数块。
+ * 检查点之前的段可以用{@link #truncate(long)}丢掉：它们被改名留作以后的段重新使用，或者移到归档目录中。
+ * 重新使用的段文件中还有旧的日志块，所以每个块头中除了最后一条记录的位置，还有这个块的全局块号，
+ * 打开日志时块号对不上的块就是还没有写过的块
+ * <p>
+ * 打开了压缩（{@link #setCompression(boolean)}）时，每条记录追加之前单独压缩（见{@link LogCompressor}），
+ * 变短了就写压缩后的内容，并在记录末尾的指针中设置{@link #COMPRESSED}标记。遍历日志时自动解压，
+ * 同一个日志中可以同时有压缩和没有压缩的记录，所以随时可以打开或关闭压缩
  * @author: LiuZhian
  * @create: 2019-07-04 17:16
  **/
 public class LogMgr implements Iterable<BasicLogRecord> {
 
-    public static final int LAST_POS=0;    // 保存最后一条记录的内容位置的指针，就是页的前4个字节（int）
-    private String logFileName;            // 日志文件名
-    private Page myPage = new Page();      // 保存log记录的页
-    private Block currentBlk;              // 当前块
-    private int currentPos;                // 当前记录的指针位置
+    public static final int BLOCK_NUM = 0;     // 块头中这个块的全局块号（long）
+    public static final int LAST_POS = 8;      // 块头中最后一条记录末尾的int的位置，块中没有记录时指向它自己
+    public static final int HEADER_SIZE = 12;  // 块头的字节数，第一条记录从这里开始
+    // 记录末尾指向上一条记录的int中的标记位，表示这条记录是压缩过的，块中的位置用不到这一位
+    static final int COMPRESSED = 1 << 31;
+    private static final int MIN_COMPRESS = 32;  // 比这短的记录不压缩
+    // 保存在数据库头文件中的压缩方式
+    private static final String COMPRESSION = "logCompression";
+    // 保存在数据库头文件中的段块数，段的大小一经确定就不能再改，否则LSN和段的对应关系就变了
+    private static final String SEGMENT_BLOCKS = "logSegmentBlocks";
+    private static final String RECYCLED = ".recycled.";   // 留作重新使用的段文件名中的标记
+    private String logFileName;            // 日志文件名，各个段的文件名以它开头
+    private final int segmentBlocks;       // 每个段的块数
+    private volatile long firstSegment;    // 还保留着的最早的段
+    private long lastSegment;              // 已经准备好文件的最后一个段，由ioLock保护
+    private final Deque<String> recycled = new ArrayDeque<>();  // 可以重新使用的段文件，由ioLock保护
+    private final int blockSize;
+    private final Page[] pages;            // 日志缓冲环，块号为b的块使用pages[b % pages.length]
+    private final long[] ends;             // 写满的块中最后一条记录之后的LSN，由换到下一块的追加线程填写
+    // 已经预留出去的日志的结束位置，下一条记录从这里（或者下一个块）开始
+    private final AtomicLong reserved = new AtomicLong();
+    // 正在复制记录的线程登记的起点，IDLE表示槽空闲
+    private final AtomicLongArray inFlight;
+    private static final long IDLE = Long.MAX_VALUE;
+    // 最近一次算出的完成水位，在它之前预留的记录都已经复制到了缓冲中，只增不减
+    private final AtomicLong completed = new AtomicLong();
+    // 最早的还没有完整写盘的块，块号小于它的块在环中的页都可以重新使用，由LogMgr的锁保护
+    private long firstUnwritten;
+    // 写当前页时先复制一份，写盘期间追加的线程可以继续修改当前页
+    private final Page tailCopy = new Page();
+    // 日志的写盘操作一个接一个地进行，保证flushedLSN按顺序推进；获取顺序是先ioLock再LogMgr
+    private final Object ioLock = new Object();
+    private volatile LogWriter writer;     // 日志写线程，null表示由调用者自己写盘
+    // 已经写到磁盘上的日志的结束位置（字节偏移），LSN小于它的记录都已经持久化了
+    private volatile long flushedLSN;
+    private final LongAdder ringFullWaits = new LongAdder();  // 因为环满了追加需要等待的次数
+    private volatile int pageWaiters;      // 正在等待空闲页的线程数，由LogMgr的锁保护修改
+    volatile Runnable beforeCopy;          // 只给测试用：预留之后、复制之前调用，模拟复制到一半被调度出去的线程
+    private volatile int flushWaiters;     // 在flush中等待水位越过自己的记录的线程数，由LogMgr的锁保护修改
+    private final ThreadLocal<LogRecordWriter> recordWriters;  // 每个线程一个记录编码器
+    private final ThreadLocal<LogCompressor> compressors;      // 每个线程一个压缩器
+    private volatile boolean compression;  // 追加的记录是否压缩
 
     /**
-     * 为一个具体的日志文件创建一个日志管理对象，如果该日志文件不存在则创建一个新的空块
-     * 该构造函数必须在FileMgr类的唯一对象被创建后在能调用，因为会涉及到一些I/O操作
+     * 为一个具体的日志文件创建一个日志管理对象，日志缓冲大小使用{@link SimpleDB#LOG_BUFFERS}
      * @param logFileName
      */
     public LogMgr(String logFileName) {
+        this(logFileName, SimpleDB.LOG_BUFFERS);
+    }
+
+    /**
+     * 为一个具体的日志文件创建一个日志管理对象，接着已有的段中最后一条记录继续写
+     * 该构造函数必须在FileMgr类的唯一对象被创建后在能调用，因为会涉及到一些I/O操作
+     * @param logFileName
+     * @param buffers 日志缓冲环中的页数，至少为2
+     */
+    public LogMgr(String logFileName, int buffers) {
         this.logFileName = logFileName;
-        // 当前日志文件块数
-        int logSize = SimpleDB.getFileMgr().size(logFileName);
-        if (logSize == 0) {
-            appendNewBlock();
+        FileMgr fileMgr = SimpleDB.getFileMgr();
+        this.blockSize = fileMgr.blockSize();
+        int n = Math.max(2, buffers);
+        pages = new Page[n];
+        for (int i = 0; i < n; i++)
+            pages[i] = new Page();
+        ends = new long[n];
+        int maxRecord = maxRecord(blockSize);
+        recordWriters = ThreadLocal.withInitial(() -> new LogRecordWriter(maxRecord));
+        compressors = ThreadLocal.withInitial(() -> new LogCompressor(maxRecord));
+        inFlight = new AtomicLongArray(Math.max(64, 8 * Runtime.getRuntime().availableProcessors()));
+        for (int i = 0; i < inFlight.length(); i++)
+            inFlight.set(i, IDLE);
+
+        String stored = fileMgr.headerProperty(SEGMENT_BLOCKS);
+        if (stored == null) {
+            // 分段之前的日志只有一个文件，它的块头格式不同，改名保存下来，日志从头开始
+            if (fileMgr.list(logFileName).contains(logFileName))
+                fileMgr.rename(logFileName, logFileName + ".legacy");
+            segmentBlocks = (int) Math.max(2, SimpleDB.LOG_SEGMENT_SIZE / blockSize);
+            fileMgr.setHeaderProperty(SEGMENT_BLOCKS, Integer.toString(segmentBlocks));
         } else {
-            // 获取到当前块
-            currentBlk = new Block(logFileName, logSize - 1);
-            // 将当前块中的内容读到页中的缓冲字节数组中
-            myPage.read(currentBlk);
+            segmentBlocks = Integer.parseInt(stored);
+        }
+        String mode = fileMgr.headerProperty(COMPRESSION);
+        if (mode == null)
+            setCompression(SimpleDB.LOG_COMPRESSION);
+        else
+            compression = Boolean.parseBoolean(mode);
 
-            currentPos = getLastRecortPos()+INT_SIZE;
+        // 找出已有的段，以及上次留下来可以重新使用的段
+        long first = -1, last = -1;
+        for (String name : fileMgr.list(logFileName + ".")) {
+            String suffix = name.substring(logFileName.length() + 1);
+            if (name.startsWith(logFileName + RECYCLED)) {
+                recycled.add(name);
+            } else if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                long seg = Long.parseLong(suffix);
+                first = first < 0 ? seg : Math.min(first, seg);
+                last = Math.max(last, seg);
+            }
         }
+        long currentBlk = -1;
+        if (last < 0) {
+            first = last = 0;
+            prepareSegment(0);
+        } else {
+            for (long seg = first; seg <= last; seg++)
+                configure(segmentName(seg));
+            // 最后一段可能刚准备好还没有写过，这时最后一个块在前一段中
+            currentBlk = lastWrittenBlock(last);
+            if (currentBlk < 0 && last > first)
+                currentBlk = lastWrittenBlock(last - 1);
+        }
+        firstSegment = first;
+        lastSegment = last;
+        int currentPos;
+        if (currentBlk < 0) {
+            currentBlk = last * segmentBlocks;
+            currentPos = HEADER_SIZE;
+        } else {
+            Page page = pages[(int) (currentBlk % n)];
+            page.read(blockFor(currentBlk));
+            currentPos = page.getInt(LAST_POS) + INT_SIZE;
+        }
+        long end = currentBlk * blockSize + currentPos;
+        reserved.set(end);
+        completed.set(end);
+        flushedLSN = end;   // 当前页就是磁盘上的内容
+        firstUnwritten = currentBlk;
     }
 
     /**
-     * 获得最后一条log记录的内容结尾位置
+     * 一条记录最多的字节数：记录加上块头和记录末尾的指针要能放进一个块
+     * @param blockSize
      * @return
      */
-    private int getLastRecortPos() {
-        return myPage.getInt(LAST_POS);
+    static int maxRecord(int blockSize) {
+        return blockSize - HEADER_SIZE - INT_SIZE - 1;
     }
 
-    private  void setLastRecordPos(int pos)
-    {
-        myPage.setInt(LAST_POS,pos);
+    /**
+     * 段中最后一个写过的块。块是按顺序写的，所以写过的块（块头中的块号和位置对得上）是段的一个前缀，可以二分查找
+     * @param seg
+     * @return 全局块号，段中还没有写过任何块时返回-1
+     */
+    private long lastWrittenBlock(long seg) {
+        String name = segmentName(seg);
+        Page page = new Page();
+        int lo = 0, hi = Math.min(segmentBlocks, SimpleDB.getFileMgr().size(name)) - 1;
+        long found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long blk = seg * segmentBlocks + mid;
+            page.read(new Block(name, mid));
+            if (page.getLong(BLOCK_NUM) == blk && page.getInt(LAST_POS) >= LAST_POS) {
+                found = blk;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
     }
+
     /**
-     * Clear the current page, and append it to the log file.
+     * 段文件使用为日志文件设置的持久化方式和存储后端，第一次写时一次分配整个段的空间
+     * @param segFile
      */
-    private void appendNewBlock() {
-        setLastRecordPosition(0);
-        currentPos=INT_SIZE;
-        currentBlk=myPage.append(logFileName);
+    private void configure(String segFile) {
+        FileMgr fileMgr = SimpleDB.getFileMgr();
+        fileMgr.setDurability(segFile, fileMgr.durabilityOf(logFileName));
+        fileMgr.setBackend(segFile, fileMgr.backendOf(logFileName));
+        fileMgr.setPreallocation(segFile, (long) segmentBlocks * blockSize);
     }
 
+    /**
+     * 在ioLock内调用，为第seg段准备文件：有可以重新使用的段文件时改名使用，它已经是整个段的大小了
+     * @param seg
+     */
+    private void prepareSegment(long seg) {
+        String name = segmentName(seg);
+        configure(name);
+        String reuse = recycled.poll();
+        if (reuse != null)
+            SimpleDB.getFileMgr().rename(reuse, name);
+        SimpleDB.getFileMgr().size(name);   // 打开文件，新文件第一次写时按段的大小预分配
+        lastSegment = seg;
+    }
 
     /**
-     * 插入一条log记录.
-     * 一条日志记录包含任意长度的字节数组（int或string类型），注意，为了方便逆序遍历log几率，
-     * 在每条log的尾部加上一个int数字来表示上一条log的位置
+     * 丢掉LSN所在的段之前的所有段，它们中的记录都不再需要了，比如都在最近的检查点之前。
+     * 设置了{@link SimpleDB#LOG_ARCHIVE_DIR}时段文件移到归档目录中；
+     * 否则最多保留{@link SimpleDB#LOG_RECYCLED_SEGMENTS}个留作以后的段，其余的删除。
+     * 还没有持久化的日志所在的段不会被丢掉。调用者要保证这时没有在遍历要丢掉的段
+     * @param lsn 仍然需要的最早的记录
+     */
+    public void truncate(long lsn) {
+        FileMgr fileMgr = SimpleDB.getFileMgr();
+        synchronized (ioLock) {
+            long keep = segmentOf(Math.min(lsn, flushedLSN));
+            while (firstSegment < keep) {
+                long seg = firstSegment;
+                String name = segmentName(seg);
+                if (SimpleDB.LOG_ARCHIVE_DIR != null) {
+                    fileMgr.rename(name, SimpleDB.LOG_ARCHIVE_DIR + "/" + name);
+                } else if (recycled.size() < SimpleDB.LOG_RECYCLED_SEGMENTS) {
+                    String reuse = logFileName + RECYCLED + seg;
+                    fileMgr.rename(name, reuse);
+                    recycled.add(reuse);
+                } else {
+                    fileMgr.delete(name);
+                }
+                firstSegment = seg + 1;
+            }
+        }
+    }
+
+    /**
+     * 第seg段的文件名
+     * @param seg
+     * @return
+     */
+    public String segmentName(long seg) {
+        return logFileName + "." + seg;
+    }
+
+    /**
+     * LSN所在的段
+     * @param lsn
+     * @return
+     */
+    public long segmentOf(long lsn) {
+        return blockOf(lsn) / segmentBlocks;
+    }
+
+    /**
+     * 全局块号对应的段文件中的块
+     * @param blk
+     * @return
+     */
+    Block blockFor(long blk) {
+        return new Block(segmentName(blk / segmentBlocks), (int) (blk % segmentBlocks));
+    }
+
+    /**
+     * 还保留着的最早的块，遍历日志到这里为止
+     * @return
+     */
+    long firstBlock() {
+        return firstSegment * segmentBlocks;
+    }
+
+    /**
+     * 插入一条由int和String组成的log记录，多个线程可以同时调用。
+     * 这是{@link #append(LogRecordWriter)}的简便写法，每个int都要装箱，热点路径上应该直接使用LogRecordWriter
      *
      * @param rec
-     * @return 返回该日志的编号 log sequence number
+     * @return 返回该日志的编号 log sequence number，即这条记录在日志文件中的起始字节偏移
      */
-    public int append(Object[] rec) {
-        int recSize = INT_SIZE;  // 该条日志的长度（包括最后一个int）
+    public long append(Object[] rec) {
+        LogRecordWriter w = recordWriter();
         for (Object obj : rec) {
-            recSize += sizeOf(obj);
+            if (obj instanceof String)
+                w.putString((String) obj);
+            else if (obj instanceof Integer)
+                w.putInt((Integer) obj);
+            else
+                throw new IllegalArgumentException("log records hold only strings and integers: " + obj);
+        }
+        return append(w);
+    }
+
+    /**
+     * 当前线程可以反复使用的记录编码器，已经清空。
+     * append(Object[])也使用它，所以编码完之前同一个线程不能再追加别的记录
+     * @return
+     */
+    public LogRecordWriter recordWriter() {
+        return recordWriters.get().clear();
+    }
+
+    /**
+     * 插入一条log记录，多个线程可以同时调用，不创建任何对象。
+     * 注意，为了方便逆序遍历log记录，在每条log的尾部加上一个int数字来表示上一条log的位置
+     *
+     * @param rec 编码好的记录，返回后可以马上清空重用
+     * @return 返回该日志的编号 log sequence number，即这条记录在日志文件中的起始字节偏移
+     */
+    public long append(LogRecordWriter rec) {
+        byte[] bytes = rec.bytes();
+        int size = rec.size();
+        int flag = 0;
+        if (compression && size >= MIN_COMPRESS) {
+            LogCompressor compressor = compressors.get();
+            int compressed = compressor.compress(bytes, size);
+            if (compressed > 0) {
+                bytes = compressor.output();
+                size = compressed;
+                flag = COMPRESSED;
+            }
         }
-        if (recSize + currentPos >= BLOCK_SIZE) // 超过了一个块的大小
-        {
-            flush();            // flush当前块到disk上去
-            appendNewBlock();   // 追加一个新的块作为当前块
+        int recSize = size + INT_SIZE;  // 该条日志的长度（包括最后一个int）
+        if (recSize + HEADER_SIZE >= blockSize)
+            throw new IllegalArgumentException("log record of " + recSize + " bytes does not fit in a block");
+        // 1. 登记：预留之前先登记一个不大于起点的位置，计算水位时就不会越过这条记录
+        int slot = register();
+        long registered = inFlight.get(slot);
+        // 2. 预留：从上一次预留的结束位置开始，当前块放不下时跳到下一个块
+        long prev, start;
+        do {
+            prev = reserved.get();
+            if (recSize + posOf(prev) >= blockSize)   // 超过了一个块的大小
+                start = (blockOf(prev) + 1) * blockSize + HEADER_SIZE;
+            else
+                start = prev;
+        } while (!reserved.compareAndSet(prev, start + recSize));
+        // 上一条记录末尾的int，新块中的第一条记录指向块头中的LAST_POS
+        int prevPos = posOf(start) - INT_SIZE;
+        // 预留成功之后不能再失败，否则水位永远停在这里
+        inFlight.set(slot, prev);
+        long blk = blockOf(start);
+        boolean newBlock = blockOf(prev) != blk;
+        awaitPage(blk);
+        if (newBlock)   // 页空闲了才能填写，在这之前ends中同一个位置可能还属于没有写盘的块
+            ends[(int) (blockOf(prev) % pages.length)] = prev;
+
+        Runnable hook = beforeCopy;
+        if (hook != null)
+            hook.run();
+        // 3. 复制：不同的线程写同一个页中不重叠的位置
+        Page page = pages[(int) (blk % pages.length)];
+        int pos = posOf(start);
+        page.setBytes(pos, bytes, 0, size);
+        page.setInt(pos + size, prevPos | flag);
+
+        // 4. 完成：清除登记，页的内容对之后读到这个槽的线程可见
+        inFlight.set(slot, IDLE);
+        if (blockOf(registered) < blockOf(reserved.get())) {
+            // 这条记录登记的位置所在的块已经写满了，之前它可能一直挡着水位，
+            // 现在这个块可能已经全部复制完了，唤醒日志写线程（它写完会唤醒等待空闲页的线程），
+            // 没有日志写线程时直接唤醒等待空闲页、要自己写盘的追加线程
+            LogWriter w = writer;
+            if (w != null) {
+                w.pageSealed();
+            } else if (pageWaiters > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
         }
-        for (Object obj : rec) {
-            appendVal(obj);
+        // 有线程在flush中等待水位时，这条记录可能正挡着它
+        if (flushWaiters > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
         }
-        finalizeRecord();
-        return currentLSN();
+        return start;
     }
 
     /**
-     * 在当前页上建立一条维护log记录的链，
-     * 缓冲器的前4个字节（第一个int）表示最后一个log记录的内容结束位置
-     * 每一条log记录末尾也有一个int来指示上一条log内容的结束位置
+     * 等待块blk在日志缓冲环中的页空闲下来，也就是blk - 环大小之前的块都已经写盘了
+     * @param blk
      */
-    private void finalizeRecord() {
-        myPage.setInt(currentPos,getLastRecortPos());
-        setLastRecordPos(currentPos);
-        currentPos+=INT_SIZE;
+    private void awaitPage(long blk) {
+        boolean counted = false;
+        boolean interrupted = false;
+        while (true) {
+            synchronized (this) {
+                if (blk < firstUnwritten + pages.length) {
+                    if (interrupted)
+                        Thread.currentThread().interrupt();
+                    return;
+                }
+                if (!counted) {
+                    ringFullWaits.increment();
+                    counted = true;
+                }
+                // 水位可能是刚刚才越过一个块的，这种情况没有人通知写线程，所以等待之前要检查一下
+                boolean writable = blockOf(completedLSN()) > firstUnwritten;
+                LogWriter w = writer;
+                if (w != null && writable)
+                    w.pageSealed();
+                // 有日志写线程，或者没有可以写的块时，等待写盘或者别的线程复制完一个块
+                if (w != null || !writable) {
+                    pageWaiters++;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;   // 已经预留了位置，必须等到页空闲把记录写完
+                    } finally {
+                        pageWaiters--;
+                    }
+                    continue;
+                }
+            }
+            writeLog(false);   // 没有日志写线程，由追加的线程自己把写满的页写盘
+        }
     }
 
     /**
-     * 将一个值添加到page的缓存中，添加的位置由currentPos标定
-     * @param obj
+     * 占用inFlight中的一个空闲槽，登记当前的预留位置。
+     * 槽的数量是CPU核数的几倍，通常第一次就能占到
+     * @return 槽的下标
      */
-    private void appendVal(Object obj) {
-        if(obj instanceof String)
-        {
-            myPage.setString(currentPos,(String)obj);
+    private int register() {
+        int n = inFlight.length();
+        int first = (int) (Thread.currentThread().getId() % n);
+        while (true) {
+            for (int i = 0; i < n; i++) {
+                int slot = (first + i) % n;
+                if (inFlight.get(slot) == IDLE && inFlight.compareAndSet(slot, IDLE, reserved.get()))
+                    return slot;
+            }
+            Thread.yield();
         }
-        else
-            myPage.setInt(currentPos,(Integer)obj);
-        currentPos+=sizeOf(obj);
     }
 
     /**
-     * 统计一个整形或字符串持久化到文件中的长度（字符串首部包括一个指示长度的整数）
+     * 完成水位：先读预留位置，再取所有登记的起点中的最小值。
+     * 在读预留位置之前预留的记录，要么已经复制完了，要么登记的起点不大于它自己的起点，
+     * 所以水位之前的记录都已经复制完了，并且水位总是落在两条记录之间
+     * @return
+     */
+    private long completedLSN() {
+        long mark = reserved.get();
+        for (int i = 0; i < inFlight.length(); i++)
+            mark = Math.min(mark, inFlight.get(i));
+        // 刚登记的线程读到的预留位置可能比之前算出的水位还小，水位只增不减
+        return completed.accumulateAndGet(mark, Math::max);
+    }
+
+    private long blockOf(long lsn) {
+        return lsn / blockSize;
+    }
+
+    private int posOf(long lsn) {
+        return (int) (lsn % blockSize);
+    }
+
+    /**
+     * 确保用户指定LSN的log记录被写入了磁盘上，更早的记录肯定也已经被写入disk。
+     * 记录已经在磁盘上时不需要加锁，也不做任何I/O，写回脏页时大多是这种情况。
+     * 写盘只能写到完成水位，更早预留的记录还在复制时一次写盘不够，要等水位越过这条记录再写，
+     * 直到它真的在磁盘上为止。lsn处还没有记录时，只保证调用之前追加的记录都在磁盘上
+     * @param lsn
+     */
+    public void flush(long lsn) {
+        if (lsn < flushedLSN)
+            return;
+        long target = Math.min(lsn + 1, reserved.get());
+        while (flushedLSN < target) {
+            awaitCompleted(target);
+            LogWriter w = writer;
+            if (w == null)
+                writeLog(true);
+            else
+                w.awaitFlush();  // 组提交，不能持有LogMgr的锁等待
+        }
+    }
+
+    /**
+     * 等待完成水位到达target，也就是target之前的记录都复制完了。
+     * 先登记再检查水位，复制完记录的线程清除登记之后会看到这里的登记并唤醒等待的线程
+     * @param target
+     */
+    private void awaitCompleted(long target) {
+        if (completedLSN() >= target)
+            return;
+        boolean interrupted = false;
+        synchronized (this) {
+            flushWaiters++;
+            try {
+                while (completedLSN() < target) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;   // 记录已经追加了，等它写盘之后再恢复中断状态
+                    }
+                }
+            } finally {
+                flushWaiters--;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * 由日志写线程调用，把写满的页和当前页写盘，调用之前追加的所有记录都会被持久化
+     */
+    void flushCurrentPage() {
+        writeLog(true);
+    }
+
+    /**
+     * 由日志写线程调用，在后台把写满的页写盘
+     */
+    void writeSealedPages() {
+        writeLog(false);
+    }
+
+    /**
+     * 按顺序把完成水位之前写满的块写盘，tail为true时把水位所在的当前块也写盘。
+     * 写满的页不会再被修改，当前页则先复制一份，所以写盘时不持有LogMgr的锁，追加可以继续进行；
+     * 每个页的块头在写盘前根据水位填写。块号连续的页合并成一次I/O
      *
-     * @param val
-     * @return 对象的字节数
+     * @param tail 是否连当前页一起写盘
+     * @return 写完之后已经在磁盘上的最后一个块的全局块号
      */
-    private int sizeOf(Object val) {
-        if (val instanceof String) {
-            String sval = (String) val;
-            return STR_SIZE(sval.length());
-        } else {
-            return INT_SIZE;
+    private long writeLog(boolean tail) {
+        synchronized (ioLock) {
+            long mark = completedLSN();
+            long markBlk = blockOf(mark);
+            long first;
+            synchronized (this) {
+                first = firstUnwritten;
+            }
+            int n = (int) (markBlk - first);   // 水位之前写满的块数
+            boolean writeTail = tail && mark != flushedLSN;
+            if (n == 0 && !writeTail)
+                return tail ? markBlk : markBlk - 1;
+            // 要写的块所在的段还没有文件时先准备好
+            while (lastSegment < (writeTail ? markBlk : markBlk - 1) / segmentBlocks)
+                prepareSegment(lastSegment + 1);
+            int total = writeTail ? n + 1 : n;
+            Block[] bs = new Block[total];
+            Page[] ps = new Page[total];
+            long end = flushedLSN;
+            for (int i = 0; i < n; i++) {
+                long b = first + i;
+                Page page = pages[(int) (b % pages.length)];
+                end = ends[(int) (b % pages.length)];
+                page.setLong(BLOCK_NUM, b);
+                page.setInt(LAST_POS, lastRecordPos(end));
+                bs[i] = blockFor(b);
+                ps[i] = page;
+            }
+            if (writeTail) {
+                tailCopy.copyFrom(pages[(int) (markBlk % pages.length)]);
+                tailCopy.setLong(BLOCK_NUM, markBlk);
+                tailCopy.setInt(LAST_POS, lastRecordPos(mark));
+                bs[n] = blockFor(markBlk);
+                ps[n] = tailCopy;
+                end = mark;
+            }
+            Page.writeBatch(bs, ps);   // 将页中缓冲区写到磁盘块上去
+            forceWritten(bs);  // 日志文件不是每次写都同步时，要显式force
+            synchronized (this) {
+                firstUnwritten = markBlk;
+                if (end > flushedLSN)
+                    flushedLSN = end;
+                notifyAll();   // 唤醒等待空闲页的追加线程
+            }
+            return first + total - 1;
         }
     }
 
     /**
-     * 确保用户指定LSN的log记录被写入了磁盘上，更早的记录肯定也已经被写入disk
-     * @param lsn
+     * force这次写到的各个段文件，同一个段中的块是连续的
+     * @param bs
      */
-    public void flush(int lsn) {
-        if(lsn>= currentLSN())
-            flush();
+    private void forceWritten(Block[] bs) {
+        for (int i = 0; i < bs.length; i++) {
+            String name = bs[i].getFileNama();
+            if (i == bs.length - 1 || !name.equals(bs[i + 1].getFileNama()))
+                SimpleDB.getFileMgr().force(name);
+        }
     }
 
     /**
-     * 将当前页中的内容写入日志文件磁盘块上去
+     * 块中最后一条记录末尾的int的位置，块中没有记录时为LAST_POS
+     * @param end 块中最后一条记录之后的LSN
+     * @return
      */
-    private void flush()
-    {
-        myPage.write(currentBlk);   // 将页中缓冲区写到磁盘块上去
+    private int lastRecordPos(long end) {
+        return posOf(end) - INT_SIZE;
     }
 
     public Iterator<BasicLogRecord> iterator() {
-        flush();  // 将当前块中的内容写入到文件
-        return new LogIterator(currentBlk);   // 从当前block开始的所有日志记录迭代
+        return iterator(readChunkBlocks());
+    }
+
+    /**
+     * 从最后一条记录开始逆序遍历
+     * @param chunkBlocks 每次读的块数，1表示逐块读，不预读
+     * @return
+     */
+    public LogIterator iterator(int chunkBlocks) {
+        long last = writeLog(true);  // 将缓冲中的内容写入到文件
+        return new LogIterator(this, last, chunkBlocks);   // 从当前block开始的所有日志记录迭代
+    }
+
+    /**
+     * 从指定的LSN开始按追加的顺序遍历，直到现在为止追加的最后一条记录
+     * @param fromLSN 第一条记录的LSN，0表示从还保留着的最早的记录开始
+     * @return
+     */
+    public ForwardLogIterator forwardIterator(long fromLSN) {
+        long last = writeLog(true);
+        return new ForwardLogIterator(this, fromLSN, last, readChunkBlocks());
+    }
+
+    /**
+     * 遍历日志时每次读的块数，见{@link SimpleDB#LOG_READ_CHUNK}
+     * @return
+     */
+    private int readChunkBlocks() {
+        return (int) Math.max(1, SimpleDB.LOG_READ_CHUNK / blockSize);
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 启动日志写线程，它在后台把写满的页写盘，并实现组提交
+     * @param maxDelayMicros 写线程凑一批请求时最多额外等待的微秒数，0表示只合并写盘期间到达的请求
+     */
+    public void startWriter(long maxDelayMicros) {
+        LogWriter w = new LogWriter(this, maxDelayMicros);
+        LogWriter old;
+        synchronized (this) {
+            old = writer;
+            w.start();
+            writer = w;
+            if (blockOf(completedLSN()) > firstUnwritten)
+                w.pageSealed();
+        }
+        // 旧的写线程写完已经登记的请求再退出，写盘都在ioLock内进行，两个线程同时在也没有关系
+        if (old != null)
+            old.shutdown();
+    }
+
+    /**
+     * 停止日志写线程，等它写完已经登记的请求并退出，之后又由调用者自己写盘。
+     * 写线程写盘时要拿LogMgr的锁，所以在锁外等待它退出
+     */
+    public void stopWriter() {
+        LogWriter w;
+        synchronized (this) {
+            w = writer;
+            if (w == null)
+                return;
+            writer = null;
+            notifyAll();   // 等待空闲页的追加线程改为自己写盘
+        }
+        w.shutdown();
     }
 
     /**
-     * 在页的最开始一个int字节写最后一条log记录的内容结束位置
-     * @param pos
+     * 写线程在后台写盘失败，它不再接受新的请求，之后由调用者自己写盘
+     * @param w
+     */
+    synchronized void writerFailed(LogWriter w) {
+        if (writer == w) {
+            writer = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 当前的日志写线程，没有启动时返回null
+     * @return
+     */
+    public LogWriter writer() {
+        return writer;
+    }
+
+    /**
+     * 已经追加的日志的结束位置，之后追加的记录的LSN都不小于它
+     * @return
+     */
+    public long endLSN() {
+        return reserved.get();
+    }
+
+    /**
+     * 已经持久化的日志的结束位置，LSN小于它的记录都已经在磁盘上了
+     * @return
+     */
+    public long flushedLSN() {
+        return flushedLSN;
+    }
+
+    /**
+     * 打开或关闭记录的压缩，对之后追加的记录有效，并保存在数据库的头文件中，重新打开数据库时沿用
+     * @param on
+     */
+    public void setCompression(boolean on) {
+        SimpleDB.getFileMgr().setHeaderProperty(COMPRESSION, Boolean.toString(on));
+        compression = on;
+    }
+
+    /**
+     * 追加的记录是否压缩
+     * @return
+     */
+    public boolean compression() {
+        return compression;
+    }
+
+    /**
+     * 每个段的块数
+     * @return
+     */
+    public int segmentBlocks() {
+        return segmentBlocks;
+    }
+
+    /**
+     * 还保留着的最早的段
+     * @return
+     */
+    public long firstSegment() {
+        return firstSegment;
+    }
+
+    /**
+     * 日志缓冲环中的页数
+     * @return
      */
-    private void setLastRecordPosition(int pos) {
-        myPage.setInt(LAST_POS,pos);
+    public int buffers() {
+        return pages.length;
     }
 
     /**
-     * 返回最近的一条log的LSN（log sequence number）
-     * 在这里，LSN只简单地用块号去标识，因此所有在一个块内的log信息拥有相同的LSN。
-     * typically，常见的LSN实现方法是块号+当前log的起始位置
+     * 因为日志缓冲环满了，追加需要等待写盘的次数
      * @return
      */
-    private int currentLSN(){
-        return currentBlk.getBlockNum();
+    public long ringFullWaits() {
+        return ringFullWaits.sum();
     }
 
 }
@@ -0,0 +1,122 @@
+package simpledb.log;
+
+import java.nio.ByteBuffer;
+
+import static simpledb.file.Page.INT_SIZE;
+import static simpledb.file.Page.LONG_SIZE;
+
+/**
+ * 按类型编码一条日志记录，编码完成后交给{@link LogMgr#append(LogRecordWriter)}。
+ * 可以反复使用：每次编码新记录前先{@link #clear()}，{@link LogMgr#recordWriter()}为每个线程准备了一个。
+ * 整型直接写入内部的字节缓冲，不需要装箱；字符串和字节数组前面有一个表示字节数的int，
+ * 只包含ASCII字符的字符串逐个字符编码，也不创建任何对象。
+ * 因此写日志的热点路径上不产生垃圾。读的时候用{@link BasicLogRecord}中对应的方法按同样的顺序读出来
+ * <p>
+ * 追加时要先在日志中预留记录的字节数，预留之后不能失败，所以记录先编码在这里，
+ * 大小确定之后再一次复制到日志页中
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class LogRecordWriter {
+    private final ByteBuffer buf;
+
+    /**
+     * @param capacity 记录最多的字节数
+     */
+    public LogRecordWriter(int capacity) {
+        this.buf = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 开始编码一条新记录
+     *
+     * @return
+     */
+    public LogRecordWriter clear() {
+        buf.clear();
+        return this;
+    }
+
+    public LogRecordWriter putInt(int val) {
+        ensure(INT_SIZE);
+        buf.putInt(val);
+        return this;
+    }
+
+    public LogRecordWriter putLong(long val) {
+        ensure(LONG_SIZE);
+        buf.putLong(val);
+        return this;
+    }
+
+    /**
+     * 写入一个字节数组，前面是它的长度
+     *
+     * @param src
+     * @param offset
+     * @param len
+     * @return
+     */
+    public LogRecordWriter putBytes(byte[] src, int offset, int len) {
+        ensure(INT_SIZE + len);
+        buf.putInt(len);
+        buf.put(src, offset, len);
+        return this;
+    }
+
+    public LogRecordWriter putBytes(byte[] src) {
+        return putBytes(src, 0, src.length);
+    }
+
+    /**
+     * 写入一个字符串，格式和字节数组相同：编码后的字节数加上各个字节，和Page.getString一样使用默认字符集
+     *
+     * @param val
+     * @return
+     */
+    public LogRecordWriter putString(String val) {
+        int n = val.length();
+        for (int i = 0; i < n; i++) {
+            if (val.charAt(i) >= 0x80)
+                return putBytes(val.getBytes());   // 非ASCII字符交给字符集编码
+        }
+        ensure(INT_SIZE + n);
+        buf.putInt(n);
+        for (int i = 0; i < n; i++)
+            buf.put((byte) val.charAt(i));
+        return this;
+    }
+
+    /**
+     * 已经编码的字节数
+     *
+     * @return
+     */
+    public int size() {
+        return buf.position();
+    }
+
+    /**
+     * 一条记录最多的字节数
+     *
+     * @return
+     */
+    public int capacity() {
+        return buf.capacity();
+    }
+
+    /**
+     * 编码好的内容，前size()个字节有效
+     *
+     * @return
+     */
+    byte[] bytes() {
+        return buf.array();
+    }
+
+    private void ensure(int bytes) {
+        if (buf.remaining() < bytes)
+            throw new IllegalArgumentException("log record larger than " + buf.capacity() + " bytes");
+    }
+}
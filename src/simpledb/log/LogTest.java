@@ -3,6 +3,7 @@ package simpledb.log;
 import simpledb.server.SimpleDB;
 
 import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * @program: simpleDB
@@ -11,23 +12,567 @@ import java.util.Iterator;
  * @create: 2019-07-04 21:35
  **/
 public class LogTest {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         SimpleDB.init("studentDB");
         LogMgr logMgr = SimpleDB.getLogMgr();
 
-        int lsn1 = logMgr.append(new Object[]{"a", "b"});
-        int lsn2 = logMgr.append(new Object[]{"aa", "bb"});
+        long lsn1 = logMgr.append(new Object[]{"a", "b"});
+        long lsn2 = logMgr.append(new Object[]{"aa", "bb"});
 
 
         logMgr.flush(lsn2);
 
+        // 日志中还有其它测试写的各种格式的记录，这里只读刚追加的两条
         Iterator<BasicLogRecord> it = logMgr.iterator();
-        while (it.hasNext()) {
+        for (int n = 0; n < 2 && it.hasNext(); n++) {
             BasicLogRecord rec = it.next();
             String v1 = rec.nextString();
             String v2 = rec.nextString();
             System.out.println("[" + v1 + " " + v2 + "]");
 
         }
+
+        testReopen();
+        testFlushedLSN();
+        testTypedRecord();
+        testRing();
+        testGroupCommit();
+        testFlushBehindStalledAppend(false);
+        testFlushBehindStalledAppend(true);
+        testStopWriter();
+        testScans();
+        int buffers = SimpleDB.LOG_BUFFERS;
+        try {
+            // 只有两个页的环经常写满，追加线程要等待写盘
+            SimpleDB.LOG_BUFFERS = 2;
+            SimpleDB.init("studentDB");
+            testConcurrentAppend(true);
+            testConcurrentAppend(false);
+        } finally {
+            SimpleDB.LOG_BUFFERS = buffers;
+        }
+        SimpleDB.init("studentDB");
+        testSegments();
+        testCodec();
+        testCompression();
+        SimpleDB.init("studentDB");
+    }
+
+    /**
+     * 压缩再解压得到原来的内容：随机的字节（压缩不了）、重复的内容、长的字面量和长的匹配
+     */
+    private static void testCodec() {
+        int maxRecord = LogMgr.maxRecord(SimpleDB.getFileMgr().blockSize());
+        LogCompressor compressor = new LogCompressor(maxRecord);
+        java.util.Random random = new java.util.Random(25);
+        byte[] src = new byte[maxRecord];
+        byte[] dst = new byte[maxRecord];
+        int compressed = 0;
+        for (int round = 0; round < 2000; round++) {
+            int len = random.nextInt(maxRecord + 1);
+            int alphabet = 1 + random.nextInt(round % 3 == 0 ? 256 : 8);
+            for (int i = 0; i < len; i++)
+                src[i] = random.nextInt(4) == 0 && i >= 300 ? src[i - 300] : (byte) random.nextInt(alphabet);
+            int n = compressor.compress(src, len);
+            if (n < 0)
+                continue;
+            if (n >= len)
+                throw new RuntimeException("compressed " + len + " bytes to " + n);
+            byte[] out = java.util.Arrays.copyOf(compressor.output(), n);
+            if (LogCompressor.decompress(out, n, dst) != len
+                    || !java.util.Arrays.equals(java.util.Arrays.copyOf(src, len), java.util.Arrays.copyOf(dst, len)))
+                throw new RuntimeException("round " + round + ": " + len + " bytes did not survive compression");
+            compressed++;
+        }
+        System.out.println("codec: " + compressed + " of 2000 buffers compressed and restored");
+    }
+
+    /**
+     * 打开压缩之后追加的记录占的字节数少了，压缩和没有压缩的记录混在一起，逆序和顺序遍历都能读出原来的内容；
+     * 压缩方式保存在数据库中，重新打开之后沿用
+     */
+    private static void testCompression() {
+        SimpleDB.init("logCompressDB");
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        String tag = "compress-" + System.nanoTime();
+        int records = 2000;
+        long[] lsns = new long[records];
+        long[] bytes = new long[2];
+        for (int i = 0; i < records; i++) {
+            boolean on = i < records / 2;
+            if (i == 0 || i == records / 2)
+                logMgr.setCompression(on);
+            long before = logMgr.endLSN();
+            lsns[i] = logMgr.append(new Object[]{tag, i, value(i)});
+            bytes[on ? 0 : 1] += logMgr.endLSN() - before;
+        }
+        if (bytes[0] * 10 > bytes[1] * 9)
+            throw new RuntimeException("compressed records took " + bytes[0] + " bytes, uncompressed " + bytes[1]);
+
+        LogIterator back = logMgr.iterator(3);
+        for (int i = records - 1; i >= 0; i--) {
+            BasicLogRecord rec = back.next();
+            if (!rec.nextString().equals(tag) || rec.nextInt() != i || !rec.nextString().equals(value(i))
+                    || back.lsn() != lsns[i])
+                throw new RuntimeException("reverse scan: wrong record " + i);
+        }
+        ForwardLogIterator fwd = logMgr.forwardIterator(lsns[0]);
+        for (int i = 0; i < records; i++) {
+            BasicLogRecord rec = fwd.next();
+            if (!rec.nextString().equals(tag) || rec.nextInt() != i || !rec.nextString().equals(value(i))
+                    || fwd.lsn() != lsns[i])
+                throw new RuntimeException("forward scan: wrong record " + i);
+        }
+
+        logMgr.setCompression(true);
+        SimpleDB.init("logCompressDB");
+        if (!SimpleDB.getLogMgr().compression())
+            throw new RuntimeException("compression mode not kept in the database");
+        BasicLogRecord last = SimpleDB.getLogMgr().iterator().next();
+        if (!last.nextString().equals(tag) || last.nextInt() != records - 1)
+            throw new RuntimeException("last record unreadable after reopening");
+        System.out.println("compression: " + bytes[0] + " bytes for " + records / 2 + " records, "
+                + bytes[1] + " without compression");
+    }
+
+    /**
+     * 像修改前后的值那样，两部分只有一个字段不同
+     */
+    private static String value(int i) {
+        String row = "name=student" + i % 97 + ";major=computer science;grad=" + (2019 + i % 4) + ";";
+        return row + row.replace("computer", "math");
+    }
+
+    /**
+     * 用很小的段写跨越多个段的日志：重新打开之后逆序遍历能跨过段的边界读出所有记录；
+     * 截断之后前面的段被留作重新使用，之后的段改名使用它们，不再创建新文件
+     */
+    private static void testSegments() {
+        long segmentSize = SimpleDB.LOG_SEGMENT_SIZE;
+        try {
+            SimpleDB.LOG_SEGMENT_SIZE = 4 * SimpleDB.BLOCK_SIZE;  // 只对新建的日志有效
+            SimpleDB.init("logSegmentDB");
+        } finally {
+            SimpleDB.LOG_SEGMENT_SIZE = segmentSize;
+        }
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        String tag = "segment-" + System.nanoTime();
+        int segmentRecords = logMgr.segmentBlocks() * SimpleDB.getFileMgr().blockSize() / 40;
+        int records = 4 * segmentRecords;
+        long[] lsns = new long[records];
+        for (int i = 0; i < records; i++)
+            lsns[i] = logMgr.append(new Object[]{tag, String.valueOf(i)});
+        logMgr.flush(lsns[records - 1]);
+        if (logMgr.segmentOf(lsns[records - 1]) - logMgr.segmentOf(lsns[0]) < 3)
+            throw new RuntimeException("log did not grow past 3 segments");
+
+        SimpleDB.init("logSegmentDB");
+        logMgr = SimpleDB.getLogMgr();
+        if (readBack(logMgr, tag) != records)
+            throw new RuntimeException("records lost across segment boundaries");
+        ForwardLogIterator fwd = logMgr.forwardIterator(lsns[0]);
+        for (int i = 0; i < records; i++) {
+            if (Integer.parseInt(skipTag(fwd.next())) != i || fwd.lsn() != lsns[i])
+                throw new RuntimeException("forward scan across segments: wrong record " + i);
+        }
+
+        // 截断到最后一段之前的那一段，前面的段留作重新使用
+        int keep = records - segmentRecords;
+        logMgr.truncate(lsns[keep]);
+        if (logMgr.firstSegment() != logMgr.segmentOf(lsns[keep]))
+            throw new RuntimeException("truncate kept segment " + logMgr.firstSegment());
+        int recycled = SimpleDB.getFileMgr().list(SimpleDB.LOG_FILE + ".recycled.").size();
+        if (recycled == 0)
+            throw new RuntimeException("no segment was recycled");
+        // 保留下来的是第一个保留的段开始的所有记录
+        int first = keep;
+        while (first > 0 && logMgr.segmentOf(lsns[first - 1]) >= logMgr.firstSegment())
+            first--;
+        int found = readBack(logMgr, tag);
+        if (found != records - first)
+            throw new RuntimeException("found " + found + " records after truncating to record " + keep
+                    + ", expected " + (records - first));
+
+        // 再写一段多的日志，用的是重新使用的段
+        int files = SimpleDB.getFileMgr().list(SimpleDB.LOG_FILE + ".").size();
+        long lsn = -1;
+        for (int i = 0; i < segmentRecords + segmentRecords / 2; i++)
+            lsn = logMgr.append(new Object[]{tag, String.valueOf(records + i)});
+        logMgr.flush(lsn);
+        if (SimpleDB.getFileMgr().list(SimpleDB.LOG_FILE + ".").size() != files)
+            throw new RuntimeException("new segment files were created although recycled ones were available");
+        SimpleDB.init("logSegmentDB");
+        if (!SimpleDB.getLogMgr().iterator().next().nextString().equals(tag))
+            throw new RuntimeException("last record lost in a recycled segment");
+        System.out.println("segments: " + records + " records in segments of " + logMgr.segmentBlocks()
+                + " blocks, " + recycled + " recycled after truncate");
+    }
+
+    /**
+     * 每次读几个块的逆序遍历、逐块读的逆序遍历和顺序遍历读出同样的记录，LSN和追加时返回的一致。
+     * 块数取得很小，让遍历跨过很多段读入和预读的边界
+     */
+    private static void testScans() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        String tag = "scan-" + System.nanoTime();
+        int records = 3000;
+        long[] lsns = new long[records];
+        for (int i = 0; i < records; i++)
+            lsns[i] = logMgr.append(new Object[]{tag, String.valueOf(i)});
+
+        for (int chunk : new int[]{1, 3}) {
+            LogIterator it = logMgr.iterator(chunk);
+            for (int i = records - 1; i >= 0; i--) {
+                BasicLogRecord rec = it.next();
+                if (!rec.nextString().equals(tag) || Integer.parseInt(rec.nextString()) != i || it.lsn() != lsns[i])
+                    throw new RuntimeException("reverse scan reading " + chunk + " blocks at a time: wrong record " + i);
+            }
+        }
+
+        long chunkBytes = SimpleDB.LOG_READ_CHUNK;
+        try {
+            SimpleDB.LOG_READ_CHUNK = 3 * SimpleDB.getFileMgr().blockSize();
+            ForwardLogIterator it = logMgr.forwardIterator(lsns[0]);
+            for (int i = 0; i < records; i++) {
+                BasicLogRecord rec = it.next();
+                if (!rec.nextString().equals(tag) || Integer.parseInt(rec.nextString()) != i || it.lsn() != lsns[i])
+                    throw new RuntimeException("forward scan: wrong record " + i);
+            }
+            if (it.hasNext())
+                throw new RuntimeException("forward scan went past the last record");
+        } finally {
+            SimpleDB.LOG_READ_CHUNK = chunkBytes;
+        }
+        if (logMgr.forwardIterator(logMgr.flushedLSN()).hasNext())
+            throw new RuntimeException("forward scan from the end returned a record");
+        System.out.println("scans: " + records + " records read backward and forward");
+    }
+
+    private static String skipTag(BasicLogRecord rec) {
+        rec.skipBytes();
+        return rec.nextString();
+    }
+
+    /**
+     * 记录开头的字符串。新数据库的日志以检查点开始，它和其他恢复用的记录开头是类型而不是字符串，返回null
+     */
+    private static String firstString(BasicLogRecord rec) {
+        try {
+            return rec.nextString();
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 逆序读出连续的、带有tag的记录，检查序号依次减一
+     * @return 读到的记录数
+     */
+    private static int readBack(LogMgr logMgr, String tag) {
+        Iterator<BasicLogRecord> it = logMgr.iterator();
+        int found = 0, expected = -1;
+        while (it.hasNext()) {
+            BasicLogRecord rec = it.next();
+            if (!tag.equals(firstString(rec)))
+                break;
+            int i = Integer.parseInt(rec.nextString());
+            if (expected >= 0 && i != expected)
+                throw new RuntimeException("expected record " + expected + ", found " + i);
+            expected = i - 1;
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * 多个线程同时追加长度不同的记录，重新打开数据库后逐条检查：
+     * 每条记录的内容都完整，每个线程的记录一条不少，并且按追加的顺序排列
+     *
+     * @param background 是否由日志写线程在后台写盘
+     */
+    private static void testConcurrentAppend(boolean background) {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        if (background)
+            logMgr.startWriter(0);
+        else
+            logMgr.stopWriter();
+        String tag = "stress-" + System.nanoTime();
+        int threads = 8, records = 3000;
+        long[] lastLsn = new long[threads];
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            ts[t] = new Thread(() -> {
+                long prev = -1;
+                for (int i = 0; i < records; i++) {
+                    long lsn = logMgr.append(new Object[]{tag, id, i, payload(id, i)});
+                    if (lsn <= prev)
+                        throw new RuntimeException("LSN went backwards: " + prev + ", " + lsn);
+                    prev = lsn;
+                    if (i % 500 == 0)
+                        logMgr.flush(lsn);
+                }
+                lastLsn[id] = prev;
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("interrupted", e);
+            }
+        }
+        for (long lsn : lastLsn)
+            logMgr.flush(lsn);
+        long waits = logMgr.ringFullWaits();
+
+        SimpleDB.init("studentDB");
+        int[] next = new int[threads];   // 逆序遍历，每个线程下一条应该是的序号
+        java.util.Arrays.fill(next, records - 1);
+        int found = 0;
+        Iterator<BasicLogRecord> it = SimpleDB.getLogMgr().iterator();
+        while (it.hasNext() && found < threads * records) {
+            BasicLogRecord rec = it.next();
+            if (!tag.equals(firstString(rec)))
+                break;
+            int id = rec.nextInt();
+            int i = rec.nextInt();
+            String p = rec.nextString();
+            if (id < 0 || id >= threads || i != next[id] || !p.equals(payload(id, i)))
+                throw new RuntimeException("corrupt or out of order record: thread " + id + ", #" + i
+                        + ", expected #" + (id >= 0 && id < threads ? next[id] : -1));
+            next[id]--;
+            found++;
+        }
+        if (found != threads * records)
+            throw new RuntimeException("expected " + threads * records + " records, found " + found);
+        System.out.println("concurrent append" + (background ? " with log writer" : "")
+                + ": " + found + " records intact, ring full " + waits + " times");
+    }
+
+    /**
+     * 长度随序号变化的记录内容，检查时可以重新算出来
+     */
+    private static String payload(int id, int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k <= (id + i) % 40; k++)
+            sb.append((char) ('a' + (id * 7 + i + k) % 26));
+        return sb.toString();
+    }
+
+    /**
+     * 用LogRecordWriter按类型写一条记录，再用BasicLogRecord按同样的顺序读出来。
+     * 非ASCII字符串用默认字符集编码，默认字符集不能表示的字符会变成'?'，和Page.setString一样
+     */
+    private static void testTypedRecord() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        byte[] bytes = {1, 2, 3, (byte) 0xff};
+        LogRecordWriter w = logMgr.recordWriter()
+                .putString("typed")
+                .putInt(-7)
+                .putLong(Long.MAX_VALUE - 1)
+                .putBytes(bytes)
+                .putString("日志")
+                .putInt(42);
+        logMgr.flush(logMgr.append(w));
+
+        BasicLogRecord rec = logMgr.iterator().next();
+        byte[] read = new byte[16];
+        if (!rec.nextString().equals("typed") || rec.nextInt() != -7 || rec.nextLong() != Long.MAX_VALUE - 1
+                || rec.nextBytes(read) != bytes.length || read[3] != (byte) 0xff
+                || !rec.nextString().equals(new String("日志".getBytes())) || rec.nextInt() != 42)
+            throw new RuntimeException("typed log record read back wrong");
+        System.out.println("typed record: ok");
+    }
+
+    /**
+     * 追加的记录跨越很多块，日志缓冲环反复写满，并且没有日志写线程时由追加的线程自己写盘：
+     * 重新打开数据库之后所有的记录都要按顺序读出来
+     */
+    private static void testRing() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        logMgr.stopWriter();
+        String tag = "ring-" + System.nanoTime();
+        int records = 5000;
+        long lsn = -1;
+        for (int i = 0; i < records; i++)
+            lsn = logMgr.append(new Object[]{tag, String.valueOf(i)});
+        logMgr.flush(lsn);
+        System.out.println("ring of " + logMgr.buffers() + " pages was full " + logMgr.ringFullWaits() + " times");
+
+        SimpleDB.init("studentDB");
+        int expected = records - 1;
+        Iterator<BasicLogRecord> it = SimpleDB.getLogMgr().iterator();
+        while (it.hasNext() && expected >= 0) {
+            BasicLogRecord rec = it.next();
+            if (!tag.equals(firstString(rec)))
+                break;
+            int i = Integer.parseInt(rec.nextString());
+            if (i != expected)
+                throw new RuntimeException("expected record " + expected + ", found " + i);
+            expected--;
+        }
+        if (expected != -1)
+            throw new RuntimeException((expected + 1) + " records lost");
+        System.out.println("ring: all " + records + " records durable");
+    }
+
+    /**
+     * LSN是字节偏移，同一个块内的记录LSN也不同；
+     * 记录已经在磁盘上时flush不应该再写日志文件
+     */
+    private static void testFlushedLSN() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        long lsn1 = logMgr.append(new Object[]{"lsn", "1"});
+        logMgr.flush(lsn1);
+        long lsn2 = logMgr.append(new Object[]{"lsn", "2"});
+        if (lsn2 <= lsn1)
+            throw new RuntimeException("LSNs not increasing: " + lsn1 + ", " + lsn2);
+        long ioCalls = SimpleDB.getFileMgr().ioCalls();
+        logMgr.flush(lsn1);
+        if (SimpleDB.getFileMgr().ioCalls() != ioCalls)
+            throw new RuntimeException("flush of a durable record wrote the log");
+        logMgr.flush(lsn2);
+        if (SimpleDB.getFileMgr().ioCalls() == ioCalls || logMgr.flushedLSN() <= lsn2)
+            throw new RuntimeException("flush did not write record " + lsn2);
+        System.out.println("LSNs " + lsn1 + ", " + lsn2 + ", flushed up to " + logMgr.flushedLSN());
+    }
+
+    /**
+     * 日志文件是预分配的，重新打开数据库之后应该接着最后一条记录继续写，
+     * 逆序遍历时第一条就是最后写入的记录
+     */
+    private static void testReopen() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        logMgr.flush(logMgr.append(new Object[]{"before", "reopen"}));
+        SimpleDB.init("studentDB");
+        logMgr = SimpleDB.getLogMgr();
+        logMgr.flush(logMgr.append(new Object[]{"after", "reopen"}));
+
+        Iterator<BasicLogRecord> it = logMgr.iterator();
+        String last = it.next().nextString();
+        String previous = it.next().nextString();
+        System.out.println("after reopen: " + last + ", " + previous);
+        if (!last.equals("after") || !previous.equals("before"))
+            throw new RuntimeException("log records lost across reopen");
+    }
+
+    /**
+     * 更早预留的记录还在复制时，flush不能写到水位就返回，要等到自己的记录真的在磁盘上
+     * @param withWriter 是否由日志写线程组提交
+     */
+    private static void testFlushBehindStalledAppend(boolean withWriter) throws Exception {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        boolean hadWriter = logMgr.writer() != null;
+        if (withWriter)
+            logMgr.startWriter(0);
+        else
+            logMgr.stopWriter();
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread slow = new Thread(() -> logMgr.append(new Object[]{"stalled", "x"}));
+        logMgr.beforeCopy = () -> {
+            if (Thread.currentThread() == slow) {
+                stalled.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("interrupted", e);
+                }
+            }
+        };
+        try {
+            slow.start();
+            stalled.await();
+            long lsn = logMgr.append(new Object[]{"own", "y"});
+            Thread flusher = new Thread(() -> logMgr.flush(lsn));
+            flusher.start();
+            flusher.join(200);
+            boolean waited = flusher.isAlive();
+            release.countDown();
+            slow.join();
+            flusher.join();
+            System.out.println("flush behind a stalled append" + (withWriter ? " with log writer" : "")
+                    + ": waited " + waited + ", flushed up to " + logMgr.flushedLSN() + ", record at " + lsn);
+            if (!waited || logMgr.flushedLSN() <= lsn)
+                throw new RuntimeException("flush returned before its record was on disk");
+        } finally {
+            logMgr.beforeCopy = null;
+            release.countDown();
+            if (hadWriter)
+                logMgr.startWriter(SimpleDB.LOG_GROUP_COMMIT_DELAY);
+            else
+                logMgr.stopWriter();
+        }
+    }
+
+    /**
+     * 替换和停止日志写线程时，旧的写线程写完已经追加的记录并退出之后才返回，
+     * 不会在之后新的LogMgr接管日志时还在写盘
+     */
+    private static void testStopWriter() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        boolean hadWriter = logMgr.writer() != null;
+        logMgr.startWriter(0);
+        LogWriter first = logMgr.writer();
+        long lsn = 0;
+        for (int i = 0; i < 2000; i++)
+            lsn = logMgr.append(new Object[]{"stop-writer", String.valueOf(i)});
+        logMgr.startWriter(0);
+        LogWriter second = logMgr.writer();
+        for (int i = 0; i < 2000; i++)
+            lsn = logMgr.append(new Object[]{"stop-writer", String.valueOf(i)});
+        logMgr.flush(lsn);
+        logMgr.stopWriter();
+        System.out.println("stop writer: replaced writer alive " + first.isAlive()
+                + ", stopped writer alive " + second.isAlive());
+        if (first.isAlive() || second.isAlive() || logMgr.writer() != null || logMgr.flushedLSN() <= lsn)
+            throw new RuntimeException("log writer still running after it was stopped");
+        if (hadWriter)
+            logMgr.startWriter(SimpleDB.LOG_GROUP_COMMIT_DELAY);
+    }
+
+    /**
+     * 多个线程并发提交，每个线程flush返回后它的记录必须已经在磁盘上：
+     * 重新打开数据库后从磁盘上读日志，每个线程的记录都要一条不少
+     */
+    private static void testGroupCommit() {
+        SimpleDB.getLogMgr().startWriter(100);
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        String tag = "group-" + System.nanoTime();
+        int threads = 8, commits = 200;
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            ts[t] = new Thread(() -> {
+                for (int i = 0; i < commits; i++)
+                    logMgr.flush(logMgr.append(new Object[]{tag, String.valueOf(id)}));
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("interrupted", e);
+            }
+        }
+        LogWriter writer = logMgr.writer();
+        System.out.println("group commit: " + writer.requests() + " requests, " + writer.flushes() + " flushes");
+
+        SimpleDB.init("studentDB");
+        int[] found = new int[threads];
+        Iterator<BasicLogRecord> it = SimpleDB.getLogMgr().iterator();
+        while (it.hasNext()) {
+            BasicLogRecord rec = it.next();
+            if (tag.equals(firstString(rec)))
+                found[Integer.parseInt(rec.nextString())]++;
+        }
+        for (int t = 0; t < threads; t++) {
+            if (found[t] != commits)
+                throw new RuntimeException("thread " + t + " committed " + commits + " records, found " + found[t]);
+        }
+        System.out.println("group commit: all " + threads * commits + " records durable");
     }
 }
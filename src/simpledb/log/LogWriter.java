@@ -0,0 +1,230 @@
+package simpledb.log;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 日志写线程，在后台把日志缓冲环中写满的页写盘，并且实现组提交（group commit）。
+ * 需要把日志写到磁盘的线程（提交的事务、写回脏页的线程）不再自己写盘，而是加入当前的一批请求并等待；
+ * 日志写线程每次取走一整批请求，只写一次日志、同步一次磁盘，然后唤醒这一批所有的线程。
+ * 写盘期间到达的请求组成下一批，所以并发提交的事务越多，每次写盘平均分摊到的事务也越多。
+ * <p>
+ * 取走一批之前可以再等待maxDelay，让更多的请求加入这一批，以少量延迟换取更少的写盘次数
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class LogWriter implements Runnable {
+    private final LogMgr logMgr;
+    private final long maxDelayNanos;
+    private final Thread thread;
+    // Object.wait的超时只精确到毫秒，凑批的延迟通常只有几百微秒，所以用Condition.awaitNanos
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition requested = lock.newCondition();   // 有新的请求，或者要停止了
+    private final Condition flushed = lock.newCondition();     // 一批请求写完了
+    private boolean running = true;
+    private Batch pending;   // 正在收集请求的一批，还没有被写线程取走
+    private boolean sealedPages;   // 日志缓冲中有新写满的页
+    private long flushes;    // 写盘的次数
+    private long requests;   // 请求的次数
+
+    /**
+     * @param logMgr
+     * @param maxDelayMicros 取走一批请求之前最多再等多久（微秒），0表示不等
+     */
+    LogWriter(LogMgr logMgr, long maxDelayMicros) {
+        this.logMgr = logMgr;
+        this.maxDelayNanos = maxDelayMicros * 1000;
+        this.thread = new Thread(this, "simpledb-log-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 停止写线程，等已经登记的请求写完、线程退出之后才返回。
+     * 这里不中断线程，中断会关闭正在写的FileChannel
+     */
+    void shutdown() {
+        stopAccepting();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * 不再接受新的请求，写线程写完已经登记的请求就退出
+     */
+    private void stopAccepting() {
+        lock.lock();
+        try {
+            running = false;
+            requested.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 日志缓冲中又写满了一个页，通知写线程在后台写盘
+     */
+    void pageSealed() {
+        lock.lock();
+        try {
+            if (!sealedPages) {
+                sealedPages = true;
+                requested.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 加入当前这一批请求，等待写线程把日志写到磁盘上。
+     * 调用之前已经追加的日志记录，返回时都已经持久化了
+     */
+    void awaitFlush() {
+        Batch batch;
+        lock.lock();
+        try {
+            if (running) {
+                if (pending == null) {
+                    pending = new Batch();
+                    requested.signal();
+                }
+                batch = pending;
+                requests++;
+                boolean interrupted = false;
+                while (!batch.done) {
+                    try {
+                        flushed.await();
+                    } catch (InterruptedException e) {
+                        // 日志已经交给写线程了，等它写完再恢复中断状态
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            } else {
+                batch = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (batch == null) {
+            // 写线程已经停止了，由调用者自己写盘
+            logMgr.flushCurrentPage();
+            return;
+        }
+        if (batch.error != null)
+            throw batch.error;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Batch batch = null;
+            lock.lock();
+            try {
+                while (pending == null && !sealedPages && running)
+                    requested.awaitUninterruptibly();
+                if (pending == null && !sealedPages)
+                    return;
+                sealedPages = false;   // 下面写盘时会把已经写满的页一起写掉
+                if (pending != null && maxDelayNanos > 0) {
+                    // 再等一会儿，让更多的请求加入这一批
+                    long remaining = maxDelayNanos;
+                    while (running && remaining > 0) {
+                        try {
+                            remaining = requested.awaitNanos(remaining);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                if (pending != null) {
+                    batch = pending;
+                    pending = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (batch == null) {
+                try {
+                    logMgr.writeSealedPages();
+                } catch (RuntimeException e) {
+                    // 后台写盘失败时停止写线程：已经登记的请求照常写完（错误会抛给它们），
+                    // 之后由调用者自己写盘
+                    stopAccepting();
+                    logMgr.writerFailed(this);
+                }
+                continue;
+            }
+            RuntimeException error = null;
+            try {
+                logMgr.flushCurrentPage();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            lock.lock();
+            try {
+                flushes++;
+                batch.error = error;
+                batch.done = true;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 写线程是否还在运行
+     *
+     * @return
+     */
+    boolean isAlive() {
+        return thread.isAlive();
+    }
+
+    /**
+     * 写盘的次数，和{@link #requests()}的比值就是平均每次写盘服务的请求数
+     *
+     * @return
+     */
+    public long flushes() {
+        lock.lock();
+        try {
+            return flushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long requests() {
+        lock.lock();
+        try {
+            return requests;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 一批请求，写线程写完之后由done通知这一批的所有线程
+     */
+    private static class Batch {
+        boolean done;
+        RuntimeException error;
+    }
+}
@@ -1,10 +1,17 @@
 package simpledb.server;
 
+import simpledb.buffer.Buffer;
 import simpledb.buffer.BufferMgr;
+import simpledb.file.AsyncFileMgr;
 import simpledb.file.Block;
+import simpledb.file.DurabilityMode;
 import simpledb.file.FileMgr;
 import simpledb.file.Page;
+import simpledb.file.StorageBackend;
 import simpledb.log.LogMgr;
+import simpledb.tx.recovery.CheckpointMgr;
+import simpledb.tx.recovery.CheckpointRecord;
+import simpledb.tx.recovery.RecoveryMgr;
 
 /**
  * @program: simpleDB
@@ -13,12 +20,57 @@ import simpledb.log.LogMgr;
  * @create: 2019-07-03 23:07
  **/
 public class SimpleDB {
+    public static int BLOCK_SIZE = Page.DEFAULT_BLOCK_SIZE;  // 新建数据库的块大小，已有的数据库使用创建时的块大小
     public static int BUFFER_SIZE=8;  // 缓冲池大小
+    public static String REPLACEMENT_POLICY = "LRU";  // 缓冲池页替换策略：LRU、CLOCK、LRU-K、2Q
+    public static int BUFFER_PARTITIONS = 0;  // 缓冲池分区数，0表示根据缓冲池大小和CPU核数自动确定
     public static String LOG_FILE = "simpledb.log";
+    // 数据文件的持久化方式，默认每次写都同步。提交时还不会force数据文件，
+    // 只有所有修改数据页的操作都写了重做日志时才能改成FORCE_ON_DEMAND，交给检查点force
+    public static DurabilityMode DATA_DURABILITY = DurabilityMode.SYNC;
+    // 日志文件的持久化方式，每次写日志都同步写入数据
+    public static DurabilityMode LOG_DURABILITY = DurabilityMode.DSYNC;
+    // 数据文件的存储后端：CHANNEL每次读写一次系统调用，MMAP映射到内存中。日志文件总是用CHANNEL
+    public static StorageBackend FILE_BACKEND = StorageBackend.CHANNEL;
+    // 日志分成固定大小的段文件，每个段第一次使用时一次分配好，追加日志块不需要修改文件长度，写日志时就不用同步元数据。
+    // 新建日志时使用，之后保存在数据库的头文件中
+    public static long LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // 检查点之前的段不再需要时，保留多少个留作以后的段重新使用（不用重新分配空间），多出来的删除
+    public static int LOG_RECYCLED_SEGMENTS = 4;
+    // 不再需要的段移到数据库目录下的这个子目录中归档，而不是重新使用或删除，null表示不归档
+    public static String LOG_ARCHIVE_DIR = null;
+    // 遍历日志时每次读的字节数，同一个段中连续的块一次读进来，并在解析时预读下一段
+    public static long LOG_READ_CHUNK = 1024 * 1024;
+    // 是否单独压缩每条日志记录，更新多的负载下减少写日志的字节数。新建日志时使用，之后保存在数据库的头文件中，
+    // 可以用LogMgr.setCompression修改
+    public static boolean LOG_COMPRESSION = false;
+    // 日志缓冲环中的页数，追加只在所有页都写满、还没有写盘时才需要等待
+    public static int LOG_BUFFERS = 8;
+    // 是否启动日志写线程：在后台写出写满的日志页，并且合并多个事务的flush请求，一次写盘服务一批事务（组提交）
+    public static boolean LOG_GROUP_COMMIT = true;
+    // 组提交时日志写线程凑一批请求最多额外等待的微秒数，0表示只合并写盘期间到达的请求
+    public static long LOG_GROUP_COMMIT_DELAY = 0;
+    public static long FLUSH_INTERVAL = 200;   // 后台写回脏页的间隔（毫秒），0表示不启动后台写回线程
+    public static int FLUSH_BATCH_SIZE = 32;   // 后台每一轮最多写回的页数
+    public static long FLUSH_IDLE_PINS = 100;  // 一轮间隔内pin请求数不超过该值时认为系统空闲
+    public static int PREFETCH_DEPTH = 8;      // 顺序扫描时预读的块数（不超过缓冲池的1/4），0表示不预读
+    public static int PREFETCH_MAX_OUTSTANDING = 4;  // 同时进行的预读I/O个数
+    public static int IO_THREADS = 4;          // 异步I/O的线程数
+    // 两次检查点之间最长的间隔（毫秒），0表示不按时间做检查点
+    public static long CHECKPOINT_INTERVAL = 60 * 1000;
+    // 两次检查点之间最多写的日志字节数，限制了恢复时要处理的日志量，0表示不按日志量做检查点
+    public static long CHECKPOINT_LOG_BYTES = 64 * 1024 * 1024;
+    // 检查点之后是否回收重做起点之前的日志段。只有事务模块在事务开始和结束时调用了
+    // CheckpointMgr.txStarted/txEnded，检查点的活跃事务表才是完整的，在那之前打开会回收撤销还需要的日志
+    public static boolean CHECKPOINT_TRUNCATE_LOG = false;
+    // 恢复时重做日志的线程数，修改按块分给各个线程，0表示CPU核数
+    public static int RECOVERY_THREADS = 0;
 
     private static FileMgr fileMgr;
+    private static AsyncFileMgr asyncFileMgr;
     private static LogMgr logMgr;
     private static BufferMgr bufferMgr;
+    private static CheckpointMgr checkpointMgr;
 
 
     /**
@@ -31,43 +83,121 @@ public class SimpleDB {
         boolean isNew = fileMgr.isNew();
         if (isNew) {
             System.out.println("creating a new database");
+            // 先写好主记录，之后任何时候崩溃都能从一个检查点开始恢复
+            checkpointMgr.checkpoint();
         } else {
             System.out.println("recovering the existing database");
+            // 没有主记录（比如在第一个检查点写完之前崩溃了）时从日志的开头重做
+            CheckpointRecord checkpoint = checkpointMgr.lastCheckpoint();
+            System.out.println(checkpoint != null ? "last checkpoint: " + checkpoint
+                    : "no checkpoint, redo from the start of the log");
+            recover(checkpoint);
         }
+        if (CHECKPOINT_INTERVAL > 0 || CHECKPOINT_LOG_BYTES > 0)
+            checkpointMgr.startCheckpointer(CHECKPOINT_INTERVAL, CHECKPOINT_LOG_BYTES);
     }
+    /**
+     * 从检查点开始并行重做日志，重做过的页再做一个检查点，下次启动时不用再处理这些日志
+     * @param checkpoint 最近一个检查点，null表示从日志的开头重做
+     */
+    private static void recover(CheckpointRecord checkpoint) {
+        long start = System.nanoTime();
+        RecoveryMgr recoveryMgr = new RecoveryMgr(RECOVERY_THREADS);
+        recoveryMgr.redo(checkpoint);
+        System.out.printf("redo: %d records, %d applied, %d skipped in %.1fms%n", recoveryMgr.records(),
+                recoveryMgr.applied(), recoveryMgr.skipped(), (System.nanoTime() - start) / 1e6);
+        if (recoveryMgr.applied() > 0)
+            checkpointMgr.checkpoint();
+    }
+
     /**
      * 创建文件管理对象、日志管理对象和缓存管理对象
      * @param dirName
      */
     private static void initFileLogAndBufferMgr(String dirName) {
+        // 先停掉旧缓冲池的后台线程，它们还在使用旧的文件管理对象
+        if (checkpointMgr != null)
+            checkpointMgr.stopCheckpointer();
+        if (bufferMgr != null) {
+            bufferMgr.stopFlusher();
+            bufferMgr.stopPrefetcher();
+        }
         initFileAndLogMgr(dirName);
-        bufferMgr=new BufferMgr(BUFFER_SIZE);
+        int partitions = BUFFER_PARTITIONS > 0 ? BUFFER_PARTITIONS : BufferMgr.defaultPartitions(BUFFER_SIZE);
+        bufferMgr=new BufferMgr(BUFFER_SIZE, REPLACEMENT_POLICY, partitions);
+        if (FLUSH_INTERVAL > 0)
+            bufferMgr.startFlusher(FLUSH_INTERVAL, FLUSH_BATCH_SIZE, FLUSH_IDLE_PINS);
+        if (PREFETCH_DEPTH > 0)
+            bufferMgr.startPrefetcher(PREFETCH_DEPTH, PREFETCH_MAX_OUTSTANDING);
+        checkpointMgr=new CheckpointMgr();
     }
     /**
      * 创建文件管理对象、日志管理对象
      * @param dirName
      */
     private static void initFileAndLogMgr(String dirName) {
+        if (logMgr != null)
+            logMgr.stopWriter();
         initFileMgr(dirName);
-        logMgr=new LogMgr(LOG_FILE);
+        logMgr=new LogMgr(LOG_FILE, LOG_BUFFERS);
+        if (LOG_GROUP_COMMIT)
+            logMgr.startWriter(LOG_GROUP_COMMIT_DELAY);
     }
 
     /**
-     * 创建文件管理对象
+     * 创建文件管理对象，以及在它之上的异步I/O
      * @param dirName
      */
     private static void initFileMgr(String dirName)
     {
-        fileMgr=new FileMgr(dirName);
+        if (asyncFileMgr != null)
+            asyncFileMgr.shutdown();
+        fileMgr=new FileMgr(dirName, BLOCK_SIZE);
+        checkPageFormat(dirName);
+        fileMgr.setDefaultDurability(DATA_DURABILITY);
+        // 日志的各个段文件沿用为LOG_FILE设置的持久化方式和存储后端
+        fileMgr.setDurability(LOG_FILE, LOG_DURABILITY);
+        fileMgr.setDefaultBackend(FILE_BACKEND);
+        // 日志几乎只有追加，映射到内存中每追加一个块都要重新映射
+        fileMgr.setBackend(LOG_FILE, StorageBackend.CHANNEL);
+        asyncFileMgr=new AsyncFileMgr(fileMgr, IO_THREADS);
+    }
+
+    /**
+     * 检查数据库的页格式，在读写任何数据文件之前调用。
+     * 新数据库和还没有数据文件的数据库记下当前的版本；有数据文件却没有记录版本的数据库
+     * 是在页末尾保存page LSN之前创建的，页末尾可能存着记录，无法安全地转换，拒绝打开
+     * @param dirName
+     */
+    private static void checkPageFormat(String dirName) {
+        String format = fileMgr.headerProperty(Buffer.PAGE_FORMAT);
+        if (format == null) {
+            for (String name : fileMgr.list("")) {
+                if (name.startsWith(FileMgr.HEADER_FILE) || name.startsWith(LOG_FILE) || name.equals(LOG_ARCHIVE_DIR))
+                    continue;
+                throw new RuntimeException("database " + dirName + " was created before pages reserved their last "
+                        + Buffer.PAGE_LSN_SIZE + " bytes for the page LSN and cannot be converted, create a new database");
+            }
+            fileMgr.setHeaderProperty(Buffer.PAGE_FORMAT, Integer.toString(Buffer.PAGE_FORMAT_VERSION));
+        } else if (Integer.parseInt(format) != Buffer.PAGE_FORMAT_VERSION) {
+            throw new RuntimeException("database " + dirName + " has page format " + format
+                    + ", this version reads format " + Buffer.PAGE_FORMAT_VERSION);
+        }
     }
 
     public static FileMgr getFileMgr() {
         return fileMgr;
     }
+    public static AsyncFileMgr getAsyncFileMgr() {
+        return asyncFileMgr;
+    }
     public static LogMgr getLogMgr() {
         return logMgr;
     }
     public static BufferMgr getBufferMgr() {
         return bufferMgr;
     }
+    public static CheckpointMgr getCheckpointMgr() {
+        return checkpointMgr;
+    }
 }
@@ -0,0 +1,182 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.BufferMgr;
+import simpledb.file.Block;
+import simpledb.file.FileMgr;
+import simpledb.log.LogMgr;
+import simpledb.server.SimpleDB;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 检查点管理单元，实现模糊（不停顿的）检查点：做检查点时不阻止事务修改页面和写日志。
+ * <p>
+ * 一次检查点的步骤：
+ * 1. 把上一个检查点开始之前就变脏、一直没有写回的页写回，这样重做的起点最多落后两个检查点；
+ * 2. 写CHECKPOINT_BEGIN记录；
+ * 3. 先取活跃事务表的快照，再取脏页表的快照，两个快照都不加全局锁；
+ * 4. 强制所有数据文件落盘，快照之前已经写回的页从此都在磁盘上了；
+ * 5. 写出两张表和CHECKPOINT_END记录，日志落盘之后把BEGIN的LSN作为主记录保存在数据库头文件中；
+ * 6. 打开了{@link SimpleDB#CHECKPOINT_TRUNCATE_LOG}时，重做起点之前的日志段交给{@link LogMgr#truncate(long)}回收。
+ * <p>
+ * 重做起点取检查点开始的位置、活跃事务开始的位置和脏页recLSN中的最小值。
+ * 修改页面时在页的排它latch内写日志（{@link simpledb.buffer.Buffer#setInt(int, int, int, java.util.function.LongSupplier)}），
+ * 脏页表的快照在共享latch下读每个页，所以一次修改要么在快照中，要么它的日志在检查点开始之后，
+ * 重做不依赖活跃事务表。
+ * 活跃事务表留给撤销：事务开始和结束时要通知这里（{@link #txStarted(int)}、{@link #txEnded(int)}），
+ * 结束的通知要在事务最后一次修改页面之后。
+ * 没有这些通知时活跃事务表总是空的，撤销需要的日志可能在重做起点之前，所以默认不回收日志段
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class CheckpointMgr {
+    // 数据库头文件中保存最近一个检查点的BEGIN记录LSN的键，即主记录
+    public static final String MASTER_RECORD = "checkpointLSN";
+    // 活跃事务，以及开始时日志的结束位置，事务的所有记录都在它之后
+    private final Map<Integer, Long> activeTxs = new ConcurrentHashMap<>();
+    private volatile long lastBeginLSN = -1;    // 最近一个检查点的BEGIN记录，-1表示还没有
+    private volatile long lastEndLSN;           // 最近一个检查点写完时日志的结束位置
+    private volatile long lastCheckpointTime;   // 最近一个检查点完成的时间（System.nanoTime）
+    private final AtomicLong checkpoints = new AtomicLong();  // 做过的检查点数
+    private Checkpointer checkpointer;          // 后台做检查点的线程，没有启动时为null
+
+    /**
+     * 该构造函数必须在日志和缓冲池都创建好之后调用
+     */
+    public CheckpointMgr() {
+        String master = SimpleDB.getFileMgr().headerProperty(MASTER_RECORD);
+        if (master != null)
+            lastBeginLSN = Long.parseLong(master);
+        lastEndLSN = SimpleDB.getLogMgr().endLSN();
+        lastCheckpointTime = System.nanoTime();
+    }
+
+    /**
+     * 事务开始，记下当前日志的结束位置
+     *
+     * @param txnum
+     */
+    public void txStarted(int txnum) {
+        activeTxs.put(txnum, SimpleDB.getLogMgr().endLSN());
+    }
+
+    /**
+     * 事务提交或者回滚完成
+     *
+     * @param txnum
+     */
+    public void txEnded(int txnum) {
+        activeTxs.remove(txnum);
+    }
+
+    /**
+     * 做一个模糊检查点，步骤见类的说明。同一时刻只有一个检查点在进行
+     *
+     * @return 写到日志中的检查点
+     */
+    public synchronized CheckpointRecord checkpoint() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        FileMgr fileMgr = SimpleDB.getFileMgr();
+        if (lastBeginLSN >= 0)
+            bufferMgr.flushOlderThan(lastBeginLSN);
+
+        long beginLSN = CheckpointRecord.writeBegin();
+        Map<Integer, Long> txs = new HashMap<>(activeTxs);
+        Map<Block, Long> pages = bufferMgr.dirtyPages();
+        fileMgr.forceAll();
+
+        long redoLSN = beginLSN;
+        for (long lsn : txs.values())
+            redoLSN = Math.min(redoLSN, lsn);
+        for (long lsn : pages.values())
+            redoLSN = Math.min(redoLSN, lsn);
+        CheckpointRecord rec = new CheckpointRecord(beginLSN, redoLSN, txs, pages);
+        logMgr.flush(rec.writeToLog());
+        fileMgr.setHeaderProperty(MASTER_RECORD, Long.toString(beginLSN));
+
+        lastBeginLSN = beginLSN;
+        lastEndLSN = logMgr.endLSN();
+        lastCheckpointTime = System.nanoTime();
+        checkpoints.incrementAndGet();
+        if (SimpleDB.CHECKPOINT_TRUNCATE_LOG)
+            logMgr.truncate(redoLSN);
+        return rec;
+    }
+
+    /**
+     * 从日志中读出主记录指向的最近一个检查点，恢复从它开始
+     *
+     * @return 还没有做过检查点时返回null
+     */
+    public CheckpointRecord lastCheckpoint() {
+        long begin = lastBeginLSN;
+        return begin < 0 ? null : CheckpointRecord.read(begin);
+    }
+
+    /**
+     * 启动后台线程，日志增长到一定的量或者过了一定的时间就做一次检查点，见{@link Checkpointer}
+     *
+     * @param intervalMillis 两次检查点之间最长的间隔（毫秒），0表示不按时间
+     * @param logBytes       两次检查点之间最多写的日志字节数，0表示不按日志量
+     */
+    public synchronized void startCheckpointer(long intervalMillis, long logBytes) {
+        if (checkpointer != null)
+            return;
+        checkpointer = new Checkpointer(this, intervalMillis, logBytes);
+        checkpointer.start();
+    }
+
+    /**
+     * 停止后台线程，正在进行的检查点会做完
+     */
+    public void stopCheckpointer() {
+        Checkpointer c;
+        synchronized (this) {
+            c = checkpointer;
+            checkpointer = null;
+        }
+        if (c != null)
+            c.shutdown();
+    }
+
+    /**
+     * 后台做检查点的线程，没有启动时返回null
+     *
+     * @return
+     */
+    public synchronized Checkpointer checkpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * 最近一个检查点之后写的日志字节数
+     *
+     * @return
+     */
+    public long logSinceCheckpoint() {
+        return SimpleDB.getLogMgr().endLSN() - lastEndLSN;
+    }
+
+    /**
+     * 距最近一个检查点（或者启动）的毫秒数
+     *
+     * @return
+     */
+    public long millisSinceCheckpoint() {
+        return (System.nanoTime() - lastCheckpointTime) / 1000000;
+    }
+
+    /**
+     * 做过的检查点数
+     *
+     * @return
+     */
+    public long checkpoints() {
+        return checkpoints.get();
+    }
+}
@@ -0,0 +1,176 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.ForwardLogIterator;
+import simpledb.log.LogMgr;
+import simpledb.log.LogRecordWriter;
+import simpledb.server.SimpleDB;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static simpledb.file.Page.INT_SIZE;
+import static simpledb.file.Page.LONG_SIZE;
+
+/**
+ * 一个模糊检查点的内容：开始时的LSN、当时的活跃事务表（事务号到它的第一条日志记录）
+ * 和脏页表（块到页变脏之后第一条修改它的日志记录，即recLSN），以及据此算出的重做起点。
+ * <p>
+ * 在日志中，一个检查点由一条CHECKPOINT_BEGIN记录开始，接着是若干条CHECKPOINT_TXS和CHECKPOINT_DIRTY记录
+ * （两张表可能很大，一条记录放不下时分成多条），最后是CHECKPOINT_END记录。
+ * 除了BEGIN之外的记录都带着BEGIN的LSN，这样和其它事务的记录交错在一起时也能认出来：
+ * <pre>
+ * &lt;CHECKPOINT_BEGIN&gt;
+ * &lt;CHECKPOINT_TXS, beginLSN, n, (txnum, firstLSN) * n&gt;
+ * &lt;CHECKPOINT_DIRTY, beginLSN, n, (fileName, blockNum, recLSN) * n&gt;
+ * &lt;CHECKPOINT_END, beginLSN, redoLSN, 事务数, 脏页数&gt;
+ * </pre>
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class CheckpointRecord implements LogRecord {
+    private static final int CHUNK_HEADER = INT_SIZE + LONG_SIZE + INT_SIZE;  // 类型、beginLSN和条目数
+    private final long beginLSN;
+    private final long redoLSN;
+    private final Map<Integer, Long> activeTxs;
+    private final Map<Block, Long> dirtyPages;
+
+    /**
+     * @param beginLSN   CHECKPOINT_BEGIN记录的LSN
+     * @param redoLSN    恢复时从这里开始重做
+     * @param activeTxs  活跃事务表，还没有写过日志的事务对应-1
+     * @param dirtyPages 脏页表
+     */
+    public CheckpointRecord(long beginLSN, long redoLSN, Map<Integer, Long> activeTxs, Map<Block, Long> dirtyPages) {
+        this.beginLSN = beginLSN;
+        this.redoLSN = redoLSN;
+        this.activeTxs = activeTxs;
+        this.dirtyPages = dirtyPages;
+    }
+
+    /**
+     * 写一条检查点开始的记录
+     *
+     * @return 它的LSN
+     */
+    public static long writeBegin() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        return logMgr.append(logMgr.recordWriter().putInt(CHECKPOINT_BEGIN));
+    }
+
+    @Override
+    public int op() {
+        return CHECKPOINT_END;
+    }
+
+    /**
+     * 写出两张表和检查点结束的记录
+     *
+     * @return CHECKPOINT_END记录的LSN
+     */
+    @Override
+    public long writeToLog() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        List<Map.Entry<Integer, Long>> txs = new ArrayList<>(activeTxs.entrySet());
+        int capacity = logMgr.recordWriter().capacity() - CHUNK_HEADER;
+        for (int from = 0; from < txs.size(); ) {
+            int n = Math.min(txs.size() - from, capacity / (INT_SIZE + LONG_SIZE));
+            LogRecordWriter w = logMgr.recordWriter().putInt(CHECKPOINT_TXS).putLong(beginLSN).putInt(n);
+            for (int i = from; i < from + n; i++)
+                w.putInt(txs.get(i).getKey()).putLong(txs.get(i).getValue());
+            logMgr.append(w);
+            from += n;
+        }
+        List<Map.Entry<Block, Long>> pages = new ArrayList<>(dirtyPages.entrySet());
+        for (int from = 0; from < pages.size(); ) {
+            // 文件名的长度不固定，先数出这条记录能放下几个条目
+            int n = 0, size = 0;
+            while (from + n < pages.size()) {
+                int entry = INT_SIZE + pages.get(from + n).getKey().getFileNama().getBytes().length + INT_SIZE + LONG_SIZE;
+                if (size + entry > capacity)
+                    break;
+                size += entry;
+                n++;
+            }
+            if (n == 0)
+                throw new IllegalArgumentException("file name too long for a log record: " + pages.get(from).getKey());
+            LogRecordWriter w = logMgr.recordWriter().putInt(CHECKPOINT_DIRTY).putLong(beginLSN).putInt(n);
+            for (int i = from; i < from + n; i++) {
+                Block blk = pages.get(i).getKey();
+                w.putString(blk.getFileNama()).putInt(blk.getBlockNum()).putLong(pages.get(i).getValue());
+            }
+            logMgr.append(w);
+            from += n;
+        }
+        return logMgr.append(logMgr.recordWriter().putInt(CHECKPOINT_END).putLong(beginLSN).putLong(redoLSN)
+                .putInt(activeTxs.size()).putInt(dirtyPages.size()));
+    }
+
+    /**
+     * 从日志中读出开始于beginLSN的检查点，从BEGIN记录往后顺序读到END记录为止
+     *
+     * @param beginLSN
+     * @return 日志中没有完整的检查点时返回null
+     */
+    public static CheckpointRecord read(long beginLSN) {
+        ForwardLogIterator it = SimpleDB.getLogMgr().forwardIterator(beginLSN);
+        if (!it.hasNext() || it.next().nextInt() != CHECKPOINT_BEGIN || it.lsn() != beginLSN)
+            return null;
+        Map<Integer, Long> txs = new HashMap<>();
+        Map<Block, Long> pages = new HashMap<>();
+        while (it.hasNext()) {
+            BasicLogRecord rec = it.next();
+            int op = rec.nextInt();
+            if (op != CHECKPOINT_TXS && op != CHECKPOINT_DIRTY && op != CHECKPOINT_END)
+                continue;
+            if (rec.nextLong() != beginLSN)
+                continue;   // 别的检查点的记录
+            if (op == CHECKPOINT_END) {
+                long redoLSN = rec.nextLong();
+                if (rec.nextInt() != txs.size() || rec.nextInt() != pages.size())
+                    throw new IllegalStateException("incomplete checkpoint at LSN " + beginLSN);
+                return new CheckpointRecord(beginLSN, redoLSN, txs, pages);
+            }
+            int n = rec.nextInt();
+            for (int i = 0; i < n; i++) {
+                if (op == CHECKPOINT_TXS)
+                    txs.put(rec.nextInt(), rec.nextLong());
+                else
+                    pages.put(new Block(rec.nextString(), rec.nextInt()), rec.nextLong());
+            }
+        }
+        return null;
+    }
+
+    public long beginLSN() {
+        return beginLSN;
+    }
+
+    /**
+     * 恢复时重做的起点：不晚于检查点开始的位置、任何活跃事务的第一条记录和任何脏页的recLSN
+     *
+     * @return
+     */
+    public long redoLSN() {
+        return redoLSN;
+    }
+
+    public Map<Integer, Long> activeTxs() {
+        return Collections.unmodifiableMap(activeTxs);
+    }
+
+    public Map<Block, Long> dirtyPages() {
+        return Collections.unmodifiableMap(dirtyPages);
+    }
+
+    @Override
+    public String toString() {
+        return "<CHECKPOINT " + beginLSN + ", redo from " + redoLSN + ", " + activeTxs.size() + " active txs, "
+                + dirtyPages.size() + " dirty pages>";
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb.tx.recovery;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 后台做检查点的线程。
+ * 定期检查距离上一个检查点写了多少日志、过了多长时间，超过设定的量就做一次检查点，
+ * 这样恢复时需要处理的日志量有一个上限。上一个检查点之后没有写过日志时不做
+ * <p>
+ * 停止时不中断线程：检查点中途被中断会导致正在读写的FileChannel被关闭
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class Checkpointer implements Runnable {
+    private static final long POLL_MILLIS = 100;  // 最长多久检查一次
+    private final CheckpointMgr checkpointMgr;
+    private final long intervalMillis;
+    private final long logBytes;
+    private final long pollMillis;
+    private final Thread thread;
+    private boolean running = true;   // 由this的锁保护
+    private final AtomicLong failures = new AtomicLong();  // 失败的检查点数
+    private final AtomicReference<RuntimeException> lastFailure = new AtomicReference<>();
+
+    /**
+     * @param checkpointMgr
+     * @param intervalMillis 两次检查点之间最长的间隔（毫秒），0表示不按时间
+     * @param logBytes       两次检查点之间最多写的日志字节数，0表示不按日志量
+     */
+    Checkpointer(CheckpointMgr checkpointMgr, long intervalMillis, long logBytes) {
+        this.checkpointMgr = checkpointMgr;
+        this.intervalMillis = intervalMillis;
+        this.logBytes = logBytes;
+        this.pollMillis = intervalMillis > 0 ? Math.min(intervalMillis, POLL_MILLIS) : POLL_MILLIS;
+        this.thread = new Thread(this, "simpledb-checkpointer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 让线程退出并等它结束
+     */
+    void shutdown() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                if (!running)
+                    return;
+                try {
+                    wait(pollMillis);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (!running)
+                    return;
+            }
+            if (!due())
+                continue;
+            try {
+                checkpointMgr.checkpoint();
+            } catch (RuntimeException e) {
+                // 失败时不要让后台线程退出，下一轮再试
+                failures.incrementAndGet();
+                lastFailure.set(e);
+            }
+        }
+    }
+
+    /**
+     * 是否该做检查点了
+     *
+     * @return
+     */
+    private boolean due() {
+        long written = checkpointMgr.logSinceCheckpoint();
+        if (written <= 0)
+            return false;
+        if (logBytes > 0 && written >= logBytes)
+            return true;
+        return intervalMillis > 0 && checkpointMgr.millisSinceCheckpoint() >= intervalMillis;
+    }
+
+    /**
+     * 失败的检查点数
+     *
+     * @return
+     */
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * 最近一次检查点失败的原因，没有失败过时返回null
+     *
+     * @return
+     */
+    public RuntimeException lastFailure() {
+        return lastFailure.get();
+    }
+}
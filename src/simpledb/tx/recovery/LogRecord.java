@@ -0,0 +1,35 @@
+package simpledb.tx.recovery;
+
+/**
+ * 恢复模块写到日志中的记录。每条记录的第一个int是记录的类型，后面的内容由各个类型自己决定，
+ * 读的时候先用{@link simpledb.log.BasicLogRecord#nextInt()}读出类型，再交给对应的类解析。
+ * <p>
+ * 日志中还可能有别的模块按自己的格式写的记录，它们的第一个int往往是一个小整数或者字符串的长度，
+ * 所以类型的高16位固定为{@link #TYPE_TAG}，从日志的开头重做时不会把这样的记录当成修改页面的记录
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public interface LogRecord {
+    int TYPE_TAG = 0x5DB0 << 16;            // 所有类型共同的高16位
+    int CHECKPOINT_BEGIN = TYPE_TAG | 0;   // 检查点开始
+    int CHECKPOINT_TXS = TYPE_TAG | 1;     // 检查点时的活跃事务表，一个检查点可以有多条
+    int CHECKPOINT_DIRTY = TYPE_TAG | 2;   // 检查点时的脏页表，一个检查点可以有多条
+    int CHECKPOINT_END = TYPE_TAG | 3;     // 检查点结束
+    int SETINT = TYPE_TAG | 4;             // 事务修改了页中的一个int
+    int SETSTRING = TYPE_TAG | 5;          // 事务修改了页中的一个字符串
+
+    /**
+     * 记录的类型
+     *
+     * @return
+     */
+    int op();
+
+    /**
+     * 把这条记录追加到日志中
+     *
+     * @return 记录的LSN
+     */
+    long writeToLog();
+}
@@ -0,0 +1,101 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
+import simpledb.file.FileMgr;
+import simpledb.log.LogMgr;
+import simpledb.server.SimpleDB;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+
+import static simpledb.file.Page.INT_SIZE;
+
+/**
+ * @program: simpleDB
+ * @description: 崩溃恢复的性能测试，比较不同的重做线程数，用法：
+ * java simpledb.tx.recovery.RecoveryBenchmark [修改记录数] [被修改的块数]
+ **/
+public class RecoveryBenchmark {
+    private static final String DB = "recoveryBenchDB";
+    private static final String FILE = "redobench.tbl";
+
+    public static void main(String[] args) {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int blocks = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+        long interval = SimpleDB.CHECKPOINT_INTERVAL;
+        long logBytes = SimpleDB.CHECKPOINT_LOG_BYTES;
+        long flushInterval = SimpleDB.FLUSH_INTERVAL;
+        int bufferSize = SimpleDB.BUFFER_SIZE;
+        try {
+            // 不做检查点，启动时也就不会自动重做，每一轮都从同样的日志开始
+            SimpleDB.CHECKPOINT_INTERVAL = 0;
+            SimpleDB.CHECKPOINT_LOG_BYTES = 0;
+            SimpleDB.FLUSH_INTERVAL = 0;
+            SimpleDB.BUFFER_SIZE = 1024;
+            SimpleDB.init(DB);
+            long first = writeLog(records, blocks);
+            // 从这一轮写的第一条记录开始重做，没有可以用来过滤的脏页表
+            CheckpointRecord from = new CheckpointRecord(first, first, new HashMap<>(), new HashMap<>());
+            System.out.printf("%d updates on %d blocks, buffer pool %d, %d cpus%n",
+                    records, blocks, SimpleDB.BUFFER_SIZE, Runtime.getRuntime().availableProcessors());
+            redo(from, blocks, 1);   // 预热
+            double base = 0;
+            for (int threads : new int[]{1, 2, 4, 8, 16}) {
+                double ms = redo(from, blocks, threads);
+                if (threads == 1)
+                    base = ms;
+                System.out.printf("%2d threads: %.1fms, %.0f records/s, speedup %.2f%n",
+                        threads, ms, records / (ms / 1000), base / ms);
+            }
+        } finally {
+            SimpleDB.CHECKPOINT_INTERVAL = interval;
+            SimpleDB.CHECKPOINT_LOG_BYTES = logBytes;
+            SimpleDB.FLUSH_INTERVAL = flushInterval;
+            SimpleDB.BUFFER_SIZE = bufferSize;
+        }
+    }
+
+    /**
+     * 只写日志不修改页面，相当于崩溃时所有的修改都还没有写回
+     *
+     * @return 第一条记录的LSN
+     */
+    private static long writeLog(int records, int blocks) {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        int slots = Buffer.payloadSize(SimpleDB.getFileMgr().blockSize()) / INT_SIZE;
+        Random random = new Random(24);
+        long first = -1, lsn = -1;
+        for (int i = 0; i < records; i++) {
+            Block blk = new Block(FILE, random.nextInt(blocks));
+            lsn = new SetIntRecord(i % 64, blk, random.nextInt(slots) * INT_SIZE, 0, i).writeToLog();
+            if (first < 0)
+                first = lsn;
+        }
+        logMgr.flush(lsn);
+        return first;
+    }
+
+    /**
+     * 重新打开数据库（丢掉缓冲池中的页），把数据文件恢复成全0的块，再用threads个线程重做
+     *
+     * @return 重做的毫秒数
+     */
+    private static double redo(CheckpointRecord from, int blocks, int threads) {
+        SimpleDB.init(DB);
+        FileMgr fileMgr = SimpleDB.getFileMgr();
+        fileMgr.delete(FILE);
+        ByteBuffer empty = ByteBuffer.allocateDirect(fileMgr.blockSize());
+        for (int i = 0; i < blocks; i++)
+            fileMgr.append(FILE, empty);
+
+        long start = System.nanoTime();
+        RecoveryMgr recoveryMgr = new RecoveryMgr(threads);
+        recoveryMgr.redo(from);
+        double ms = (System.nanoTime() - start) / 1e6;
+        if (recoveryMgr.applied() != recoveryMgr.records())
+            throw new RuntimeException("only " + recoveryMgr.applied() + " of " + recoveryMgr.records() + " applied");
+        return ms;
+    }
+}
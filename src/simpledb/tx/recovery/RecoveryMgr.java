@@ -0,0 +1,258 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferMgr;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.ForwardLogIterator;
+import simpledb.server.SimpleDB;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 恢复管理单元，崩溃之后重做日志中修改页面的记录（重做阶段）。
+ * <p>
+ * 日志只从重做起点往后顺序读一遍，读出的修改按块分给多个工作线程：同一个块的记录总是交给同一个线程，
+ * 并保持它们在日志中的顺序，不同的块在多个线程上同时重做，读盘和修改页面都可以并行。
+ * 工作线程通过{@link BufferMgr}固定块，页上的LSN（见{@link Buffer#pageLSN()}）不早于记录的LSN时，
+ * 说明这次修改在崩溃之前已经写回磁盘了，跳过。
+ * <p>
+ * 有检查点时还用它的脏页表过滤：检查点开始之前的记录，如果它的事务不在活跃事务表中，
+ * 而它修改的块不在脏页表中或者recLSN晚于它，那么修改在检查点时已经在磁盘上了，连页都不用读。
+ * <p>
+ * 重做之后的页留在缓冲池中，是普通的脏页，之后由后台写回和检查点写到磁盘上。
+ * 这里只重做，撤销没有提交的事务留给事务模块
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class RecoveryMgr {
+    private static final int BATCH_SIZE = 256;     // 分给同一个工作线程的记录攒够这么多条交给它一次
+    private static final int QUEUE_BATCHES = 16;   // 每个工作线程的队列中最多排着的批数
+    private static final List<Redo> END = Collections.emptyList();  // 告诉工作线程没有更多的记录了
+    private final int threads;
+    private long records;      // 读到的修改页面的记录数
+    private final AtomicLong applied = new AtomicLong();  // 重做了的记录数
+    private final AtomicLong skipped = new AtomicLong();  // 已经在磁盘上、不用重做的记录数
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    /**
+     * @param threads 重做的工作线程数，0表示CPU核数。不会超过缓冲池的大小，每个线程同时只固定一个块
+     */
+    public RecoveryMgr(int threads) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * 从检查点的重做起点开始重做日志中所有修改页面的记录
+     *
+     * @param checkpoint 最近一个检查点，null表示从日志的开头重做
+     */
+    public void redo(CheckpointRecord checkpoint) {
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        int n = Math.max(1, Math.min(threads, bufferMgr.size()));
+        Worker[] workers = new Worker[n];
+        for (int i = 0; i < n; i++) {
+            workers[i] = new Worker(bufferMgr, "simpledb-redo-" + i);
+            workers[i].thread.start();
+        }
+        try {
+            dispatch(checkpoint, workers);
+        } finally {
+            for (Worker w : workers)
+                w.put(END);
+            for (Worker w : workers)
+                w.join();
+        }
+        RuntimeException e = failure.get();
+        if (e != null)
+            throw e;
+    }
+
+    /**
+     * 顺序读日志，把要重做的记录按块分给工作线程
+     *
+     * @param checkpoint
+     * @param workers
+     */
+    private void dispatch(CheckpointRecord checkpoint, Worker[] workers) {
+        long fromLSN = checkpoint == null ? 0 : checkpoint.redoLSN();
+        long beginLSN = checkpoint == null ? 0 : checkpoint.beginLSN();
+        Map<Integer, Long> activeTxs = checkpoint == null ? null : checkpoint.activeTxs();
+        Map<Block, Long> dirtyPages = checkpoint == null ? null : checkpoint.dirtyPages();
+        List<List<Redo>> batches = new ArrayList<>(workers.length);
+        for (int i = 0; i < workers.length; i++)
+            batches.add(new ArrayList<>(BATCH_SIZE));
+
+        ForwardLogIterator it = SimpleDB.getLogMgr().forwardIterator(fromLSN);
+        while (it.hasNext() && failure.get() == null) {
+            BasicLogRecord rec = it.next();
+            UpdateRecord update = UpdateRecord.read(rec.nextInt(), rec);
+            if (update == null)
+                continue;
+            records++;
+            long lsn = it.lsn();
+            if (lsn < beginLSN && !activeTxs.containsKey(update.txNumber())) {
+                Long recLSN = dirtyPages.get(update.block());
+                if (recLSN == null || recLSN > lsn) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+            }
+            int w = Math.floorMod(update.block().hashCode(), workers.length);
+            List<Redo> batch = batches.get(w);
+            batch.add(new Redo(update, lsn));
+            if (batch.size() == BATCH_SIZE) {
+                workers[w].put(batch);
+                batches.set(w, new ArrayList<>(BATCH_SIZE));
+            }
+        }
+        for (int i = 0; i < workers.length; i++) {
+            if (!batches.get(i).isEmpty())
+                workers[i].put(batches.get(i));
+        }
+    }
+
+    /**
+     * 读到的修改页面的记录数
+     *
+     * @return
+     */
+    public long records() {
+        return records;
+    }
+
+    /**
+     * 重做了的记录数
+     *
+     * @return
+     */
+    public long applied() {
+        return applied.get();
+    }
+
+    /**
+     * 修改已经在磁盘上、跳过的记录数
+     *
+     * @return
+     */
+    public long skipped() {
+        return skipped.get();
+    }
+
+    /**
+     * 一条要重做的记录和它的LSN
+     */
+    private static class Redo {
+        final UpdateRecord rec;
+        final long lsn;
+
+        Redo(UpdateRecord rec, long lsn) {
+            this.rec = rec;
+            this.lsn = lsn;
+        }
+    }
+
+    /**
+     * 重做一部分块的工作线程，按收到的顺序处理记录。
+     * 出错之后记下第一个异常，但是继续取走队列中的记录，分发的线程就不会阻塞在这里
+     */
+    private class Worker implements Runnable {
+        private final BufferMgr bufferMgr;
+        private final BlockingQueue<List<Redo>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        private final Thread thread;
+
+        Worker(BufferMgr bufferMgr, String name) {
+            this.bufferMgr = bufferMgr;
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<Redo> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (batch == END)
+                    return;
+                if (failure.get() != null)
+                    continue;
+                try {
+                    apply(batch);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+
+        /**
+         * 重做一批记录，连续修改同一个块的记录只固定一次
+         *
+         * @param batch
+         */
+        private void apply(List<Redo> batch) {
+            Buffer buff = null;
+            int done = 0;
+            try {
+                for (Redo r : batch) {
+                    Block blk = r.rec.block();
+                    if (buff == null || !blk.equals(buff.block())) {
+                        if (buff != null) {
+                            bufferMgr.unpin(buff);
+                            buff = null;
+                        }
+                        buff = bufferMgr.pin(blk);
+                    }
+                    if (buff.pageLSN() < r.lsn) {
+                        r.rec.redo(buff, r.lsn);
+                        done++;
+                    }
+                }
+                // 计数器是共享的，每批只更新一次
+                applied.addAndGet(done);
+                skipped.addAndGet(batch.size() - done);
+            } finally {
+                if (buff != null)
+                    bufferMgr.unpin(buff);
+            }
+        }
+
+        void put(List<Redo> batch) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(batch);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        void join() {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
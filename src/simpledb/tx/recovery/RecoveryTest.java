@@ -0,0 +1,374 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferMgr;
+import simpledb.file.Block;
+import simpledb.file.FileMgr;
+import simpledb.log.LogMgr;
+import simpledb.server.SimpleDB;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * @program: simpleDB
+ * @description:
+ **/
+public class RecoveryTest {
+    private static final int OTHER_RECORD = 100;   // 测试用的其它类型的日志记录
+
+    public static void main(String[] args) throws Exception {
+        long flushInterval = SimpleDB.FLUSH_INTERVAL;
+        long interval = SimpleDB.CHECKPOINT_INTERVAL;
+        long logBytes = SimpleDB.CHECKPOINT_LOG_BYTES;
+        long segmentSize = SimpleDB.LOG_SEGMENT_SIZE;
+        int recoveryThreads = SimpleDB.RECOVERY_THREADS;
+        boolean truncateLog = SimpleDB.CHECKPOINT_TRUNCATE_LOG;
+        try {
+            // 后台写回和后台检查点都会改变脏页表，先关掉
+            SimpleDB.FLUSH_INTERVAL = 0;
+            SimpleDB.CHECKPOINT_INTERVAL = 0;
+            SimpleDB.CHECKPOINT_LOG_BYTES = 0;
+            SimpleDB.LOG_SEGMENT_SIZE = 4 * SimpleDB.BLOCK_SIZE;  // 只对新建的日志有效
+            SimpleDB.CHECKPOINT_TRUNCATE_LOG = true;  // 测试日志段的回收，这里不需要撤销
+            testNewDatabase();
+            testRedoWithoutCheckpoint();
+            SimpleDB.init("recoveryDB");
+            testCheckpointTables();
+            testCheckpointDuringUpdate();
+            testRedoAdvances();
+            testTriggers();
+            SimpleDB.CHECKPOINT_INTERVAL = 0;
+            SimpleDB.CHECKPOINT_LOG_BYTES = 0;
+            SimpleDB.RECOVERY_THREADS = 4;   // 单核的机器上也按块分给多个线程
+            SimpleDB.init("recoveryDB");
+            testRedo();
+            testParallelRedo();
+        } finally {
+            SimpleDB.FLUSH_INTERVAL = flushInterval;
+            SimpleDB.CHECKPOINT_INTERVAL = interval;
+            SimpleDB.CHECKPOINT_LOG_BYTES = logBytes;
+            SimpleDB.LOG_SEGMENT_SIZE = segmentSize;
+            SimpleDB.RECOVERY_THREADS = recoveryThreads;
+            SimpleDB.CHECKPOINT_TRUNCATE_LOG = truncateLog;
+        }
+        SimpleDB.init("recoveryDB");
+    }
+
+    /**
+     * 新建的数据库一开始就有一个检查点；默认不回收日志段
+     */
+    private static void testNewDatabase() throws IOException {
+        boolean truncateLog = SimpleDB.CHECKPOINT_TRUNCATE_LOG;
+        SimpleDB.CHECKPOINT_TRUNCATE_LOG = false;
+        try {
+            deleteDatabase("recoveryNewDB");
+            SimpleDB.init("recoveryNewDB");
+            CheckpointMgr checkpointMgr = SimpleDB.getCheckpointMgr();
+            if (checkpointMgr.lastCheckpoint() == null || checkpointMgr.checkpoints() != 1)
+                throw new RuntimeException("a new database should start with a checkpoint");
+            LogMgr logMgr = SimpleDB.getLogMgr();
+            long lsn = logUpdate(13);
+            while (logMgr.segmentOf(logMgr.endLSN()) - logMgr.segmentOf(lsn) < 2)
+                logUpdate(13);
+            checkpointMgr.checkpoint();
+            if (logMgr.firstSegment() != 0)
+                throw new RuntimeException("log truncated to segment " + logMgr.firstSegment() + " by default");
+            System.out.println("new database checkpoint: " + checkpointMgr.lastCheckpoint());
+        } finally {
+            SimpleDB.CHECKPOINT_TRUNCATE_LOG = truncateLog;
+        }
+    }
+
+    /**
+     * 在第一个检查点写完之前崩溃（头文件中还没有主记录），重新打开时从日志的开头重做
+     */
+    private static void testRedoWithoutCheckpoint() throws IOException {
+        Block blk = new Block("recoverytest.tbl", 0);
+        SimpleDB.getLogMgr().flush(update(14, blk, 0, 77));
+        Path header = Paths.get(System.getProperty("user.home"), "recoveryNewDB", FileMgr.HEADER_FILE);
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(header)) {
+            props.load(in);
+        }
+        props.remove(CheckpointMgr.MASTER_RECORD);
+        try (OutputStream out = Files.newOutputStream(header)) {
+            props.store(out, null);
+        }
+
+        SimpleDB.init("recoveryNewDB");   // 修改没有写回，也没有检查点
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        Buffer buff = bufferMgr.pin(blk);
+        try {
+            if (buff.getInt(0) != 77)
+                throw new RuntimeException("update lost without a checkpoint: " + buff.getInt(0));
+        } finally {
+            bufferMgr.unpin(buff);
+        }
+        System.out.println("redo without a checkpoint restored the page");
+    }
+
+    private static void deleteDatabase(String dbName) throws IOException {
+        Path dir = Paths.get(System.getProperty("user.home"), dbName);
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    /**
+     * 检查点中的活跃事务表和脏页表：事务修改了一个页还没有结束，
+     * 事务开始的位置和页的recLSN都不晚于修改它的日志记录；重新打开数据库后从主记录读出同样的检查点
+     */
+    private static void testCheckpointTables() {
+        CheckpointMgr checkpointMgr = SimpleDB.getCheckpointMgr();
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        int txnum = 7;
+        checkpointMgr.txStarted(txnum);
+        Block blk = new Block("recoverytest.tbl", 0);
+        Buffer buff = bufferMgr.pin(blk);
+        long lsn = logUpdate(txnum);
+        buff.setInt(0, 42, txnum, lsn);
+        buff.setInt(4, 43, txnum, logUpdate(txnum));   // recLSN还是第一次修改的LSN
+        CheckpointRecord rec = checkpointMgr.checkpoint();
+        bufferMgr.unpin(buff);
+        if (rec.activeTxs().get(txnum) == null || rec.activeTxs().get(txnum) > lsn)
+            throw new RuntimeException("active transaction missing from " + rec);
+        if (rec.dirtyPages().get(blk) == null || rec.dirtyPages().get(blk) != lsn)
+            throw new RuntimeException("dirty page missing from " + rec + ", expected recLSN " + lsn);
+        if (rec.redoLSN() > rec.activeTxs().get(txnum) || rec.redoLSN() > rec.beginLSN())
+            throw new RuntimeException("redo would start too late: " + rec);
+        checkpointMgr.txEnded(txnum);
+
+        SimpleDB.init("recoveryDB");
+        CheckpointRecord read = SimpleDB.getCheckpointMgr().lastCheckpoint();
+        if (read == null || read.beginLSN() != rec.beginLSN() || read.redoLSN() != rec.redoLSN()
+                || !read.activeTxs().equals(rec.activeTxs()) || !read.dirtyPages().equals(rec.dirtyPages()))
+            throw new RuntimeException("checkpoint read back wrong: " + read + ", wrote " + rec);
+        System.out.println("checkpoint: " + read);
+    }
+
+    /**
+     * 修改页面的线程写完日志、还没有改页面时开始检查点：日志记录在检查点开始之前，
+     * 页要么在脏页表中，要么重做起点不晚于这条记录，否则崩溃之后这次修改就丢了。
+     * 这里没有通知事务开始，活跃事务表是空的
+     */
+    private static void testCheckpointDuringUpdate() throws Exception {
+        CheckpointMgr checkpointMgr = SimpleDB.getCheckpointMgr();
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        Block blk = new Block("recoverytest.tbl", 2);
+        Buffer buff = bufferMgr.pin(blk);
+        buff.flush();
+        CountDownLatch logged = new CountDownLatch(1);
+        long[] lsn = new long[1];
+        Thread updater = new Thread(() -> buff.setInt(0, 99, 9, () -> {
+            lsn[0] = logUpdate(9);
+            logged.countDown();
+            try {
+                Thread.sleep(200);   // 检查点在这期间开始
+            } catch (InterruptedException e) {
+                throw new RuntimeException("interrupted", e);
+            }
+            return lsn[0];
+        }));
+        updater.start();
+        logged.await();
+        CheckpointRecord rec = checkpointMgr.checkpoint();
+        updater.join();
+        bufferMgr.unpin(buff);
+        System.out.println("checkpoint during update: record at " + lsn[0] + ", " + rec);
+        if (lsn[0] >= rec.beginLSN())
+            throw new RuntimeException("update was logged after the checkpoint began");
+        if (rec.redoLSN() > lsn[0])
+            throw new RuntimeException("redo would skip the update at " + lsn[0] + ": " + rec);
+    }
+
+    /**
+     * 事务结束之后，下一个检查点把上一个检查点之前就变脏的页写回，重做起点前移，
+     * 之前的日志段被回收
+     */
+    private static void testRedoAdvances() {
+        CheckpointMgr checkpointMgr = SimpleDB.getCheckpointMgr();
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        int txnum = 8;
+        checkpointMgr.txStarted(txnum);
+        Block blk = new Block("recoverytest.tbl", 1);
+        Buffer buff = bufferMgr.pin(blk);
+        long lsn = logUpdate(txnum);
+        buff.setInt(0, 1, txnum, lsn);
+        bufferMgr.unpin(buff);
+        // 写几个段的日志
+        long end = lsn;
+        while (logMgr.segmentOf(end) - logMgr.segmentOf(lsn) < 3)
+            end = logUpdate(txnum);
+        checkpointMgr.txEnded(txnum);
+
+        CheckpointRecord first = checkpointMgr.checkpoint();
+        if (first.redoLSN() != lsn)
+            throw new RuntimeException("redo should start at the dirty page: " + first + ", recLSN " + lsn);
+        CheckpointRecord second = checkpointMgr.checkpoint();
+        if (!second.dirtyPages().isEmpty() || second.redoLSN() != second.beginLSN())
+            throw new RuntimeException("old dirty page was not written back: " + second);
+        if (logMgr.firstSegment() != logMgr.segmentOf(second.redoLSN()) || logMgr.firstSegment() <= logMgr.segmentOf(lsn))
+            throw new RuntimeException("log not truncated to the redo point, first segment " + logMgr.firstSegment());
+        System.out.println("redo point advanced from " + first.redoLSN() + " to " + second.redoLSN()
+                + ", log starts at segment " + logMgr.firstSegment());
+    }
+
+    /**
+     * 后台线程按时间和按日志量做检查点
+     */
+    private static void testTriggers() throws InterruptedException {
+        SimpleDB.CHECKPOINT_INTERVAL = 50;
+        SimpleDB.CHECKPOINT_LOG_BYTES = 0;
+        SimpleDB.init("recoveryDB");
+        logUpdate(9);
+        awaitCheckpoint("time");
+
+        SimpleDB.CHECKPOINT_INTERVAL = 0;
+        SimpleDB.CHECKPOINT_LOG_BYTES = 8 * SimpleDB.getFileMgr().blockSize();
+        SimpleDB.init("recoveryDB");
+        Thread.sleep(300);
+        if (SimpleDB.getCheckpointMgr().checkpoints() != 0)
+            throw new RuntimeException("checkpoint taken without any log written");
+        while (SimpleDB.getCheckpointMgr().logSinceCheckpoint() < SimpleDB.CHECKPOINT_LOG_BYTES)
+            logUpdate(9);
+        awaitCheckpoint("log volume");
+    }
+
+    /**
+     * 崩溃之后重做：检查点之后写回过的修改根据页上的LSN跳过，没有写回的修改重做；
+     * 检查点之前已经写回、结束了的事务的修改用脏页表过滤掉。重做之后再崩溃一次，结果不变
+     */
+    private static void testRedo() {
+        CheckpointMgr checkpointMgr = SimpleDB.getCheckpointMgr();
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        Block written = new Block("recoverytest.tbl", 2);
+        Block lost = new Block("recoverytest.tbl", 3);
+        Block old = new Block("recoverytest.tbl", 4);
+        // 检查点之前：事务11修改并写回一个页之后结束；事务12一直活跃，重做的起点在它开始的位置
+        checkpointMgr.txStarted(12);
+        checkpointMgr.txStarted(11);
+        update(11, old, 0, 5);
+        bufferMgr.flushAll(11);
+        checkpointMgr.txEnded(11);
+        checkpointMgr.checkpoint();
+
+        update(12, written, 0, 11);
+        bufferMgr.flushAll(12);
+        update(12, written, 4, 12);
+        long lsn = update(12, lost, 8, "redo");
+        SimpleDB.getLogMgr().flush(lsn);
+
+        SimpleDB.init("recoveryDB");   // 没有写回的修改都丢了
+        checkRedo(written, lost);
+        SimpleDB.init("recoveryDB");
+        checkRedo(written, lost);
+        System.out.println("redo after a crash restored both pages");
+    }
+
+    private static void checkRedo(Block written, Block lost) {
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        Buffer w = bufferMgr.pin(written);
+        Buffer l = bufferMgr.pin(lost);
+        try {
+            if (w.getInt(0) != 11 || w.getInt(4) != 12 || !"redo".equals(l.getString(8)))
+                throw new RuntimeException("redo lost updates: " + w.getInt(0) + " " + w.getInt(4) + " " + l.getString(8));
+        } finally {
+            bufferMgr.unpin(w);
+            bufferMgr.unpin(l);
+        }
+    }
+
+    /**
+     * 很多事务交错地修改比缓冲池多的块，一部分页在替换时写回了，其余的随着崩溃丢失；
+     * 多个线程重做之后每个位置都是最后一次写的值
+     */
+    private static void testParallelRedo() {
+        CheckpointMgr checkpointMgr = SimpleDB.getCheckpointMgr();
+        checkpointMgr.checkpoint();
+        int blocks = 4 * SimpleDB.BUFFER_SIZE, slots = 8;
+        int[][] expected = new int[blocks][slots];
+        java.util.Random random = new java.util.Random(24);
+        long lsn = -1;
+        for (int i = 0; i < 5000; i++) {
+            int b = random.nextInt(blocks), slot = random.nextInt(slots);
+            expected[b][slot] = i;
+            lsn = update(100 + i % 10, new Block("paralleltest.tbl", b), slot * 4, i);
+        }
+        SimpleDB.getLogMgr().flush(lsn);
+
+        SimpleDB.init("recoveryDB");
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        for (int b = 0; b < blocks; b++) {
+            Buffer buff = bufferMgr.pin(new Block("paralleltest.tbl", b));
+            try {
+                for (int slot = 0; slot < slots; slot++) {
+                    if (buff.getInt(slot * 4) != expected[b][slot])
+                        throw new RuntimeException("block " + b + " slot " + slot + ": " + buff.getInt(slot * 4)
+                                + ", expected " + expected[b][slot]);
+                }
+            } finally {
+                bufferMgr.unpin(buff);
+            }
+        }
+        System.out.println("parallel redo of " + blocks + " blocks ok");
+    }
+
+    /**
+     * 像事务那样先写日志再修改页面
+     */
+    private static long update(int txnum, Block blk, int offset, int val) {
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        Buffer buff = bufferMgr.pin(blk);
+        try {
+            long[] lsn = new long[1];
+            buff.setInt(offset, val, txnum,
+                    () -> lsn[0] = new SetIntRecord(txnum, blk, offset, buff.getInt(offset), val).writeToLog());
+            return lsn[0];
+        } finally {
+            bufferMgr.unpin(buff);
+        }
+    }
+
+    private static long update(int txnum, Block blk, int offset, String val) {
+        BufferMgr bufferMgr = SimpleDB.getBufferMgr();
+        Buffer buff = bufferMgr.pin(blk);
+        try {
+            long[] lsn = new long[1];
+            buff.setString(offset, val, txnum,
+                    () -> lsn[0] = new SetStringRecord(txnum, blk, offset, buff.getString(offset), val).writeToLog());
+            return lsn[0];
+        } finally {
+            bufferMgr.unpin(buff);
+        }
+    }
+
+    private static void awaitCheckpoint(String trigger) throws InterruptedException {
+        CheckpointMgr checkpointMgr = SimpleDB.getCheckpointMgr();
+        for (int i = 0; i < 100 && checkpointMgr.checkpoints() == 0; i++)
+            Thread.sleep(20);
+        if (checkpointMgr.checkpoints() == 0)
+            throw new RuntimeException("no checkpoint triggered by " + trigger);
+        System.out.println("checkpoint triggered by " + trigger);
+    }
+
+    /**
+     * 写一条其它类型的日志记录
+     */
+    private static long logUpdate(int txnum) {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        return logMgr.append(logMgr.recordWriter().putInt(OTHER_RECORD).putInt(txnum).putString("update"));
+    }
+}
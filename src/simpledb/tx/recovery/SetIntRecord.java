@@ -0,0 +1,49 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
+import simpledb.log.LogMgr;
+import simpledb.server.SimpleDB;
+
+/**
+ * 修改页中一个int的日志记录：
+ * <pre>
+ * &lt;SETINT, txnum, fileName, blockNum, offset, 旧值, 新值&gt;
+ * </pre>
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class SetIntRecord extends UpdateRecord {
+    private final int oldVal;
+    private final int newVal;
+
+    public SetIntRecord(int txnum, Block blk, int offset, int oldVal, int newVal) {
+        super(txnum, blk, offset);
+        this.oldVal = oldVal;
+        this.newVal = newVal;
+    }
+
+    @Override
+    public int op() {
+        return SETINT;
+    }
+
+    @Override
+    public long writeToLog() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        return logMgr.append(logMgr.recordWriter().putInt(SETINT).putInt(txnum)
+                .putString(blk.getFileNama()).putInt(blk.getBlockNum()).putInt(offset)
+                .putInt(oldVal).putInt(newVal));
+    }
+
+    @Override
+    public void redo(Buffer buff, long lsn) {
+        buff.setInt(offset, newVal, txnum, lsn);
+    }
+
+    @Override
+    public String toString() {
+        return "<SETINT " + txnum + " " + blk + " " + offset + " " + oldVal + " " + newVal + ">";
+    }
+}
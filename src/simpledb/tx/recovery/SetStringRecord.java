@@ -0,0 +1,49 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
+import simpledb.log.LogMgr;
+import simpledb.server.SimpleDB;
+
+/**
+ * 修改页中一个字符串的日志记录：
+ * <pre>
+ * &lt;SETSTRING, txnum, fileName, blockNum, offset, 旧值, 新值&gt;
+ * </pre>
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public class SetStringRecord extends UpdateRecord {
+    private final String oldVal;
+    private final String newVal;
+
+    public SetStringRecord(int txnum, Block blk, int offset, String oldVal, String newVal) {
+        super(txnum, blk, offset);
+        this.oldVal = oldVal;
+        this.newVal = newVal;
+    }
+
+    @Override
+    public int op() {
+        return SETSTRING;
+    }
+
+    @Override
+    public long writeToLog() {
+        LogMgr logMgr = SimpleDB.getLogMgr();
+        return logMgr.append(logMgr.recordWriter().putInt(SETSTRING).putInt(txnum)
+                .putString(blk.getFileNama()).putInt(blk.getBlockNum()).putInt(offset)
+                .putString(oldVal).putString(newVal));
+    }
+
+    @Override
+    public void redo(Buffer buff, long lsn) {
+        buff.setString(offset, newVal, txnum, lsn);
+    }
+
+    @Override
+    public String toString() {
+        return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + oldVal + " " + newVal + ">";
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+
+/**
+ * 事务修改页面的日志记录，恢复时按块重做。
+ * 记录的开头是类型、事务号、块和页中的位置，后面是各个类型自己的旧值和新值：
+ * <pre>
+ * &lt;op, txnum, fileName, blockNum, offset, 旧值, 新值&gt;
+ * </pre>
+ *
+ * @program: simpleDB
+ * @description:
+ **/
+public abstract class UpdateRecord implements LogRecord {
+    protected final int txnum;
+    protected final Block blk;
+    protected final int offset;
+
+    protected UpdateRecord(int txnum, Block blk, int offset) {
+        this.txnum = txnum;
+        this.blk = blk;
+        this.offset = offset;
+    }
+
+    /**
+     * 读出一条修改页面的记录，类型已经用{@link BasicLogRecord#nextInt()}读出
+     *
+     * @param op  记录的类型
+     * @param rec
+     * @return 不是修改页面的记录时返回null
+     */
+    public static UpdateRecord read(int op, BasicLogRecord rec) {
+        if (op != SETINT && op != SETSTRING)
+            return null;
+        int txnum = rec.nextInt();
+        Block blk = new Block(rec.nextString(), rec.nextInt());
+        int offset = rec.nextInt();
+        if (op == SETINT) {
+            int oldVal = rec.nextInt();
+            return new SetIntRecord(txnum, blk, offset, oldVal, rec.nextInt());
+        }
+        String oldVal = rec.nextString();
+        return new SetStringRecord(txnum, blk, offset, oldVal, rec.nextString());
+    }
+
+    public int txNumber() {
+        return txnum;
+    }
+
+    public Block block() {
+        return blk;
+    }
+
+    /**
+     * 把新值重新写到页上，页上的LSN随之变成lsn。调用者要保证页上还没有这次修改
+     *
+     * @param buff 固定着{@link #block()}的缓冲单元
+     * @param lsn  这条记录的LSN
+     */
+    public abstract void redo(Buffer buff, long lsn);
+}